@@ -21,6 +21,10 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Uses the MySQL sleep() / kill to implement a distributed Condition
+ * <p>
+ * Holds no monitors while waiting, so it can be awaited from virtual threads.
+ * Whether the carrier is pinned during SLEEP() depends on the JDBC driver,
+ * Connector/J 8.0.29+ uses locks instead of synchronized around socket I/O.
  *
  * @author bramp
  */
@@ -84,33 +88,45 @@ public class MySQLSleepBasedCondition implements Condition {
 		try {
 			Connection c = ds.getConnection();
 			try {
-				PreparedStatement s = c.prepareStatement(sleepQuery);
-				try {
+				// Adjust nanosTimeout (due to time it took to get a connection)
+				return sleep(c, nanosTimeout - (System.nanoTime() - now));
+			} finally {
+				c.close();
+			}
 
-					// Adjust nanosTimeout (due to time it took to get a connection)
-					nanosTimeout -= (System.nanoTime() - now);
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
 
-					// Convert to seconds, but round to whole number of milliseconds
-					s.setFloat(1, Math.round(nanosTimeout / 1000000.0) / 1000f);
-					s.setString(2, lockName);
-					s.execute();
+	/**
+	 * Waits on a connection the caller already holds, instead of one from the DataSource.
+	 * The connection can't be used by anyone else until this returns.
+	 * @return true if awaken (correctly, or spuriously), false if timeout
+	 */
+	public boolean awaitUntil(@Nonnull Connection c, Date deadline) throws SQLException {
+		return sleep(c, TimeUnit.MILLISECONDS.toNanos(deadline.getTime() - System.currentTimeMillis()));
+	}
 
-					ResultSet rs = s.getResultSet();
-					if (rs != null && rs.next())
-						return rs.getInt(1) == 1;
+	protected boolean sleep(Connection c, long nanosTimeout) throws SQLException {
+		if (nanosTimeout <= 0)
+			return false;
 
-					return true;
+		PreparedStatement s = c.prepareStatement(sleepQuery);
+		try {
+			// Convert to seconds, but round to whole number of milliseconds
+			s.setFloat(1, Math.round(nanosTimeout / 1000000.0) / 1000f);
+			s.setString(2, lockName);
+			s.execute();
 
-				} finally {
-					s.close();
-				}
+			ResultSet rs = s.getResultSet();
+			if (rs != null && rs.next())
+				return rs.getInt(1) == 1;
 
-			} finally {
-				c.close();
-			}
+			return true;
 
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
+		} finally {
+			s.close();
 		}
 	}
 
@@ -178,30 +194,19 @@ public class MySQLSleepBasedCondition implements Condition {
 	 * Will signal the thread that's been waiting the longest
 	 */
 	public void signal() {
-		try {
-			Connection c = ds.getConnection();
-			try {
-				// Find a list of blocked threads to wake up
-				ResultSet threads = findLockThreads(c);
-				if (!threads.next()) {
-					LOG.debug("Nothing to wake up for '{}'", lockName);
-					return;
-				}
-				long toWake = threads.getLong(1);
-				threads.close();
-
-				killThread(c, toWake);
-
-			} finally {
-				c.close();
-			}
-
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
-		}
+		wake(false);
 	}
 
 	public void signalAll() {
+		wake(true);
+	}
+
+	/**
+	 * Kills the sleep of the longest waiting thread, or of all waiting threads
+	 * @param all
+	 * @return number of threads woken up
+	 */
+	public int wake(boolean all) {
 		try {
 			Connection c = ds.getConnection();
 			try {
@@ -210,12 +215,18 @@ public class MySQLSleepBasedCondition implements Condition {
 				ResultSet threads = findLockThreads(c);
 				while (threads.next()) {
 					toWake.add(threads.getLong(1));
+					if (!all)
+						break;
 				}
 				threads.close();
 
+				if (toWake.isEmpty())
+					LOG.debug("Nothing to wake up for '{}'", lockName);
+
 				for (Long id : toWake) {
 					killThread(c, id);
 				}
+				return toWake.size();
 
 			} finally {
 				c.close();
@@ -1,7 +1,9 @@
 package net.bramp.db_patterns.queues;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
@@ -73,7 +75,7 @@ abstract class AbstractBlockingQueue<E> implements BlockingQueue<E> {
 			count++;
 		}
 
-		return maxElements - count;
+		return count;
 	}
 	
 	@Override
@@ -87,37 +89,64 @@ abstract class AbstractBlockingQueue<E> implements BlockingQueue<E> {
 		return offer(e);
 	}
 
-	////// Nothing supported below
-
+	/**
+	 * Scans the whole queue with iterator()
+	 */
 	@Override
 	public boolean contains(Object o) {
-		throw new UnsupportedOperationException();
+		Iterator<E> it = iterator();
+		while (it.hasNext()) {
+			E e = it.next();
+			if (o == null ? e == null : o.equals(e))
+				return true;
+		}
+		return false;
 	}
 
 	@Override
-	public Iterator<E> iterator() {
-		throw new UnsupportedOperationException();
+	public boolean containsAll(Collection<?> c) {
+		for (Object o : c) {
+			if (!contains(o))
+				return false;
+		}
+		return true;
 	}
 
+	/**
+	 * Copies the whole queue, see iterator()
+	 */
 	@Override
 	public Object[] toArray() {
-		throw new UnsupportedOperationException();	}
+		return toList().toArray();
+	}
 
 	@Override
 	public <T> T[] toArray(T[] a) {
-		throw new UnsupportedOperationException();
+		return toList().toArray(a);
+	}
+
+	protected List<E> toList() {
+		List<E> list = new ArrayList<E>();
+		Iterator<E> it = iterator();
+		while (it.hasNext()) {
+			list.add(it.next());
+		}
+		return list;
 	}
 
+	////// Nothing supported below
+
 	@Override
-	public boolean remove(Object o) {
+	public Iterator<E> iterator() {
 		throw new UnsupportedOperationException();
 	}
 
 	@Override
-	public boolean containsAll(Collection<?> c) {
+	public boolean remove(Object o) {
 		throw new UnsupportedOperationException();
 	}
 
+
 	@Override
 	public boolean addAll(Collection<? extends E> c) {
 		throw new UnsupportedOperationException();
@@ -1,14 +1,30 @@
 package net.bramp.db_patterns.queues;
 
-import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import javax.sql.DataSource;
 
@@ -18,52 +34,382 @@ import net.bramp.db_patterns.locks.MySQLSleepBasedCondition;
 import net.bramp.db_patterns.queues.interfaces.CleanableQueue;
 import net.bramp.db_patterns.queues.interfaces.PriorityQueue;
 import net.bramp.db_patterns.queues.interfaces.StatusableQueue;
+import net.bramp.db_patterns.queues.metrics.QueueMetrics;
 import net.bramp.serializator.Serializator;
+import net.bramp.sql.MySQLVersion;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * TODO Create efficient drainTo
- *
  * @param <E>
  * @author bramp
  */
 abstract class AbstractMySQLQueue<E> extends AbstractBlockingQueue<E> implements
 		StatusableQueue<E, ValueContainer<E>>, PriorityQueue<E>, CleanableQueue {
+
+	final static Logger LOG = LoggerFactory.getLogger(AbstractMySQLQueue.class);
+
 	protected String me;
 	protected DataSource ds;
 	protected String queueName;
 	protected String tableName;
+	protected String archiveTableName;
+	protected String counterTableName;
+
+	/**
+	 * Bound for the queue_name and node columns. The names themselves in the named
+	 * layout, their dictionary ids in the compact layout, see QueueSchema.
+	 */
+	protected volatile String queueKey;
+	protected volatile String nodeKey;
 
 	protected Class<E> type = null;
 	protected Serializator<E> serializator = null;
 	protected Condition condition;
+
+	/**
+	 * Signalled by consumers after claims, producers wait on it while the queue is full
+	 */
+	protected Condition notFull;
+
+	/**
+	 * Max time in ms a producer waits on notFull before checking the counter again,
+	 * as a signal sent between the check and the wait is missed
+	 */
+	final static long NOT_FULL_RECHECK_MILLIS = 1000;
+
+	/**
+	 * Max number of ids in a single status UPDATE
+	 */
+	final static int STATUS_BATCH_ROWS = 1000;
+
+	/**
+	 * MySQL error of an INSERT with a taken unique key
+	 */
+	final static int ER_DUP_ENTRY = 1062;
 	/**
 	 * time in seconds
 	 */
 	private volatile int takeBlockingTime = 60;
 
+	/**
+	 * Max number of rows sent in a single multi-row INSERT by addAll
+	 */
+	private volatile int bulkInsertRows = 500;
+
+	/**
+	 * Max estimated size in bytes of a single multi-row INSERT by addAll.
+	 * Should stay below the server max_allowed_packet.
+	 */
+	private volatile int bulkInsertMaxBytes = 1024 * 1024;
+
+	/**
+	 * Max number of rows claimed at once by drainTo
+	 */
+	private volatile int drainBatchSize = 100;
+
+	private volatile PollStrategy pollStrategy = PollStrategy.FOR_UPDATE;
+
+	private volatile QueueSchema.Layout layout = QueueSchema.Layout.NAMED;
+
+	/**
+	 * Statuses the status column accepts, null if any
+	 */
+	private volatile Set<String> statuses = null;
+
+	/**
+	 * Lease time in seconds, 0 if leases are disabled
+	 */
+	private volatile int leaseSeconds = 0;
+
+	/**
+	 * Max number of expired leases re-queued by a single statement
+	 */
+	private volatile int leaseReaperBatchSize = 1000;
+
+	/**
+	 * Move completed rows to the archive table on ack
+	 */
+	private volatile boolean archiveOnAck = false;
+
+	/**
+	 * Max number of rows moved to the archive table by a single transaction
+	 */
+	private volatile int archiveBatchSize = 500;
+
+	/**
+	 * Maintain number of pending items in the counter table, instead of counting rows
+	 */
+	private volatile boolean countedSize = false;
+
+	/**
+	 * Number of counter rows per queue, spreads row lock contention of concurrent updates
+	 */
+	private volatile int sizeCounterStripes = 16;
+
+	/**
+	 * How long size() may return a cached value. 0 - no caching
+	 */
+	private volatile long sizeCacheMillis = 0;
+	private volatile int cachedSize = 0;
+	private volatile long cachedSizeAt = 0;
+
+	/**
+	 * Number of rows read by one query of iterator and streamWithMetadata
+	 */
+	private volatile int browsePageSize = 1000;
+
+	/**
+	 * Seconds after completion the dedup key of an item can be reused, -1 if keys
+	 * are held until the row is deleted
+	 */
+	private volatile int dedupWindowSeconds = -1;
+
+	/**
+	 * Max number of pending items, Integer.MAX_VALUE if unbounded
+	 */
+	private volatile int capacity = Integer.MAX_VALUE;
+
+	private volatile QueueMetrics metrics = QueueMetrics.NOOP;
+
+	private volatile RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+
+	/**
+	 * Session running operations on this thread, see QueueSession
+	 */
+	final ThreadLocal<QueueSession<E>> session = new ThreadLocal<QueueSession<E>>();
+
+	/**
+	 * Max number of rows deleted by a single cleanup statement
+	 */
+	private volatile int cleanupBatchSize = 1000;
+
+	/**
+	 * Max number of rows deleted by cleanup per second, 0 for no limit
+	 */
+	private volatile int cleanupRowsPerSecond = 0;
+
+	/**
+	 * Resolved SQL, built on first use
+	 */
+	private volatile QueryPlan queryPlan = null;
+
 	final static String tableNamePlaceholder = "%TABLE_NAME%";
+	final static String lockingPlaceholder = "%LOCKING%";
+
+	/**
+	 * Replaced by ", lease_until = ..." if leases are enabled, otherwise removed
+	 */
+	final static String leasePlaceholder = "%LEASE%";
+	final static String leaseResetPlaceholder = "%LEASE_RESET%";
+
+	/**
+	 * Replaced by "AND lease_until IS NULL" if leases are enabled, so leased rows are not treated as completed
+	 */
+	final static String leaseDonePlaceholder = "%LEASE_DONE%";
+
+	/**
+	 * Replaced by "AND lease_until >= NOW()" if leases are enabled, so acked rows and
+	 * leases which expired (and might be redelivered) are not touched
+	 */
+	final static String leaseHeldPlaceholder = "%LEASE_HELD%";
+	final static String archiveTablePlaceholder = "%ARCHIVE_TABLE%";
+
+	/**
+	 * Replaced by queue_name, or queue_id in the compact layout
+	 */
+	final static String queueColumnPlaceholder = "%QUEUE_COLUMN%";
+	final static String counterTablePlaceholder = "%COUNTER_TABLE%";
 	protected String addQuery;
 
+	/**
+	 * Values tuple of addQuery. Repeated to build multi-row inserts.
+	 */
+	protected String addRowQuery;
+
+	/**
+	 * addQuery with the dedup_key column. A taken key fails the statement with
+	 * ER_DUP_ENTRY, which does not depend on how the connection counts affected rows.
+	 */
+	protected String addDedupQuery;
+
+	/**
+	 * Values tuple of addDedupQuery
+	 */
+	protected String addDedupRowQuery;
+
+	/**
+	 * Selects the taken keys of a chunk which failed with ER_DUP_ENTRY. A locking
+	 * read, so it sees the rows the INSERT conflicted with.
+	 * Parameters: queue name, keys
+	 */
+	protected String takenDedupKeysQuery = "SELECT dedup_key FROM " + tableNamePlaceholder
+			+ " WHERE " + queueColumnPlaceholder + " = ? AND dedup_key IN ";
+
+	/**
+	 * Frees keys of rows completed longer than the dedup window ago.
+	 * Parameters: queue name, window seconds, keys
+	 */
+	protected String releaseDedupKeysQuery = "UPDATE " + tableNamePlaceholder
+			+ " SET dedup_key = NULL WHERE " + queueColumnPlaceholder + " = ?"
+			+ " AND acquired <= DATE_SUB(NOW(), INTERVAL ? SECOND) " + leaseDonePlaceholder
+			+ " AND dedup_key IN ";
+
 	protected String peekQuery;
 	protected String[] pollQuery;
 
+	/**
+	 * Seconds until the closest delayed item is due. Only used by delay queues.
+	 */
+	protected String closestDelayQuery = null;
+
+	/**
+	 * Locks top rows. Parameters: queue name, limit
+	 */
+	protected String pollBatchQuery;
+
+	protected String acquireBatchQuery = "UPDATE " + tableNamePlaceholder
+			+ " SET acquired = NOW(), acquired_by = ? " + leasePlaceholder + " WHERE id IN ";
+
+	/**
+	 * Statements ending, extending or releasing a claim only touch rows still
+	 * acquired by this node with an unexpired lease. Parameters: queue name, node
+	 */
+	final static String heldByMeCondition = queueColumnPlaceholder + " = ? AND acquired_by = ?"
+			+ " AND acquired IS NOT NULL " + leaseHeldPlaceholder;
+
+	/**
+	 * Parameters: queue name, node, ids
+	 */
+	protected String releaseBatchQuery = "UPDATE " + tableNamePlaceholder
+			+ " SET acquired = NULL, acquired_by = NULL " + leaseResetPlaceholder
+			+ " WHERE " + heldByMeCondition + " AND id IN ";
+
+	/**
+	 * Sets status of acquired rows and ends their leases. Parameters: status, queue name, node, ids
+	 */
+	protected String completeBatchQuery = "UPDATE " + tableNamePlaceholder
+			+ " SET status = ? " + leaseResetPlaceholder
+			+ " WHERE " + heldByMeCondition + " AND id IN ";
+
+	/**
+	 * Parameters: id, queue name, node
+	 */
+	protected String ackQuery = "UPDATE " + tableNamePlaceholder
+			+ " SET lease_until = NULL WHERE id = ? AND " + heldByMeCondition;
+
+	/**
+	 * Parameters: seconds, id, queue name, node
+	 */
+	protected String extendLeaseQuery = "UPDATE " + tableNamePlaceholder
+			+ " SET lease_until = DATE_ADD(NOW(), INTERVAL ? SECOND)"
+			+ " WHERE id = ? AND " + heldByMeCondition;
+
+	/**
+	 * Re-queues expired leases. Uses queue_lease_index (queue_name, lease_until).
+	 */
+	protected String reapLeasesQuery = "UPDATE " + tableNamePlaceholder
+			+ " SET acquired = NULL, acquired_by = NULL, lease_until = NULL"
+			+ " WHERE " + queueColumnPlaceholder + " = ? AND lease_until < NOW()"
+			+ " ORDER BY lease_until LIMIT ?";
+
+	/**
+	 * Acquires top rows marking them with claim token.
+	 * Parameters: acquired by, claim token, queue name, limit
+	 */
+	protected String claimQuery;
+
+	protected String claimedQuery = "SELECT id, status, -priority, value FROM " + tableNamePlaceholder
+			+ " WHERE claim_token = ? ORDER BY priority ASC, id ASC";
+
+	/**
+	 * Claim tokens are this prefix followed by a counter, unique across instances
+	 */
+	protected final String claimTokenPrefix = UUID.randomUUID().toString() + "-";
+	protected final AtomicLong claimTokenCounter = new AtomicLong();
+
 	protected String clearQuery = "DELETE FROM " + tableNamePlaceholder
-			+ " WHERE queue_name = ? ";
+			+ " WHERE " + queueColumnPlaceholder + " = ? ";
 
+	/**
+	 * Deletes a chunk of old rows. Parameters: queue name, days, limit
+	 */
 	protected String cleanupQuery = "DELETE FROM " + tableNamePlaceholder
-			+ " WHERE acquired IS NOT NULL " + " AND queue_name = ? "
-			+ " AND acquired < DATE_SUB(NOW(), INTERVAL ? DAY)";
+			+ " WHERE acquired IS NOT NULL " + " AND " + queueColumnPlaceholder + " = ? "
+			+ " AND acquired < DATE_SUB(NOW(), INTERVAL ? DAY)"
+			+ " ORDER BY id LIMIT ?";
 
+	/**
+	 * Deletes a chunk of old rows of all queues. Parameters: days, limit
+	 */
 	protected String cleanupAllQuery = "DELETE FROM " + tableNamePlaceholder
 			+ " WHERE acquired IS NOT NULL "
-			+ " AND acquired < DATE_SUB(NOW(), INTERVAL ? DAY)";
+			+ " AND acquired < DATE_SUB(NOW(), INTERVAL ? DAY)"
+			+ " ORDER BY id LIMIT ?";
+
+	/**
+	 * Locks completed rows to move to archive. Parameters: queue name, limit
+	 * <p>
+	 * Walks queue_lease_index (queue, lease_until, acquired) with leases, or queue_acquired_index
+	 * (queue, acquired) without, so only completed rows of this queue are scanned and locked.
+	 */
+	protected String archiveSelectQuery = "SELECT id FROM " + tableNamePlaceholder
+			+ " WHERE acquired IS NOT NULL AND " + queueColumnPlaceholder + " = ? " + leaseDonePlaceholder
+			+ " ORDER BY acquired LIMIT ? FOR UPDATE";
+
+	/**
+	 * Copies acquired rows to the archive table. Parameters: queue name, ids
+	 */
+	protected String archiveInsertQuery = "INSERT INTO " + archiveTablePlaceholder
+			+ " SELECT * FROM " + tableNamePlaceholder
+			+ " WHERE " + queueColumnPlaceholder + " = ? AND acquired IS NOT NULL AND id IN ";
+
+	/**
+	 * Deletes archived rows. Parameters: queue name, ids
+	 */
+	protected String archiveDeleteQuery = "DELETE FROM " + tableNamePlaceholder
+			+ " WHERE " + queueColumnPlaceholder + " = ? AND acquired IS NOT NULL AND id IN ";
+
+	protected String archiveCleanupQuery = "DELETE FROM " + archiveTablePlaceholder
+			+ " WHERE " + queueColumnPlaceholder + " = ? "
+			+ " AND acquired < DATE_SUB(NOW(), INTERVAL ? DAY)"
+			+ " ORDER BY id LIMIT ?";
 
 	protected String updateStatusQuery = "UPDATE " + tableNamePlaceholder
 			+ " SET status = ? " + "WHERE id = ? " + "LIMIT 1; ";
 
-	protected String getStatusQuery = "SELECT status FROM queue WHERE id = ?";
+	/**
+	 * Sets status of many rows. Parameters: status, ids
+	 */
+	protected String updateStatusBatchQuery = "UPDATE " + tableNamePlaceholder
+			+ " SET status = ? WHERE id IN ";
+
+	protected String getStatusQuery = "SELECT status FROM " + tableNamePlaceholder + " WHERE id = ?";
+
+	/**
+	 * Reads a page of pending rows after the (priority, id) key of the previous page.
+	 * Parameters: queue name, priority, priority, id, limit
+	 */
+	protected String browseQuery = "SELECT id, status, -priority, value FROM " + tableNamePlaceholder
+			+ " WHERE acquired IS NULL AND " + queueColumnPlaceholder + " = ?"
+			+ " AND (priority > ? OR (priority = ? AND id > ?))"
+			+ " ORDER BY priority ASC, id ASC LIMIT ?";
+
+	protected String sizeQuery = "SELECT COUNT(*) FROM " + tableNamePlaceholder + " WHERE acquired IS NULL AND " + queueColumnPlaceholder + " = ?";
+
+	/**
+	 * Adds to a counter stripe. Parameters: queue name, stripe, delta
+	 */
+	protected String counterUpdateQuery = "INSERT INTO " + counterTablePlaceholder
+			+ " (" + queueColumnPlaceholder + ", stripe, pending) VALUES (?, ?, ?)"
+			+ " ON DUPLICATE KEY UPDATE pending = pending + VALUES(pending)";
+
+	protected String counterSizeQuery = "SELECT COALESCE(SUM(pending), 0) FROM " + counterTablePlaceholder
+			+ " WHERE " + queueColumnPlaceholder + " = ?";
 
-	protected String sizeQuery = "SELECT COUNT(*) FROM queue WHERE acquired IS NULL AND queue_name = ?";
+	protected String counterResetQuery = "DELETE FROM " + counterTablePlaceholder
+			+ " WHERE " + queueColumnPlaceholder + " = ?";
 
 	/**
 	 * Creates a new MySQL backed queue. Store values using statement setObject.
@@ -102,9 +448,14 @@ abstract class AbstractMySQLQueue<E> extends AbstractBlockingQueue<E> implements
 			String queueName, String me) {
 		this.ds = ds;
 		this.tableName = escapeTableName(tableName);
+		this.archiveTableName = escapeTableName(tableName + "_archive");
+		this.counterTableName = escapeTableName(tableName + "_counter");
 		this.queueName = queueName;
 		this.condition = new MySQLSleepBasedCondition(ds, "queue-" + queueName);
+		this.notFull = new MySQLSleepBasedCondition(ds, "queue-notfull-" + queueName);
 		this.me = me;
+		this.queueKey = queueName;
+		this.nodeKey = me;
 	}
 
 	/**
@@ -123,128 +474,1519 @@ abstract class AbstractMySQLQueue<E> extends AbstractBlockingQueue<E> implements
 		this.takeBlockingTime = takeBlockingTime;
 	}
 
-	@Override
-	public boolean add(E value) {
-		return add(value, ValueContainer.DEFAULT_PRIORRITY);
+	/**
+	 * Gets max number of rows inserted by a single statement in addAll. Default 500.
+	 */
+	public int getBulkInsertRows() {
+		return bulkInsertRows;
 	}
 
-	@Override
-	public boolean add(E value, int priority) {
-		try {
-			Connection c = ds.getConnection();
-			try {
-				PreparedStatement s = c.prepareStatement(getAddQuery());
-				try {
-					setAddParameters(value, priority, s);
-					s.execute();
-					wakeupThread();
-					return true;
+	/**
+	 * Sets max number of rows inserted by a single statement in addAll.
+	 */
+	public void setBulkInsertRows(int bulkInsertRows) {
+		if (bulkInsertRows < 1)
+			throw new IllegalArgumentException("bulkInsertRows must be positive");
+		this.bulkInsertRows = bulkInsertRows;
+	}
 
-				} finally {
-					s.close();
-				}
-			} finally {
-				c.close();
-			}
+	/**
+	 * Gets max estimated size of a single statement in addAll. Default 1MB.
+	 * Unit - bytes.
+	 */
+	public int getBulkInsertMaxBytes() {
+		return bulkInsertMaxBytes;
+	}
 
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
-		}
+	/**
+	 * Sets max estimated size of a single statement in addAll. Keep it below
+	 * the server max_allowed_packet. Unit - bytes.
+	 */
+	public void setBulkInsertMaxBytes(int bulkInsertMaxBytes) {
+		if (bulkInsertMaxBytes < 1)
+			throw new IllegalArgumentException("bulkInsertMaxBytes must be positive");
+		this.bulkInsertMaxBytes = bulkInsertMaxBytes;
 	}
 
-	@Override
-	public ValueContainer<E> peekWithMetadata() {
-		try {
-			Connection c = ds.getConnection();
-			try {
-				PreparedStatement s = c.prepareStatement(getPeekQuery());
-				try {
-					s.setString(1, queueName);
-					if (s.execute()) {
-						ResultSet rs = s.getResultSet();
-						if (rs != null && rs.next()) {
-							return valueContainerFromResult(rs);
-						}
-					}
-					return null;
-				} finally {
-					s.close();
-				}
+	/**
+	 * Gets strategy used to lock rows while polling. Default FOR_UPDATE.
+	 */
+	public PollStrategy getPollStrategy() {
+		return pollStrategy;
+	}
 
-			} finally {
-				c.close();
+	/**
+	 * Sets strategy used to lock rows while polling. The server version is
+	 * checked straight away, SKIP_LOCKED falls back to FOR_UPDATE if the server
+	 * does not support it.
+	 */
+	public void setPollStrategy(PollStrategy pollStrategy) {
+		if (pollStrategy == PollStrategy.SKIP_LOCKED) {
+			MySQLVersion version;
+			try {
+				version = MySQLVersion.detect(ds);
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
 			}
 
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
+			if (!version.supportsSkipLocked()) {
+				LOG.warn("MySQL {} does not support SKIP LOCKED, falling back to FOR UPDATE", version);
+				pollStrategy = PollStrategy.FOR_UPDATE;
+			}
 		}
+		this.pollStrategy = pollStrategy;
+		this.queryPlan = null;
 	}
 
-	protected ValueContainer<E> executePollWithMetadata(Connection c,
-			String[] pollQuery) throws SQLException {
-		PreparedStatement s0 = null;
-		PreparedStatement s1 = null;
-		PreparedStatement s2 = null;
-
-		try {
-			s0 = c.prepareStatement(pollQuery[0]);
-			s0.execute();
-
-			s1 = c.prepareStatement(pollQuery[1]);
-			s1.setString(1, queueName);
-			boolean success = s1.execute();
+	public QueueSchema.Layout getLayout() {
+		return layout;
+	}
 
-			if(success) {
-				s2 = c.prepareStatement(pollQuery[2]);
-				s2.setString(1, me); // Acquired by me
-				s2.execute();
+	/**
+	 * Sets the table layout, see QueueSchema. Default NAMED. For the compact
+	 * layout the ids of the queue name and of this node are looked up (and
+	 * added to the dictionary tables if missing) straight away, and the
+	 * statuses of the status ENUM are read, so others are rejected.
+	 */
+	public void setLayout(QueueSchema.Layout layout) {
+		if (layout == QueueSchema.Layout.COMPACT) {
+			QueueSchema schema = new QueueSchema(ds, plainTableName());
+			try {
+				// Compared to SMALLINT columns as numbers, so every query binds keys the same way
+				this.queueKey = String.valueOf(schema.queueId(queueName));
+				this.nodeKey = String.valueOf(schema.nodeId(me));
+				this.statuses = schema.readStatuses();
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
 			}
+		} else {
+			this.queueKey = queueName;
+			this.nodeKey = me;
+			this.statuses = null;
+		}
+		this.layout = layout;
+		this.queryPlan = null;
+	}
 
-			c.commit();
+	/**
+	 * Gets lease time of polled items, 0 if leases are disabled (default).
+	 */
+	public long getLeaseTime(TimeUnit unit) {
+		return unit.convert(leaseSeconds, TimeUnit.SECONDS);
+	}
 
-			if (success) {
-				ResultSet rs = s1.getResultSet();
-				if (rs != null && rs.next()) {
-					return valueContainerFromResult(rs);
-				}
-			}
-			return null;
+	/**
+	 * Enables leases. Polled items not acked within lease time are re-queued
+	 * by reapExpiredLeases. Requires the lease_until column (see MySQLBasedQueue).
+	 * @param time lease time, rounded up to seconds, 0 disables leases
+	 * @param unit
+	 */
+	public void setLeaseTime(long time, TimeUnit unit) {
+		if (time < 0)
+			throw new IllegalArgumentException("Lease time must not be negative");
+
+		long seconds = unit.toSeconds(time);
+		if (unit.convert(seconds, TimeUnit.SECONDS) < time)
+			seconds++;
+		if (seconds > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Lease time is too long");
+
+		this.leaseSeconds = (int) seconds;
+		this.queryPlan = null;
+	}
 
-		} finally {
-			try { if (s0 != null) s0.close(); } catch (Exception e) { }
-			try { if (s1 != null) s0.close(); } catch (Exception e) { }
-			try { if (s2 != null) s0.close(); } catch (Exception e) { }
-		}
+	/**
+	 * Gets max number of expired leases re-queued by a single statement. Default 1000.
+	 */
+	public int getLeaseReaperBatchSize() {
+		return leaseReaperBatchSize;
 	}
-	
-	AtomicInteger eCnt = new AtomicInteger(0);
 
+	/**
+	 * Sets max number of expired leases re-queued by a single statement.
+	 */
+	public void setLeaseReaperBatchSize(int leaseReaperBatchSize) {
+		if (leaseReaperBatchSize < 1)
+			throw new IllegalArgumentException("leaseReaperBatchSize must be positive");
+		this.leaseReaperBatchSize = leaseReaperBatchSize;
+	}
+
+	/**
+	 * Gets if acked rows are moved to the archive table. Default false.
+	 */
+	public boolean isArchiveOnAck() {
+		return archiveOnAck;
+	}
+
+	/**
+	 * Sets if acked rows are moved straight away to the archive table (table name + "_archive").
+	 * The archive table must have the same columns: CREATE TABLE queue_archive LIKE queue
+	 */
+	public void setArchiveOnAck(boolean archiveOnAck) {
+		this.archiveOnAck = archiveOnAck;
+	}
+
+	/**
+	 * Gets max number of rows moved to the archive table by a single transaction. Default 500.
+	 */
+	public int getArchiveBatchSize() {
+		return archiveBatchSize;
+	}
+
+	/**
+	 * Sets max number of rows moved to the archive table by a single transaction.
+	 */
+	public void setArchiveBatchSize(int archiveBatchSize) {
+		if (archiveBatchSize < 1)
+			throw new IllegalArgumentException("archiveBatchSize must be positive");
+		this.archiveBatchSize = archiveBatchSize;
+	}
+
+	/**
+	 * Gets if size is read from the counter table. Default false.
+	 */
+	public boolean isCountedSize() {
+		return countedSize;
+	}
+
+	/**
+	 * Sets if the number of pending items is maintained in the counter table
+	 * (table name + "_counter"), in the same transaction as add, poll, release and clear.
+	 * size() and isEmpty() then read a few counter rows instead of counting the index range.
+	 * Call rebuildSizeCounter after enabling it on a queue which already has items.
+	 */
+	public void setCountedSize(boolean countedSize) {
+		if (!countedSize && capacity != Integer.MAX_VALUE)
+			throw new IllegalStateException("Bounded queue needs counted size");
+		this.countedSize = countedSize;
+	}
+
+	/**
+	 * Gets number of counter rows per queue. Default 16.
+	 */
+	public int getSizeCounterStripes() {
+		return sizeCounterStripes;
+	}
+
+	/**
+	 * Sets number of counter rows per queue. Each thread updates its own stripe,
+	 * so more stripes mean less lock contention between producers and consumers.
+	 */
+	public void setSizeCounterStripes(int sizeCounterStripes) {
+		if (sizeCounterStripes < 1)
+			throw new IllegalArgumentException("sizeCounterStripes must be positive");
+		this.sizeCounterStripes = sizeCounterStripes;
+	}
+
+	/**
+	 * Gets how long size() may return a cached value.
+	 */
+	public long getSizeCacheTime(TimeUnit unit) {
+		return unit.convert(sizeCacheMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sets how long size() and isEmpty() may return a cached value, making them approximate.
+	 * 0 disables caching.
+	 */
+	public void setSizeCacheTime(long time, TimeUnit unit) {
+		if (time < 0)
+			throw new IllegalArgumentException("time must not be negative");
+		this.sizeCacheMillis = unit.toMillis(time);
+		this.cachedSizeAt = 0;
+	}
+
+	public QueueMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets where latencies, empty polls, retries, waits and signals of this
+	 * queue are recorded. Default QueueMetrics.NOOP.
+	 */
+	public void setMetrics(QueueMetrics metrics) {
+		if (metrics == null)
+			throw new IllegalArgumentException("metrics must not be null, use QueueMetrics.NOOP");
+		this.metrics = metrics;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * Sets how polls, batch claims and status updates retry transactions
+	 * rolled back by a deadlock or lock wait timeout. Default RetryPolicy.DEFAULT.
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		if (retryPolicy == null)
+			throw new IllegalArgumentException("retryPolicy must not be null, use RetryPolicy.NEVER");
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Gets max number of pending items, Integer.MAX_VALUE if unbounded. Default unbounded.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Sets max number of pending items of this queue name. While it is reached
+	 * add throws, offer returns false, put and offer with timeout wait for
+	 * consumers to claim items. Pending items are read from the counter table,
+	 * so counted size must be enabled first. The bound is soft, producers
+	 * racing for the last free slots may overshoot it by their number.
+	 * Integer.MAX_VALUE makes the queue unbounded.
+	 */
+	public void setCapacity(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be positive");
+		if (capacity != Integer.MAX_VALUE && !countedSize)
+			throw new IllegalStateException("Bounded queue needs counted size, see setCountedSize");
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Gets dedup window in seconds, -1 if dedup keys are held until the row is deleted. Default -1.
+	 */
+	public int getDedupWindow() {
+		return dedupWindowSeconds;
+	}
+
+	/**
+	 * Sets how long after an item is completed (acquired, and acked if leases
+	 * are enabled) its dedup key is still rejected. Keys older than that are
+	 * reused by the next add with the same key. 0 allows reuse as soon as the
+	 * item is completed. Negative time keeps keys until cleanup or archiving
+	 * deletes the row.
+	 */
+	public void setDedupWindow(long time, TimeUnit unit) {
+		if (time < 0) {
+			this.dedupWindowSeconds = -1;
+			return;
+		}
+
+		long seconds = unit.toSeconds(time);
+		if (unit.convert(seconds, TimeUnit.SECONDS) < time)
+			seconds++;
+		if (seconds > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Dedup window is too long");
+
+		this.dedupWindowSeconds = (int) seconds;
+	}
+
+	/**
+	 * Gets number of rows read by one iterator query. Default 1000.
+	 */
+	public int getBrowsePageSize() {
+		return browsePageSize;
+	}
+
+	/**
+	 * Sets number of rows read by one iterator query.
+	 */
+	public void setBrowsePageSize(int browsePageSize) {
+		if (browsePageSize < 1)
+			throw new IllegalArgumentException("browsePageSize must be positive");
+		this.browsePageSize = browsePageSize;
+	}
+
+	/**
+	 * Gets max number of rows deleted by a single cleanup statement. Default 1000.
+	 */
+	public int getCleanupBatchSize() {
+		return cleanupBatchSize;
+	}
+
+	/**
+	 * Sets max number of rows deleted by a single cleanup statement. Smaller
+	 * chunks hold locks and grow undo log for a shorter time.
+	 */
+	public void setCleanupBatchSize(int cleanupBatchSize) {
+		if (cleanupBatchSize < 1)
+			throw new IllegalArgumentException("cleanupBatchSize must be positive");
+		this.cleanupBatchSize = cleanupBatchSize;
+	}
+
+	/**
+	 * Gets max number of rows deleted by cleanup per second. Default 0, no limit.
+	 */
+	public int getCleanupRowsPerSecond() {
+		return cleanupRowsPerSecond;
+	}
+
+	/**
+	 * Sets max number of rows deleted by cleanup per second, cleanup pauses
+	 * between chunks to keep within it. 0 for no limit.
+	 */
+	public void setCleanupRowsPerSecond(int cleanupRowsPerSecond) {
+		if (cleanupRowsPerSecond < 0)
+			throw new IllegalArgumentException("cleanupRowsPerSecond must not be negative");
+		this.cleanupRowsPerSecond = cleanupRowsPerSecond;
+	}
+
+	/**
+	 * Gets max number of rows claimed by a single transaction in drainTo. Default 100.
+	 */
+	public int getDrainBatchSize() {
+		return drainBatchSize;
+	}
+
+	/**
+	 * Sets max number of rows claimed by a single transaction in drainTo.
+	 */
+	public void setDrainBatchSize(int drainBatchSize) {
+		if (drainBatchSize < 1)
+			throw new IllegalArgumentException("drainBatchSize must be positive");
+		this.drainBatchSize = drainBatchSize;
+	}
+
+	@Override
+	public boolean add(E value) {
+		return add(value, ValueContainer.DEFAULT_PRIORRITY);
+	}
+
+	@Override
+	public boolean add(E value, int priority) {
+		return add(value, priority, null);
+	}
+
+	/**
+	 * Adds value unless an item with the same dedup key is in this queue, so
+	 * retried producers do not enqueue the same work twice. Requires the
+	 * dedup_key column and its unique index, see MySQLBasedQueue.
+	 * Keys of completed items are reused after the dedup window, see setDedupWindow.
+	 * @param dedupKey deduplication key, null to always add
+	 * @return false if the value was not added because its key is taken
+	 */
+	@Override
+	public boolean add(E value, int priority, String dedupKey) {
+		if (remainingCapacity() < 1)
+			throw new IllegalStateException("Queue full");
+		return insert(value, priority, dedupKey);
+	}
+
+	/**
+	 * @return false if the queue is full
+	 */
+	@Override
+	public boolean offer(E e) {
+		if (remainingCapacity() < 1)
+			return false;
+		return insert(e, ValueContainer.DEFAULT_PRIORRITY, null);
+	}
+
+	/**
+	 * Waits until the queue is not full, or the timeout elapses
+	 * @return false if the queue stayed full
+	 */
+	@Override
+	public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+		if (!awaitNotFull(deadlineMillis(timeout, unit)))
+			return false;
+		return insert(e, ValueContainer.DEFAULT_PRIORRITY, null);
+	}
+
+	/**
+	 * Waits until the queue is not full
+	 */
+	@Override
+	public void put(E e) throws InterruptedException {
+		awaitNotFull(Long.MAX_VALUE);
+		insert(e, ValueContainer.DEFAULT_PRIORRITY, null);
+	}
+
+	/**
+	 * Free slots read from the counter table, Integer.MAX_VALUE if unbounded
+	 */
+	@Override
+	public int remainingCapacity() {
+		final int capacity = this.capacity;
+		if (capacity == Integer.MAX_VALUE)
+			return Integer.MAX_VALUE;
+		return Math.max(0, capacity - querySize(getQueryPlan().counterSize));
+	}
+
+	/**
+	 * Deadline timeout from now, saturated at Long.MAX_VALUE so large timeouts wait forever
+	 */
+	protected static long deadlineMillis(long timeout, TimeUnit unit) {
+		final long now = System.currentTimeMillis();
+		final long millis = Math.max(0, unit.toMillis(timeout));
+		return millis > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + millis;
+	}
+
+	/**
+	 * Sleeps on notFull until there is a free slot
+	 * @param deadlineMillis
+	 * @return false if the deadline passed first
+	 */
+	protected boolean awaitNotFull(long deadlineMillis) throws InterruptedException {
+		while (remainingCapacity() < 1) {
+			if (Thread.interrupted())
+				throw new InterruptedException();
+
+			long now = System.currentTimeMillis();
+			if (now >= deadlineMillis)
+				return false;
+
+			awaitUntil(notFull, new Date(Math.min(deadlineMillis, now + NOT_FULL_RECHECK_MILLIS)));
+		}
+		return true;
+	}
+
+	/**
+	 * Inserts value without checking capacity
+	 * @param dedupKey deduplication key, or null
+	 * @return false if the value was not added because its key is taken
+	 */
+	protected boolean insert(E value, int priority, String dedupKey) {
+		final long start = System.nanoTime();
+		final boolean counted = countedSize;
+		final boolean dedup = dedupKey != null;
+		boolean added;
+
+		Connection c = null;
+		try {
+			c = getConnection();
+			if (counted)
+				c.setAutoCommit(false);
+
+			if (dedup && dedupWindowSeconds >= 0)
+				releaseDedupKeys(c, Collections.singletonList(dedupKey));
+
+			PreparedStatement s = c.prepareStatement(dedup ? getQueryPlan().addDedup : getAddQuery());
+			try {
+				int index = setAddParameters(value, priority, s, 1);
+				setValueToStatment(s, index, value);
+				if (dedup)
+					s.setString(index + 1, dedupKey);
+				try {
+					added = s.executeUpdate() > 0;
+				} catch (SQLException e) {
+					// Only this statement is rolled back, the transaction goes on
+					if (!dedup || e.getErrorCode() != ER_DUP_ENTRY)
+						throw e;
+					added = false;
+				}
+
+				if (counted) {
+					if (added)
+						adjustSize(c, 1);
+					c.commit();
+				}
+			} finally {
+				s.close();
+			}
+
+		} catch (SQLException e) {
+			try { if (c != null && counted) c.rollback(); } catch (Exception ex) { }
+			throw new RuntimeException(e);
+
+		} finally {
+			closeConnection(c, counted);
+		}
+
+		metrics.recordAdd(System.nanoTime() - start, added ? 1 : 0);
+		if (added)
+			wakeupThread();
+		return added;
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends E> values) {
+		return addAll(values, ValueContainer.DEFAULT_PRIORRITY);
+	}
+
+	/**
+	 * Adds all values using chunked multi-row INSERTs in a single transaction.
+	 * A chunk is limited by bulkInsertRows and bulkInsertMaxBytes.
+	 * One thread is woken up per chunk once the transaction is committed.
+	 */
+	@Override
+	public boolean addAll(Collection<? extends E> values, int priority) {
+		if (values == this)
+			throw new IllegalArgumentException("Adding to self is not supported");
+		if (values.isEmpty())
+			return false;
+		if (values.size() > remainingCapacity())
+			throw new IllegalStateException("Queue full");
+
+		insertAll(values, null, priority);
+		return true;
+	}
+
+	/**
+	 * Adds values keyed by dedup key, skipping values whose key is taken, like
+	 * add(value, priority, dedupKey). Uses the same chunked multi-row INSERTs as addAll.
+	 * @param values values by dedup key, in insertion order if the map is ordered
+	 * @return number of values added
+	 */
+	@Override
+	public int addAll(Map<String, ? extends E> values, int priority) {
+		if (values.isEmpty())
+			return 0;
+		if (values.size() > remainingCapacity())
+			throw new IllegalStateException("Queue full");
+
+		return insertAll(values.values(), values.keySet().iterator(), priority);
+	}
+
+	/**
+	 * Inserts values in chunks in a single transaction
+	 * @param keys dedup keys in the order of values, or null
+	 * @return number of rows inserted
+	 */
+	protected int insertAll(Collection<? extends E> values, Iterator<String> keys, int priority) {
+		final long start = System.nanoTime();
+		final int maxRows = bulkInsertRows;
+		final int maxBytes = bulkInsertMaxBytes;
+		final int rowOverhead = estimateRowOverhead();
+
+		int chunks = 0;
+		int inserted = 0;
+		Connection c = null;
+		try {
+			c = getConnection();
+			c.setAutoCommit(false);
+
+			PreparedStatement s = null;
+			int statementRows = 0;
+			try {
+				List<E> chunk = new ArrayList<E>(Math.min(maxRows, values.size()));
+				List<Object> stored = new ArrayList<Object>(Math.min(maxRows, values.size()));
+				List<String> chunkKeys = keys != null ? new ArrayList<String>(Math.min(maxRows, values.size())) : null;
+				int chunkBytes = 0;
+
+				Iterator<? extends E> it = values.iterator();
+				while (it.hasNext()) {
+					E value = it.next();
+					String key = keys != null ? keys.next() : null;
+					Object storedValue = toStoredValue(value);
+					int rowBytes = rowOverhead + estimateStoredSize(storedValue);
+					if (key != null)
+						rowBytes += key.length() * 3;
+
+					if (!chunk.isEmpty() && chunkBytes + rowBytes > maxBytes) {
+						s = executeBulkInsert(c, s, statementRows, chunk, stored, chunkKeys, priority);
+						statementRows = chunk.size();
+						int rows = chunk.isEmpty() ? 0 : s.getUpdateCount();
+						if (rows > 0) {
+							inserted += rows;
+							chunks++;
+						}
+						chunk.clear();
+						stored.clear();
+						if (chunkKeys != null)
+							chunkKeys.clear();
+						chunkBytes = 0;
+					}
+
+					chunk.add(value);
+					stored.add(storedValue);
+					if (chunkKeys != null)
+						chunkKeys.add(key);
+					chunkBytes += rowBytes;
+
+					if (chunk.size() >= maxRows || !it.hasNext()) {
+						s = executeBulkInsert(c, s, statementRows, chunk, stored, chunkKeys, priority);
+						statementRows = chunk.size();
+						int rows = chunk.isEmpty() ? 0 : s.getUpdateCount();
+						if (rows > 0) {
+							inserted += rows;
+							chunks++;
+						}
+						chunk.clear();
+						stored.clear();
+						if (chunkKeys != null)
+							chunkKeys.clear();
+						chunkBytes = 0;
+					}
+				}
+
+				adjustSize(c, inserted);
+				c.commit();
+
+			} finally {
+				if (s != null)
+					s.close();
+			}
+
+		} catch (SQLException e) {
+			try { if (c != null) c.rollback(); } catch (Exception ex) { }
+			throw new RuntimeException(e);
+
+		} finally {
+			if (c != null) {
+				try {
+					c.setAutoCommit(true);
+					c.close();
+				} catch (Exception ex) {
+				}
+			}
+		}
+
+		metrics.recordAdd(System.nanoTime() - start, inserted);
+		for (int i = 0; i < chunks; i++) {
+			wakeupThread();
+		}
+		return inserted;
+	}
+
+	/**
+	 * Executes one multi-row INSERT. The previous statement is reused if it
+	 * was prepared for the same number of rows. If a dedup key is taken the
+	 * rows of taken keys are removed from the chunk and the rest inserted again.
+	 * @param keys dedup keys of the chunk, or null
+	 * @return statement used, to be reused by the next chunk. Not executed if
+	 * the chunk is empty afterwards.
+	 */
+	protected PreparedStatement executeBulkInsert(Connection c, PreparedStatement s, int statementRows,
+			List<E> chunk, List<Object> stored, List<String> keys, int priority) throws SQLException {
+		if (keys != null && dedupWindowSeconds >= 0)
+			releaseDedupKeys(c, keys);
+
+		while (true) {
+			if (s == null || statementRows != chunk.size()) {
+				if (s != null)
+					s.close();
+				s = c.prepareStatement(getBulkAddQuery(chunk.size(), keys != null));
+				statementRows = chunk.size();
+			}
+
+			int index = 1;
+			for (int i = 0; i < chunk.size(); i++) {
+				index = setAddParameters(chunk.get(i), priority, s, index);
+				setStoredValueToStatment(s, index++, stored.get(i));
+				if (keys != null)
+					s.setString(index++, keys.get(i));
+			}
+
+			try {
+				s.execute();
+				return s;
+			} catch (SQLException e) {
+				// Only this statement is rolled back, the transaction goes on
+				if (keys == null || e.getErrorCode() != ER_DUP_ENTRY || !removeTakenKeys(c, chunk, stored, keys))
+					throw e;
+			}
+
+			if (chunk.isEmpty())
+				return s;
+		}
+	}
+
+	/**
+	 * Removes rows whose dedup key is already in this queue from a chunk
+	 * @return false if no key was taken
+	 */
+	protected boolean removeTakenKeys(Connection c, List<E> chunk, List<Object> stored, List<String> keys)
+			throws SQLException {
+		Set<String> taken = new HashSet<String>();
+		PreparedStatement s = c.prepareStatement(
+				appendIdList(getQueryPlan().takenDedupKeys, keys.size()) + " LOCK IN SHARE MODE");
+		try {
+			s.setString(1, queueKey);
+			for (int i = 0; i < keys.size(); i++) {
+				s.setString(i + 2, keys.get(i));
+			}
+			ResultSet rs = s.executeQuery();
+			while (rs.next()) {
+				taken.add(rs.getString(1));
+			}
+		} finally {
+			s.close();
+		}
+
+		for (int i = keys.size() - 1; i >= 0; i--) {
+			if (taken.contains(keys.get(i))) {
+				chunk.remove(i);
+				stored.remove(i);
+				keys.remove(i);
+			}
+		}
+		return !taken.isEmpty();
+	}
+
+	/**
+	 * Frees given dedup keys of this queue if their items were completed longer
+	 * than the dedup window ago, in the caller transaction.
+	 */
+	protected void releaseDedupKeys(Connection c, List<String> keys) throws SQLException {
+		PreparedStatement s = c.prepareStatement(appendIdList(getQueryPlan().releaseDedupKeys, keys.size()));
+		try {
+			s.setString(1, queueKey);
+			s.setInt(2, dedupWindowSeconds);
+			for (int i = 0; i < keys.size(); i++) {
+				s.setString(i + 3, keys.get(i));
+			}
+			s.executeUpdate();
+		} finally {
+			s.close();
+		}
+	}
+
+	@Override
+	public ValueContainer<E> peekWithMetadata() {
+		final long start = System.nanoTime();
+		ValueContainer<E> item = peekOneWithMetadata();
+		metrics.recordPeek(System.nanoTime() - start, item == null);
+		return item;
+	}
+
+	protected ValueContainer<E> peekOneWithMetadata() {
+		try {
+			Connection c = getConnection();
+			try {
+				PreparedStatement s = c.prepareStatement(getPeekQuery());
+				try {
+					s.setString(1, queueKey);
+					if (s.execute()) {
+						ResultSet rs = s.getResultSet();
+						if (rs != null && rs.next()) {
+							return valueContainerFromResult(rs);
+						}
+					}
+					return null;
+				} finally {
+					s.close();
+				}
+
+			} finally {
+				c.close();
+			}
+
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected ValueContainer<E> executePollWithMetadata(Connection c,
+			String[] pollQuery) throws SQLException {
+		PreparedStatement s0 = null;
+		PreparedStatement s1 = null;
+		PreparedStatement s2 = null;
+
+		try {
+			s0 = c.prepareStatement(pollQuery[0]);
+			s0.execute();
+
+			s1 = c.prepareStatement(pollQuery[1]);
+			s1.setString(1, queueKey);
+			boolean success = s1.execute();
+
+			if(success) {
+				s2 = c.prepareStatement(pollQuery[2]);
+				s2.setString(1, nodeKey); // Acquired by me
+				adjustSize(c, -s2.executeUpdate());
+			}
+
+			c.commit();
+
+			if (success) {
+				ResultSet rs = s1.getResultSet();
+				if (rs != null && rs.next()) {
+					return valueContainerFromResult(rs);
+				}
+			}
+			return null;
+
+		} finally {
+			try { if (s0 != null) s0.close(); } catch (Exception e) { }
+			try { if (s1 != null) s1.close(); } catch (Exception e) { }
+			try { if (s2 != null) s2.close(); } catch (Exception e) { }
+		}
+	}
+	
+	/**
+	 * Acquires top n rows with a single UPDATE marking them with a new claim
+	 * token, then reads them back by the token. Runs in auto commit mode,
+	 * unless size is counted.
+	 */
+	protected List<ValueContainer<E>> executeClaimWithMetadata(Connection c,
+			int n) throws SQLException {
+		PreparedStatement s1 = null;
+		PreparedStatement s2 = null;
+
+		String claimToken = claimTokenPrefix + claimTokenCounter.incrementAndGet();
+		try {
+			s1 = c.prepareStatement(getClaimQuery());
+			s1.setString(1, nodeKey); // Acquired by me
+			s1.setString(2, claimToken);
+			s1.setString(3, queueKey);
+			s1.setInt(4, n);
+
+			int claimed = s1.executeUpdate();
+			List<ValueContainer<E>> items = new ArrayList<ValueContainer<E>>(claimed);
+			if (claimed > 0) {
+				s2 = c.prepareStatement(getClaimedQuery());
+				s2.setString(1, claimToken);
+				ResultSet rs = s2.executeQuery();
+				while (rs.next()) {
+					items.add(valueContainerFromResult(rs));
+				}
+			}
+			return items;
+
+		} finally {
+			try { if (s1 != null) s1.close(); } catch (Exception e) { }
+			try { if (s2 != null) s2.close(); } catch (Exception e) { }
+		}
+	}
+
+	/**
+	 * Claims up to n items using CLAIM_TOKEN strategy
+	 * @param n max number of items
+	 * @return claimed items in poll order
+	 */
+	protected List<ValueContainer<E>> claimWithMetadata(int n) {
+		final boolean counted = countedSize;
+		Connection c = null;
+		try {
+			c = getConnection();
+			if (counted)
+				c.setAutoCommit(false);
+
+			int attempt = 0;
+			long delay = 0;
+			while (true) {
+				try {
+					List<ValueContainer<E>> items = executeClaimWithMetadata(c, n);
+					if (counted) {
+						adjustSize(c, -items.size());
+						c.commit();
+					}
+					return items;
+
+				} catch (SQLException e) {
+					if (counted)
+						c.rollback();
+					delay = backoff(e, ++attempt, delay);
+					if (delay < 0)
+						throw e;
+				}
+			}
+		} catch (SQLException e) {
+			try { if (c != null && counted) c.rollback(); } catch (Exception ex) { }
+			throw new RuntimeException(e);
+
+		} finally {
+			closeConnection(c, counted);
+		}
+	}
+
+	/**
+	 * Claims the head item, and wakes a producer waiting for a free slot
+	 */
 	@Override
 	public ValueContainer<E> pollWithMetadata() {
+		final long start = System.nanoTime();
+		ValueContainer<E> item = pollOneWithMetadata();
+		metrics.recordPoll(System.nanoTime() - start, item == null ? 0 : 1);
+		if (item != null)
+			signalNotFull(1);
+		return item;
+	}
+
+	protected ValueContainer<E> pollOneWithMetadata() {
+		if (pollStrategy == PollStrategy.CLAIM_TOKEN) {
+			List<ValueContainer<E>> items = claimWithMetadata(1);
+			return items.isEmpty() ? null : items.get(0);
+		}
+
 		String[] pollQuery = getPollQuery();
 		Connection c = null;
 		try {
-			c = ds.getConnection();
+			c = getConnection();
+			c.setAutoCommit(false);
+			int attempt = 0;
+			long delay = 0;
+			while (true) {
+				try {
+					return executePollWithMetadata(c, pollQuery);
+				}
+				catch(SQLException e) {
+					c.rollback();
+					delay = backoff(e, ++attempt, delay);
+					if (delay < 0)
+						throw e;
+				}
+			}
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+		finally {
+			if (c != null) {
+				try {
+					c.setAutoCommit(true);
+					c.close();
+				} catch (Exception ex) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Locks top n rows, acquires them with a single UPDATE and commits once.
+	 */
+	protected List<ValueContainer<E>> executePollBatchWithMetadata(Connection c,
+			int n) throws SQLException {
+		PreparedStatement s1 = null;
+		PreparedStatement s2 = null;
+
+		try {
+			s1 = c.prepareStatement(getPollBatchQuery());
+			s1.setString(1, queueKey);
+			s1.setInt(2, n);
+
+			List<ValueContainer<E>> items = new ArrayList<ValueContainer<E>>(Math.min(n, drainBatchSize));
+			ResultSet rs = s1.executeQuery();
+			while (rs.next()) {
+				items.add(valueContainerFromResult(rs));
+			}
+
+			if (!items.isEmpty()) {
+				s2 = c.prepareStatement(getAcquireBatchQuery(items.size()));
+				s2.setString(1, nodeKey); // Acquired by me
+				for (int i = 0; i < items.size(); i++) {
+					s2.setLong(i + 2, items.get(i).id);
+				}
+				adjustSize(c, -s2.executeUpdate());
+			}
+
+			c.commit();
+			return items;
+
+		} finally {
+			try { if (s1 != null) s1.close(); } catch (Exception e) { }
+			try { if (s2 != null) s2.close(); } catch (Exception e) { }
+		}
+	}
+
+	/**
+	 * Claims up to n items in a single transaction. Non blocking.
+	 * @param n max number of items
+	 * @return claimed items in poll order, empty if queue is empty
+	 */
+	@Override
+	public List<ValueContainer<E>> pollBatchWithMetadata(int n) {
+		final long start = System.nanoTime();
+		List<ValueContainer<E>> items = pollManyWithMetadata(n);
+		metrics.recordPoll(System.nanoTime() - start, items.size());
+		signalNotFull(items.size());
+		return items;
+	}
+
+	protected List<ValueContainer<E>> pollManyWithMetadata(int n) {
+		if (n < 1)
+			throw new IllegalArgumentException("n must be positive");
+
+		if (pollStrategy == PollStrategy.CLAIM_TOKEN)
+			return claimWithMetadata(n);
+
+		Connection c = null;
+		try {
+			c = getConnection();
+			c.setAutoCommit(false);
+			int attempt = 0;
+			long delay = 0;
+			while (true) {
+				try {
+					return executePollBatchWithMetadata(c, n);
+				}
+				catch(SQLException e) {
+					c.rollback();
+					delay = backoff(e, ++attempt, delay);
+					if (delay < 0)
+						throw e;
+				}
+			}
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+		finally {
+			if (c != null) {
+				try {
+					c.setAutoCommit(true);
+					c.close();
+				} catch (Exception ex) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * No blocking. Claims items in batches of drainBatchSize.
+	 */
+	@Override
+	public int drainTo(Collection<? super E> c, int maxElements) {
+		if (c == this)
+			throw new IllegalArgumentException("Draining to self is not supported");
+
+		int count = 0;
+		while (count < maxElements) {
+			int n = Math.min(drainBatchSize, maxElements - count);
+			List<ValueContainer<E>> items = pollBatchWithMetadata(n);
+			for (ValueContainer<E> item : items) {
+				c.add(item.value);
+			}
+			count += items.size();
+
+			if (items.size() < n)
+				break;
+		}
+
+		return count;
+	}
+
+	@Override
+	public ValueContainer<E> takeWithMetadata() throws InterruptedException {
+		// We loop around trying to get a item, blocking at most a minute at
+		// a time this allows us to be interrupted
+		ValueContainer<E> head = null;
+		while (head == null) {
+			if (Thread.interrupted())
+				throw new InterruptedException();
+
+			head = pollWithMetadata(takeBlockingTime, TimeUnit.SECONDS);
+		}
+		return head;
+	}
+
+	@Override
+	public ValueContainer<E> pollWithMetadata(long timeout, TimeUnit unit)
+			throws InterruptedException {
+
+		final Date deadline = new Date(deadlineMillis(timeout, unit));
+
+		ValueContainer<E> head = null;
+		boolean stillWaiting = true;
+
+		while (stillWaiting) {
+			// Check if we can grab one
+			head = pollWithMetadata();
+			if (head != null)
+				break;
+
+			// Block until we are woken, or deadline
+			// Because we don't have a distributed lock around this condition,
+			// there is a race condition
+			// whereby we might miss a notify(). However, we can somewhat
+			// mitigate the problem, by using
+			// this in a polling fashion
+			stillWaiting = awaitUntil(condition, deadline);
+		}
+
+		return head;
+	}
+
+	@Override
+	public void updateStatus(long id, String newStatus) {
+		checkStatus(newStatus);
+		try {
+			Connection c = getConnection();
+			try {
+				executeStatusUpdate(c, getUpdateStatusQuery(), newStatus, new long[] { id }, 0, 1);
+			} finally {
+				c.close();
+			}
+
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Sets the same status of many items with UPDATE ... WHERE id IN (...),
+	 * in chunks of STATUS_BATCH_ROWS ids
+	 * @return number of items updated
+	 */
+	@Override
+	public int updateStatus(long[] ids, String newStatus) {
+		if (ids.length == 0)
+			return 0;
+		checkStatus(newStatus);
+
+		try {
+			Connection c = getConnection();
+			try {
+				return executeStatusUpdates(c, ids, newStatus);
+			} finally {
+				c.close();
+			}
+
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Sets statuses of many items, with one UPDATE ... WHERE id IN (...) per distinct status
+	 * @param statuses new status by item id
+	 * @return number of items updated
+	 */
+	@Override
+	public int updateStatuses(Map<Long, String> statuses) {
+		if (statuses.isEmpty())
+			return 0;
+
+		Map<String, List<Long>> byStatus = new LinkedHashMap<String, List<Long>>();
+		for (Map.Entry<Long, String> entry : statuses.entrySet()) {
+			List<Long> ids = byStatus.get(entry.getValue());
+			if (ids == null) {
+				checkStatus(entry.getValue());
+				ids = new ArrayList<Long>();
+				byStatus.put(entry.getValue(), ids);
+			}
+			ids.add(entry.getKey());
+		}
+
+		int updated = 0;
+		try {
+			Connection c = getConnection();
+			try {
+				for (Map.Entry<String, List<Long>> entry : byStatus.entrySet()) {
+					List<Long> ids = entry.getValue();
+					long[] array = new long[ids.size()];
+					for (int i = 0; i < array.length; i++) {
+						array[i] = ids.get(i);
+					}
+					updated += executeStatusUpdates(c, array, entry.getKey());
+				}
+			} finally {
+				c.close();
+			}
+
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+		return updated;
+	}
+
+	protected int executeStatusUpdates(Connection c, long[] ids, String newStatus) throws SQLException {
+		final QueryPlan plan = getQueryPlan();
+
+		int updated = 0;
+		for (int from = 0; from < ids.length; from += STATUS_BATCH_ROWS) {
+			int to = Math.min(ids.length, from + STATUS_BATCH_ROWS);
+			updated += executeStatusUpdate(c, appendIdList(plan.updateStatusBatch, to - from), newStatus, ids, from, to);
+		}
+		return updated;
+	}
+
+	/**
+	 * Sets status of ids[from, to), retrying deadlocks
+	 * @param query with status as the first parameter, followed by the ids
+	 * @return number of rows updated
+	 */
+	protected int executeStatusUpdate(Connection c, String query, String newStatus, long[] ids, int from, int to)
+			throws SQLException {
+		PreparedStatement s = c.prepareStatement(query);
+		try {
+			s.setString(1, newStatus);
+			for (int i = from; i < to; i++) {
+				s.setLong(i - from + 2, ids[i]);
+			}
+
+			int attempt = 0;
+			long delay = 0;
+			while (true) {
+				try {
+					return s.executeUpdate();
+				} catch (SQLException e) {
+					delay = backoff(e, ++attempt, delay);
+					if (delay < 0)
+						throw e;
+				}
+			}
+		} finally {
+			s.close();
+		}
+	}
+
+	/**
+	 * Returns acquired items back to the queue, so they could be polled again.
+	 * Items which are not held anymore (acked, or their lease ended) are skipped.
+	 * @param items previously polled items
+	 * @return number of items released
+	 */
+	@Override
+	public int release(List<ValueContainer<E>> items) {
+		if (items.isEmpty())
+			return 0;
+
+		final boolean counted = countedSize;
+		int released;
+		Connection c = null;
+		try {
+			c = getConnection();
+			if (counted)
+				c.setAutoCommit(false);
+
+			PreparedStatement s = c.prepareStatement(getReleaseBatchQuery(items.size()));
+			try {
+				s.setString(1, queueKey);
+				s.setString(2, nodeKey);
+				for (int i = 0; i < items.size(); i++) {
+					s.setLong(i + 3, items.get(i).id);
+				}
+				released = s.executeUpdate();
+
+				if (counted) {
+					adjustSize(c, released);
+					c.commit();
+				}
+			} finally {
+				s.close();
+			}
+
+		} catch (SQLException e) {
+			try { if (c != null && counted) c.rollback(); } catch (Exception ex) { }
+			throw new RuntimeException(e);
+
+		} finally {
+			closeConnection(c, counted);
+		}
+
+		if (released > 0)
+			wakeupThread();
+		return released;
+	}
+
+	/**
+	 * Marks a leased item as done, so it won't be re-queued.
+	 * Does nothing if leases are disabled.
+	 * @return false if the lease was not held anymore
+	 */
+	@Override
+	public boolean ack(long id) {
+		if (archiveOnAck)
+			return archive(id, leaseSeconds > 0);
+
+		if (leaseSeconds == 0)
+			return true;
+
+		return executeLeaseUpdate(getQueryPlan().ack, -1, id);
+	}
+
+	/**
+	 * Ends lease (if asked) and moves the row to the archive table in one transaction
+	 * @return false if the lease was not held anymore or the row is not acquired
+	 */
+	protected boolean archive(long id, boolean endLease) {
+		QueryPlan plan = getQueryPlan();
+		Connection c = null;
+		try {
+			c = getConnection();
+			c.setAutoCommit(false);
+
+			if (endLease) {
+				PreparedStatement s = c.prepareStatement(plan.ack);
+				try {
+					s.setLong(1, id);
+					s.setString(2, queueKey);
+					s.setString(3, nodeKey);
+					if (s.executeUpdate() == 0) {
+						c.rollback();
+						return false;
+					}
+				} finally {
+					s.close();
+				}
+			}
+
+			boolean archived = moveToArchive(c, plan, Collections.singletonList(id)) > 0;
+			c.commit();
+			return archived;
+
+		} catch (SQLException e) {
+			try { if (c != null) c.rollback(); } catch (Exception ex) { }
+			throw new RuntimeException(e);
+
+		} finally {
+			if (c != null) {
+				try {
+					c.setAutoCommit(true);
+					c.close();
+				} catch (Exception ex) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Moves completed rows (acquired, and acked if leases are enabled) to the
+	 * archive table, in transactions of archiveBatchSize rows, so the queue
+	 * table only holds pending and in flight rows.
+	 * Should be run periodically, see scheduleArchiver.
+	 * @return number of rows moved
+	 */
+	public int archiveCompleted() {
+		final int batchSize = archiveBatchSize;
+		final QueryPlan plan = getQueryPlan();
+
+		int total = 0;
+		Connection c = null;
+		try {
+			c = getConnection();
 			c.setAutoCommit(false);
-			SQLException lastException = null;
+
+			int moved;
 			do {
+				moved = 0;
+				PreparedStatement s = c.prepareStatement(plan.archiveSelect);
 				try {
-					return executePollWithMetadata(c, pollQuery);
+					s.setString(1, queueKey);
+					s.setInt(2, batchSize);
+
+					List<Long> ids = new ArrayList<Long>(batchSize);
+					ResultSet rs = s.executeQuery();
+					while (rs.next()) {
+						ids.add(rs.getLong(1));
+					}
+
+					if (!ids.isEmpty())
+						moved = moveToArchive(c, plan, ids);
+					c.commit();
+					total += moved;
+
+				} finally {
+					s.close();
 				}
-				catch(SQLException e) {
-					c.rollback();
-					lastException = e;
+			} while (moved == batchSize);
+
+		} catch (SQLException e) {
+			try { if (c != null) c.rollback(); } catch (Exception ex) { }
+			throw new RuntimeException(e);
+
+		} finally {
+			if (c != null) {
+				try {
+					c.setAutoCommit(true);
+					c.close();
+				} catch (Exception ex) {
 				}
 			}
-			while(lastException instanceof MySQLTransactionRollbackException);
-			if(lastException!=null) {
-				throw lastException;
+		}
+
+		if (total > 0)
+			LOG.debug("Archived {} rows of '{}'", total, queueName);
+		return total;
+	}
+
+	/**
+	 * Runs archiveCompleted periodically on the given executor
+	 * @return future to cancel the archiver
+	 */
+	public ScheduledFuture<?> scheduleArchiver(ScheduledExecutorService executor, long period, TimeUnit unit) {
+		return executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					archiveCompleted();
+				} catch (RuntimeException e) {
+					LOG.warn("Failed to archive completed rows of '" + queueName + "'", e);
+				}
 			}
-			return null;
+		}, period, period, unit);
+	}
+
+	/**
+	 * Removes archived entries of this queue older than specified number of days,
+	 * in chunks like cleanup.
+	 * @param days
+	 * @return number of rows deleted
+	 * @throws SQLException
+	 */
+	public long cleanupArchive(int days) throws SQLException {
+		return deleteInChunks(getQueryPlan().archiveCleanup, queueKey, days);
+	}
+
+	/**
+	 * Returns an item back to the queue, so it could be polled again straight away.
+	 * @return false if the item was not held anymore
+	 */
+	@Override
+	public boolean nack(long id) {
+		List<ValueContainer<E>> items = new ArrayList<ValueContainer<E>>(1);
+		items.add(new ValueContainer<E>(id, null, null));
+		return release(items) > 0;
+	}
+
+	/**
+	 * Sets status of processed items and acks them, with a single UPDATE.
+	 * Rows are archived afterwards if archiveOnAck is set.
+	 * @param status new status
+	 * @param ids of acquired items
+	 * @return number of items updated
+	 */
+	public int complete(String status, List<Long> ids) {
+		if (ids.isEmpty())
+			return 0;
+		checkStatus(status);
+
+		int updated;
+		try {
+			Connection c = getConnection();
+			try {
+				PreparedStatement s = c.prepareStatement(getCompleteBatchQuery(ids.size()));
+				try {
+					s.setString(1, status);
+					s.setString(2, queueKey);
+					s.setString(3, nodeKey);
+					for (int i = 0; i < ids.size(); i++) {
+						s.setLong(i + 4, ids.get(i));
+					}
+
+					int attempt = 0;
+					long delay = 0;
+					while (true) {
+						try {
+							updated = s.executeUpdate();
+							break;
+						} catch (SQLException e) {
+							delay = backoff(e, ++attempt, delay);
+							if (delay < 0)
+								throw e;
+						}
+					}
+				} finally {
+					s.close();
+				}
+			} finally {
+				c.close();
+			}
+
 		} catch (SQLException e) {
 			throw new RuntimeException(e);
 		}
-		finally {
+
+		if (archiveOnAck)
+			archive(ids);
+		return updated;
+	}
+
+	/**
+	 * Moves acquired rows to the archive table in one transaction
+	 * @return number of rows moved
+	 */
+	protected int archive(List<Long> ids) {
+		QueryPlan plan = getQueryPlan();
+		Connection c = null;
+		try {
+			c = getConnection();
+			c.setAutoCommit(false);
+
+			int moved = moveToArchive(c, plan, ids);
+			c.commit();
+			return moved;
+
+		} catch (SQLException e) {
+			try { if (c != null) c.rollback(); } catch (Exception ex) { }
+			throw new RuntimeException(e);
+
+		} finally {
 			if (c != null) {
 				try {
 					c.setAutoCommit(true);
@@ -255,132 +1997,426 @@ abstract class AbstractMySQLQueue<E> extends AbstractBlockingQueue<E> implements
 		}
 	}
 
+	/**
+	 * Copies acquired rows of this queue to the archive table and deletes them,
+	 * within the transaction of c
+	 * @return number of rows moved
+	 */
+	protected int moveToArchive(Connection c, QueryPlan plan, List<Long> ids) throws SQLException {
+		PreparedStatement s = c.prepareStatement(appendIdList(plan.archiveInsert, ids.size()));
+		try {
+			s.setString(1, queueKey);
+			for (int i = 0; i < ids.size(); i++) {
+				s.setLong(i + 2, ids.get(i));
+			}
+			s.executeUpdate();
+		} finally {
+			s.close();
+		}
+
+		s = c.prepareStatement(appendIdList(plan.archiveDelete, ids.size()));
+		try {
+			s.setString(1, queueKey);
+			for (int i = 0; i < ids.size(); i++) {
+				s.setLong(i + 2, ids.get(i));
+			}
+			return s.executeUpdate();
+		} finally {
+			s.close();
+		}
+	}
+
+	/**
+	 * Extends lease of an item to the given duration from now.
+	 * @return false if the lease was not held anymore
+	 */
 	@Override
-	public ValueContainer<E> takeWithMetadata() throws InterruptedException {
-		// We loop around trying to get a item, blocking at most a minute at
-		// a time this allows us to be interrupted
-		ValueContainer<E> head = null;
-		while (head == null) {
-			if (Thread.interrupted())
-				throw new InterruptedException();
+	public boolean extendLease(long id, long duration, TimeUnit unit) {
+		if (leaseSeconds == 0)
+			throw new IllegalStateException("Leases are not enabled");
 
-			head = pollWithMetadata(takeBlockingTime, TimeUnit.SECONDS);
+		long seconds = Math.max(1, unit.toSeconds(duration));
+		return executeLeaseUpdate(getQueryPlan().extendLease, seconds, id);
+	}
+
+	protected boolean executeLeaseUpdate(String query, long seconds, long id) {
+		try {
+			Connection c = getConnection();
+			try {
+				PreparedStatement s = c.prepareStatement(query);
+				try {
+					int index = 1;
+					if (seconds >= 0)
+						s.setLong(index++, seconds);
+					s.setLong(index++, id);
+					s.setString(index++, queueKey);
+					s.setString(index, nodeKey);
+					return s.executeUpdate() > 0;
+				} finally {
+					s.close();
+				}
+			} finally {
+				c.close();
+			}
+
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
 		}
-		return head;
+	}
+
+	/**
+	 * Re-queues items whose lease expired, in batches of leaseReaperBatchSize.
+	 * Should be run periodically, see scheduleLeaseReaper.
+	 * @return number of items re-queued
+	 */
+	public int reapExpiredLeases() {
+		final int batchSize = leaseReaperBatchSize;
+
+		final boolean counted = countedSize;
+		int total = 0;
+		Connection c = null;
+		try {
+			c = getConnection();
+			if (counted)
+				c.setAutoCommit(false);
+
+			PreparedStatement s = c.prepareStatement(getQueryPlan().reapLeases);
+			try {
+				s.setString(1, queueKey);
+				s.setInt(2, batchSize);
+
+				int reaped;
+				do {
+					reaped = s.executeUpdate();
+					if (counted) {
+						adjustSize(c, reaped);
+						c.commit();
+					}
+					total += reaped;
+					if (reaped > 0)
+						wakeupThread();
+				} while (reaped == batchSize);
+
+			} finally {
+				s.close();
+			}
+
+		} catch (SQLException e) {
+			try { if (c != null && counted) c.rollback(); } catch (Exception ex) { }
+			throw new RuntimeException(e);
+
+		} finally {
+			closeConnection(c, counted);
+		}
+
+		if (total > 0)
+			LOG.info("Re-queued {} items with expired lease from '{}'", total, queueName);
+		return total;
+	}
+
+	/**
+	 * Runs reapExpiredLeases periodically on the given executor
+	 * @return future to cancel the reaper
+	 */
+	public ScheduledFuture<?> scheduleLeaseReaper(ScheduledExecutorService executor, long period, TimeUnit unit) {
+		return executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					reapExpiredLeases();
+				} catch (RuntimeException e) {
+					LOG.warn("Failed to re-queue expired leases of '" + queueName + "'", e);
+				}
+			}
+		}, period, period, unit);
 	}
 
 	@Override
-	public ValueContainer<E> pollWithMetadata(long timeout, TimeUnit unit)
-			throws InterruptedException {
+	public String getStatus(long id) {
+		try {
+			Connection c = getConnection();
+			try {
+				PreparedStatement s = c.prepareStatement(getStatusQuery());
+				try {
+					s.setLong(1, id);
+					ResultSet rs = s.executeQuery();
+					if (rs.next())
+						return rs.getString(1);
+					return null;
+				} finally {
+					s.close();
+				}
+			} finally {
+				c.close();
+			}
 
-		final long deadlineMillis = System.currentTimeMillis()
-				+ unit.toMillis(timeout);
-		final Date deadline = new Date(deadlineMillis);
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
 
-		ValueContainer<E> head = null;
-		boolean stillWaiting = true;
+	@Override
+	public E peek() {
+		ValueContainer<E> item = peekWithMetadata();
+		return item != null ? item.value : null;
+	}
 
-		while (stillWaiting) {
-			// Check if we can grab one
-			head = pollWithMetadata();
-			if (head != null)
-				break;
+	@Override
+	public E poll() {
+		ValueContainer<E> item = pollWithMetadata();
+		return item != null ? item.value : null;
+	}
 
-			// Block until we are woken, or deadline
-			// Because we don't have a distributed lock around this condition,
-			// there is a race condition
-			// whereby we might miss a notify(). However, we can somewhat
-			// mitigate the problem, by using
-			// this in a polling fashion
-			stillWaiting = condition.awaitUntil(deadline);
+	@Override
+	public E take() throws InterruptedException {
+		ValueContainer<E> item = takeWithMetadata();
+		return item != null ? item.value : null;
+	}
+
+	@Override
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		ValueContainer<E> item = pollWithMetadata(timeout, unit);
+		return item != null ? item.value : null;
+	}
+
+	/**
+	 * Number of pending items. Reads the counter table if size is counted,
+	 * and may return a value up to sizeCacheTime old.
+	 */
+	@Override
+	public int size() {
+		final long cacheMillis = sizeCacheMillis;
+		if (cacheMillis > 0) {
+			long cachedAt = cachedSizeAt;
+			if (System.currentTimeMillis() - cachedAt < cacheMillis)
+				return cachedSize;
 		}
 
-		return head;
+		int size = countedSize
+				? querySize(getQueryPlan().counterSize)
+				: querySize(getSizeQuery());
+
+		if (cacheMillis > 0) {
+			cachedSize = size;
+			cachedSizeAt = System.currentTimeMillis();
+		}
+		return size;
+	}
+
+	protected int querySize(String query) {
+		try {
+			Connection c = getConnection();
+			try {
+				PreparedStatement s = c.prepareStatement(query);
+				try {
+					s.setString(1, queueKey);
+					ResultSet rs = s.executeQuery();
+					if (rs.next())
+						return (int) Math.min(Integer.MAX_VALUE, Math.max(0, rs.getLong(1)));
+
+					throw new RuntimeException("Failed to retreive size");
+				} finally {
+					s.close();
+				}
+
+			} finally {
+				c.close();
+			}
+
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Adds delta to the pending counter of this queue, in the caller transaction.
+	 * Does nothing if size is not counted.
+	 */
+	protected void adjustSize(Connection c, long delta) throws SQLException {
+		if (!countedSize || delta == 0)
+			return;
+
+		PreparedStatement s = c.prepareStatement(getQueryPlan().counterUpdate);
+		try {
+			s.setString(1, queueKey);
+			s.setInt(2, (int) (Thread.currentThread().getId() % sizeCounterStripes));
+			s.setLong(3, delta);
+			s.executeUpdate();
+		} finally {
+			s.close();
+		}
 	}
 
-	@Override
-	public void updateStatus(long id, String newStatus) {
+	/**
+	 * Recounts pending items into the counter table. Counter rows of this queue
+	 * stay locked until the count is committed, so concurrent adds and polls
+	 * wait instead of being lost.
+	 * @return number of pending items
+	 */
+	public int rebuildSizeCounter() {
+		final QueryPlan plan = getQueryPlan();
+		final int stripes = sizeCounterStripes;
+
+		Connection c = null;
 		try {
-			Connection c = ds.getConnection();
-			String updateStatusQuery = getUpdateStatusQuery();
+			c = getConnection();
+			c.setAutoCommit(false);
+
+			PreparedStatement s = c.prepareStatement(plan.counterReset);
 			try {
-				CallableStatement s = c.prepareCall(updateStatusQuery);
-				s.setString(1, newStatus);
-				s.setLong(2, id);
-				s.execute();
+				s.setString(1, queueKey);
+				s.executeUpdate();
 			} finally {
-				c.close();
+				s.close();
 			}
 
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
-		}
-	}
-
-	@Override
-	public String getStatus(long id) {
-		try {
-			Connection c = ds.getConnection();
-			String statusQuery = getStatusQuery();
+			int size;
+			s = c.prepareStatement(getSizeQuery());
 			try {
-				CallableStatement s = c.prepareCall(statusQuery);
-				s.setLong(1, id); // Acquired by me
+				s.setString(1, queueKey);
+				ResultSet rs = s.executeQuery();
+				rs.next();
+				size = rs.getInt(1);
+			} finally {
+				s.close();
+			}
 
-				if (s.execute()) {
-					ResultSet rs = s.getResultSet();
-					if (rs != null && rs.next()) {
-						return rs.getString(1);
-					}
+			// Creates all stripes up front, so updates never race to insert them
+			s = c.prepareStatement(plan.counterUpdate);
+			try {
+				for (int i = 0; i < stripes; i++) {
+					s.setString(1, queueKey);
+					s.setInt(2, i);
+					s.setLong(3, i == 0 ? size : 0);
+					s.addBatch();
 				}
-				return null;
+				s.executeBatch();
 			} finally {
-				c.close();
+				s.close();
 			}
 
+			c.commit();
+			cachedSizeAt = 0;
+			return size;
+
 		} catch (SQLException e) {
+			try { if (c != null) c.rollback(); } catch (Exception ex) { }
 			throw new RuntimeException(e);
+
+		} finally {
+			closeConnection(c, true);
 		}
 	}
 
-	@Override
-	public E peek() {
-		ValueContainer<E> item = peekWithMetadata();
-		return item != null ? item.value : null;
+	/**
+	 * Pending items in poll order. Does not acquire anything.
+	 * Weakly consistent: pages of browsePageSize rows are read on demand
+	 * by (priority, id) keyset, so items added or polled meanwhile may or
+	 * may not be seen. Memory use does not depend on the queue length.
+	 */
+	public Iterator<ValueContainer<E>> iteratorWithMetadata() {
+		return new BrowseIterator(browsePageSize);
 	}
 
-	@Override
-	public E poll() {
-		ValueContainer<E> item = pollWithMetadata();
-		return item != null ? item.value : null;
+	/**
+	 * Stream over iteratorWithMetadata. Values are deserialized when first read.
+	 */
+	public Stream<ValueContainer<E>> streamWithMetadata() {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iteratorWithMetadata(),
+				Spliterator.ORDERED | Spliterator.NONNULL), false);
 	}
 
+	/**
+	 * Values of pending items in poll order, see iteratorWithMetadata
+	 */
 	@Override
-	public E take() throws InterruptedException {
-		ValueContainer<E> item = takeWithMetadata();
-		return item != null ? item.value : null;
-	}
+	public Iterator<E> iterator() {
+		final Iterator<ValueContainer<E>> it = iteratorWithMetadata();
+		return new Iterator<E>() {
+			@Override
+			public boolean hasNext() {
+				return it.hasNext();
+			}
 
-	@Override
-	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
-		ValueContainer<E> item = pollWithMetadata(timeout, unit);
-		return item != null ? item.value : null;
+			@Override
+			public E next() {
+				return it.next().getValue();
+			}
+		};
 	}
 
-	@Override
-	public int size() {
-		try {
-			Connection c = ds.getConnection();
-			try {
-				PreparedStatement s = c.prepareStatement(getSizeQuery());
-				s.setString(1, queueName);
-				s.execute();
+	protected class BrowseIterator implements Iterator<ValueContainer<E>> {
+		final int pageSize;
 
-				ResultSet rs = s.getResultSet();
-				if (rs != null && rs.next())
-					return rs.getInt(1);
+		List<ValueContainer<E>> page = Collections.emptyList();
+		int index = 0;
+		boolean last = false;
 
-				throw new RuntimeException("Failed to retreive size");
+		/**
+		 * Stored (inverted) priority and id of the last row read
+		 */
+		long lastPriority = Long.MIN_VALUE;
+		long lastId = -1;
+
+		BrowseIterator(int pageSize) {
+			this.pageSize = pageSize;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (index < page.size())
+				return true;
+			if (last)
+				return false;
+
+			page = readPage(lastPriority, lastId, pageSize);
+			index = 0;
+			last = page.size() < pageSize;
+			if (!page.isEmpty()) {
+				ValueContainer<E> tail = page.get(page.size() - 1);
+				lastPriority = -tail.priority;
+				lastId = tail.id;
+			}
+			return !page.isEmpty();
+		}
+
+		@Override
+		public ValueContainer<E> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return page.get(index++);
+		}
+	}
 
+	/**
+	 * Reads pending rows following the given key, values are deserialized lazily
+	 */
+	protected List<ValueContainer<E>> readPage(long afterPriority, long afterId, int limit) {
+		try {
+			Connection c = getConnection();
+			try {
+				PreparedStatement s = c.prepareStatement(getQueryPlan().browse);
+				try {
+					s.setString(1, queueKey);
+					s.setLong(2, afterPriority);
+					s.setLong(3, afterPriority);
+					s.setLong(4, afterId);
+					s.setInt(5, limit);
+
+					List<ValueContainer<E>> page = new ArrayList<ValueContainer<E>>(limit);
+					ResultSet rs = s.executeQuery();
+					while (rs.next()) {
+						if (serializator == null) {
+							page.add(valueContainerFromResult(rs));
+						} else {
+							page.add(new LazyValueContainer<E>(rs.getLong(1), rs.getString(2),
+									rs.getLong(3), rs.getBytes(4), serializator));
+						}
+					}
+					return page;
+				} finally {
+					s.close();
+				}
 			} finally {
 				c.close();
 			}
@@ -392,19 +2428,55 @@ abstract class AbstractMySQLQueue<E> extends AbstractBlockingQueue<E> implements
 
 	@Override
 	public void clear() {
-		Connection c;
+		final boolean counted = countedSize;
+		Connection c = null;
 		try {
-			c = ds.getConnection();
+			c = getConnection();
+			if (counted)
+				c.setAutoCommit(false);
+
+			PreparedStatement s = c.prepareStatement(getClearQuery());
 			try {
-				CallableStatement s = c.prepareCall(getClearQuery());
-				s.setString(1, queueName);
+				s.setString(1, queueKey);
 				s.execute();
-
 			} finally {
-				c.close();
+				s.close();
+			}
+
+			if (counted) {
+				s = c.prepareStatement(getQueryPlan().counterReset);
+				try {
+					s.setString(1, queueKey);
+					s.execute();
+				} finally {
+					s.close();
+				}
+				c.commit();
 			}
+
 		} catch (SQLException e) {
+			try { if (c != null && counted) c.rollback(); } catch (Exception ex) { }
 			throw new RuntimeException(e);
+
+		} finally {
+			closeConnection(c, counted);
+		}
+		cachedSizeAt = 0;
+		signalNotFull(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Closes connection, restoring auto commit if it was turned off
+	 */
+	protected static void closeConnection(Connection c, boolean transaction) {
+		if (c == null)
+			return;
+
+		try {
+			if (transaction)
+				c.setAutoCommit(true);
+			c.close();
+		} catch (Exception ex) {
 		}
 	}
 
@@ -428,41 +2500,99 @@ abstract class AbstractMySQLQueue<E> extends AbstractBlockingQueue<E> implements
 		cleanupAll(10);
 	}
 
+	/**
+	 * Removes old acquired entries of this queue in chunks of cleanupBatchSize,
+	 * keeping within cleanupRowsPerSecond. Stops early if the thread is interrupted.
+	 */
 	@Override
-	public void cleanup(int days) throws SQLException {
-		Connection c = ds.getConnection();
-		try {
-			CallableStatement s = c.prepareCall(getCleanupAllQuery());
-			s.setString(1, queueName);
-			s.setInt(2, days);
-			s.execute();
-
-		} finally {
-			c.close();
-		}
+	public long cleanup(int days) throws SQLException {
+		return deleteInChunks(getCleanupQuery(), queueKey, days);
 	}
 
+	/**
+	 * Removes old acquired entries of all queues in chunks of cleanupBatchSize,
+	 * keeping within cleanupRowsPerSecond. Stops early if the thread is interrupted.
+	 */
 	@Override
-	public void cleanupAll(int days) throws SQLException {
-		Connection c = ds.getConnection();
+	public long cleanupAll(int days) throws SQLException {
+		return deleteInChunks(getCleanupAllQuery(), null, days);
+	}
+
+	/**
+	 * Runs a DELETE ... LIMIT query until it deletes less than a full chunk,
+	 * and reports the rows deleted to the queue metrics. Stops between chunks
+	 * if the thread is interrupted, keeping its interrupt status.
+	 * @param query cleanup query
+	 * @param queueName bound as first parameter, unless null
+	 * @param days
+	 * @return number of rows deleted, so far if interrupted
+	 * @throws SQLException
+	 */
+	protected long deleteInChunks(String query, String queueName, int days) throws SQLException {
+		final int batchSize = cleanupBatchSize;
+		final int rowsPerSecond = cleanupRowsPerSecond;
+		final long start = System.nanoTime();
+
+		long total = 0;
+		Connection c = getConnection();
 		try {
-			CallableStatement s = c.prepareCall(getCleanupAllQuery());
-			s.setInt(1, days);
-			s.execute();
+			PreparedStatement s = c.prepareStatement(query);
+			try {
+				int index = 1;
+				if (queueName != null)
+					s.setString(index++, queueName);
+				s.setInt(index++, days);
+				s.setInt(index, batchSize);
+
+				int deleted;
+				do {
+					// Checked between chunks, an unthrottled cleanup never sleeps
+					if (Thread.interrupted())
+						throw new InterruptedException();
+
+					long chunkStart = System.currentTimeMillis();
+					deleted = s.executeUpdate();
+					total += deleted;
+
+					LOG.debug("Cleanup of {} deleted {} rows so far", tableName, total);
+
+					if (deleted == batchSize && rowsPerSecond > 0) {
+						long pause = deleted * 1000L / rowsPerSecond - (System.currentTimeMillis() - chunkStart);
+						if (pause > 0)
+							Thread.sleep(pause);
+					}
+				} while (deleted == batchSize);
+
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				LOG.info("Cleanup of {} interrupted after deleting {} rows", tableName, total);
+				return total;
 
+			} finally {
+				s.close();
+			}
 		} finally {
 			c.close();
+			metrics.recordCleanup(System.nanoTime() - start, total);
 		}
+
+		if (total > 0)
+			LOG.info("Cleanup of {} deleted {} rows in {}ms", new Object[] {tableName, total,
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)});
+		return total;
 	}
 
 	/**
-	 * Bind parameters to add query
+	 * Bind parameters of a single add query row, except the value itself
+	 * which is always the last column of the row.
 	 * @param value to add
 	 * @param statement
+	 * @param index of the first parameter of the row
+	 * @return index of the value parameter
 	 * @throws SQLException
 	 */
-	abstract protected void setAddParameters(E value, int priority,
-			PreparedStatement statement) throws SQLException;
+	abstract protected int setAddParameters(E value, int priority,
+			PreparedStatement statement, int index) throws SQLException;
 
 	/**
 	 * Binds table name to query
@@ -470,7 +2600,47 @@ abstract class AbstractMySQLQueue<E> extends AbstractBlockingQueue<E> implements
 	 * @return query with table name binded
 	 */
 	protected String setTable(String query) {
-		return query.replaceAll(tableNamePlaceholder, tableName);
+		return query.replace(tableNamePlaceholder, tableName);
+	}
+
+	/**
+	 * Returns SQL of this queue resolved for current table and poll strategy.
+	 * Built once, subclasses changing query templates after first use must call invalidateQueryPlan.
+	 * @return query plan
+	 */
+	protected QueryPlan getQueryPlan() {
+		QueryPlan plan = queryPlan;
+		if (plan == null) {
+			// Racing threads build equal plans, any of them can win
+			plan = new QueryPlan(this, tableName, archiveTableName, counterTableName, pollStrategy, leaseSeconds, layout);
+			queryPlan = plan;
+		}
+		return plan;
+	}
+
+	/**
+	 * Forces SQL to be resolved again on next use
+	 */
+	protected void invalidateQueryPlan() {
+		queryPlan = null;
+	}
+
+	/**
+	 * @return queue table name without the escaping quotes
+	 */
+	protected String plainTableName() {
+		return tableName.substring(1, tableName.length() - 1);
+	}
+
+	/**
+	 * Rejects a status the status column does not accept, instead of MySQL
+	 * storing '' or failing the statement
+	 * @param status
+	 */
+	protected void checkStatus(String status) {
+		Set<String> allowed = statuses;
+		if (allowed != null && !allowed.contains(status))
+			throw new IllegalArgumentException("Status '" + status + "' is not one of " + allowed);
 	}
 
 	/**
@@ -482,11 +2652,116 @@ abstract class AbstractMySQLQueue<E> extends AbstractBlockingQueue<E> implements
 		return "`" + tableName.replaceAll("`", "") + "`";
 	}
 
+	/**
+	 * Sleeps before retrying a statement or transaction which failed, if it was
+	 * rolled back by a deadlock or lock wait timeout and the retry policy allows it.
+	 * @param e failure of the last attempt
+	 * @param attempt number of attempts made so far, from 1
+	 * @param delay backoff before the last attempt in nanoseconds, 0 for the first one
+	 * @return backoff slept in nanoseconds, or -1 to give up and throw e
+	 */
+	protected long backoff(SQLException e, int attempt, long delay) {
+		if (!(e instanceof MySQLTransactionRollbackException))
+			return -1;
+
+		long next = retryPolicy.nextDelay(attempt, delay);
+		if (next < 0) {
+			metrics.recordRetryExhausted();
+			LOG.warn("Giving up on '" + queueName + "' after " + attempt + " attempts: " + e.getMessage());
+			return -1;
+		}
+
+		metrics.recordRetry(next);
+		if (next > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(next);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return -1;
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Connection of the session running on this thread, or a new one from the DataSource.
+	 * Must be closed by the caller either way.
+	 */
+	protected Connection getConnection() throws SQLException {
+		QueueSession<E> current = session.get();
+		return current != null ? current.connection() : ds.getConnection();
+	}
+
+	/**
+	 * Opens a session pinning one connection, for a single consumer thread
+	 */
+	public QueueSession<E> openSession() {
+		return openSession(64);
+	}
+
+	/**
+	 * Opens a session pinning one connection, for a single consumer thread
+	 * @param maxStatements max number of prepared statements the session keeps open
+	 */
+	public QueueSession<E> openSession(int maxStatements) {
+		return new QueueSession<E>(this, maxStatements);
+	}
+
 	/**
 	 * Wakes up one thread.
 	 */
 	protected void wakeupThread() {
-		condition.signal();
+		signalCondition(condition, false);
+	}
+
+	/**
+	 * Signals a queue condition, recording the signal
+	 * @return number of sleeping connections killed, 0 if unknown
+	 */
+	protected int signalCondition(Condition condition, boolean all) {
+		int killed = 0;
+		if (condition instanceof MySQLSleepBasedCondition) {
+			killed = ((MySQLSleepBasedCondition) condition).wake(all);
+		} else if (all) {
+			condition.signalAll();
+		} else {
+			condition.signal();
+		}
+		metrics.recordSignal(killed);
+		return killed;
+	}
+
+	/**
+	 * Sleeps on a queue condition, recording the wait. Inside a session
+	 * the pinned connection is used to sleep.
+	 * @return false if the deadline elapsed
+	 */
+	protected boolean awaitUntil(Condition condition, Date deadline) throws InterruptedException {
+		final long start = System.nanoTime();
+		final QueueSession<E> current = session.get();
+
+		boolean signalled;
+		if (current != null && condition instanceof MySQLSleepBasedCondition) {
+			try {
+				signalled = ((MySQLSleepBasedCondition) condition).awaitUntil(current.connection(), deadline);
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
+		} else {
+			signalled = condition.awaitUntil(deadline);
+		}
+		metrics.recordWait(System.nanoTime() - start, signalled);
+		return signalled;
+	}
+
+	/**
+	 * Wakes up producers waiting for the given number of freed slots. Does nothing if unbounded.
+	 */
+	protected void signalNotFull(int freed) {
+		if (freed < 1 || capacity == Integer.MAX_VALUE)
+			return;
+
+		signalCondition(notFull, freed > 1);
 	}
 
 	/**
@@ -526,86 +2801,221 @@ abstract class AbstractMySQLQueue<E> extends AbstractBlockingQueue<E> implements
 	 */
 	protected void setValueToStatment(PreparedStatement s, int index, E obj)
 			throws SQLException {
+		setStoredValueToStatment(s, index, toStoredValue(obj));
+	}
+
+	/**
+	 * Converts value to the form stored in database. Serialized bytes if serializator defined, otherwise value itself.
+	 * @param obj
+	 * @return
+	 */
+	protected Object toStoredValue(E obj) {
+		if (serializator == null) {
+			return obj;
+		} else {
+			return serializator.serialize(obj);
+		}
+	}
+
+	/**
+	 * Sets value returned by toStoredValue to statement.
+	 * @param s
+	 * @param index
+	 * @param stored
+	 * @throws SQLException
+	 */
+	protected void setStoredValueToStatment(PreparedStatement s, int index, Object stored)
+			throws SQLException {
 		if (serializator == null) {
-			s.setObject(index, obj);
+			s.setObject(index, stored);
 		} else {
-			s.setBytes(index, serializator.serialize(obj));
+			s.setBytes(index, (byte[]) stored);
 		}
 	}
 
+	/**
+	 * Rough size of a stored value on the wire, used to split bulk inserts
+	 * @param stored
+	 * @return size in bytes
+	 */
+	protected int estimateStoredSize(Object stored) {
+		if (stored instanceof byte[])
+			return ((byte[]) stored).length;
+		if (stored instanceof CharSequence)
+			return ((CharSequence) stored).length() * 3; // utf8 worst case
+		return 32;
+	}
+
+	/**
+	 * Rough size of a row on the wire without its value
+	 * @return size in bytes
+	 */
+	protected int estimateRowOverhead() {
+		return addRowQuery.length() + (queueName.length() + me.length()) * 3 + 64;
+	}
+
 	/**
 	 * Returns sql query for add operation with binded table name
 	 * @return sql
 	 */
 	protected String getAddQuery() {
-		return setTable(addQuery);
+		return getQueryPlan().add;
 	}
 
 	/**
-	 * Returns sql query for add operation with binded table name
+	 * Returns sql query inserting multiple rows with binded table name
+	 * @param rows number of rows
+	 * @return sql
+	 */
+	protected String getBulkAddQuery(int rows) {
+		return getBulkAddQuery(rows, false);
+	}
+
+	/**
+	 * Returns sql query inserting multiple rows with binded table name
+	 * @param rows number of rows
+	 * @param dedup if rows have dedup keys
+	 * @return sql
+	 */
+	protected String getBulkAddQuery(int rows, boolean dedup) {
+		QueryPlan plan = getQueryPlan();
+		String add = dedup ? plan.addDedup : plan.add;
+		String addRow = dedup ? plan.addDedupRow : plan.addRow;
+
+		StringBuilder sb = new StringBuilder(add.length() + (addRow.length() + 2) * (rows - 1));
+		sb.append(add);
+		for (int i = 1; i < rows; i++) {
+			sb.append(", ").append(addRow);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns sql query for peek operation with binded table name
 	 * @return sql
 	 */
 	protected String getPeekQuery() {
-		return setTable(peekQuery);
+		return getQueryPlan().peek;
 	}
 
 	/**
-	 * Returns sql array for poll operation with binded table name
+	 * Returns sql array for poll operation with binded table name.
+	 * Shared, must not be modified.
 	 * @return sql array
 	 */
 	protected String[] getPollQuery() {
-		String[] queries = new String[pollQuery.length];
-		for (int i = 0; i < queries.length; i++) {
-			queries[i] = setTable(pollQuery[i]);
+		return getQueryPlan().poll;
+	}
+
+	/**
+	 * Returns sql locking top rows with binded table name
+	 * @return sql
+	 */
+	protected String getPollBatchQuery() {
+		return getQueryPlan().pollBatch;
+	}
+
+	/**
+	 * Returns sql acquiring top rows by claim token with binded table name
+	 * @return sql
+	 */
+	protected String getClaimQuery() {
+		return getQueryPlan().claim;
+	}
+
+	/**
+	 * Returns sql reading rows acquired by claim token with binded table name
+	 * @return sql
+	 */
+	protected String getClaimedQuery() {
+		return getQueryPlan().claimed;
+	}
+
+	/**
+	 * Returns sql acquiring rows by id with binded table name
+	 * @param rows number of ids
+	 * @return sql
+	 */
+	protected String getAcquireBatchQuery(int rows) {
+		return appendIdList(getQueryPlan().acquireBatch, rows);
+	}
+
+	/**
+	 * Returns sql releasing rows by id with binded table name
+	 * @param rows number of ids
+	 * @return sql
+	 */
+	protected String getReleaseBatchQuery(int rows) {
+		return appendIdList(getQueryPlan().releaseBatch, rows);
+	}
+
+	protected String getCompleteBatchQuery(int rows) {
+		return appendIdList(getQueryPlan().completeBatch, rows);
+	}
+
+	/**
+	 * Appends list of id parameters to query ending with IN
+	 * @param query
+	 * @param rows number of ids
+	 * @return query followed by (?, ?, ...)
+	 */
+	protected static String appendIdList(String query, int rows) {
+		StringBuilder sb = new StringBuilder(query.length() + rows * 3 + 2);
+		sb.append(query).append('(');
+		for (int i = 0; i < rows; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append('?');
 		}
-		return queries;
+		sb.append(')');
+		return sb.toString();
 	}
 
 	/**
 	 * Returns sql for size operation with binded table name
-	 * @return sql array
+	 * @return sql
 	 */
 	protected String getSizeQuery() {
-		return setTable(sizeQuery);
+		return getQueryPlan().size;
 	}
 
 	/**
 	 * Returns sql for set status operation with binded table name
-	 * @return sql array
+	 * @return sql
 	 */
 	protected String getUpdateStatusQuery() {
-		return setTable(updateStatusQuery);
+		return getQueryPlan().updateStatus;
 	}
 
 	/**
 	 * Returns sql for get status operation with binded table name
-	 * @return sql array
+	 * @return sql
 	 */
 	protected String getStatusQuery() {
-		return setTable(getStatusQuery);
+		return getQueryPlan().getStatus;
 	}
 
 	/**
 	 * Returns sql for clear operation with binded table name
-	 * @return sql array
+	 * @return sql
 	 */
 	protected String getClearQuery() {
-		return setTable(clearQuery);
+		return getQueryPlan().clear;
 	}
 
 	/**
 	 * Returns sql for cleanup operation with binded table name
-	 * @return sql array
+	 * @return sql
 	 */
 	protected String getCleanupQuery() {
-		return setTable(cleanupQuery);
+		return getQueryPlan().cleanup;
 	}
 
 	/**
 	 * Returns sql for cleanup all operation with binded table name
-	 * @return sql array
+	 * @return sql
 	 */
 	protected String getCleanupAllQuery() {
-		return setTable(cleanupAllQuery);
+		return getQueryPlan().cleanupAll;
 	}
 }
@@ -0,0 +1,498 @@
+package net.bramp.db_patterns.queues;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non blocking view of a queue. Every operation returns a CompletableFuture
+ * and runs on a small bounded I/O pool, so callers never block on JDBC.
+ * <p>
+ * Concurrent requests are coalesced: adds are written with one bulk insert,
+ * non blocking polls with one batch poll, and all takers share a single
+ * dispatcher which holds one connection waiting on the queue condition.
+ * Thousands of pending takes cost a future each, not a thread and a connection.
+ *
+ * @param <E>
+ * @author bramp
+ */
+public class AsyncMySQLQueue<E> implements Closeable {
+
+	final static Logger LOG = LoggerFactory.getLogger(AsyncMySQLQueue.class);
+
+	final AbstractMySQLQueue<E> queue;
+
+	final ThreadPoolExecutor io;
+	final ExecutorService dispatcher;
+	final ScheduledExecutorService timer;
+
+	final Batcher<PendingAdd<E>> adds = new Batcher<PendingAdd<E>>() {
+		@Override
+		void flush(List<PendingAdd<E>> batch) {
+			flushAdds(batch);
+		}
+
+		@Override
+		void fail(PendingAdd<E> add, Throwable e) {
+			add.future.completeExceptionally(e);
+		}
+	};
+
+	final Batcher<CompletableFuture<ValueContainer<E>>> polls = new Batcher<CompletableFuture<ValueContainer<E>>>() {
+		@Override
+		void flush(List<CompletableFuture<ValueContainer<E>>> batch) {
+			flushPolls(batch);
+		}
+
+		@Override
+		void fail(CompletableFuture<ValueContainer<E>> future, Throwable e) {
+			future.completeExceptionally(e);
+		}
+	};
+
+	/**
+	 * Pending takes and polls with a timeout, in arrival order
+	 */
+	final ConcurrentLinkedQueue<CompletableFuture<ValueContainer<E>>> waiters =
+			new ConcurrentLinkedQueue<CompletableFuture<ValueContainer<E>>>();
+	final AtomicBoolean dispatching = new AtomicBoolean(false);
+
+	volatile boolean closed = false;
+
+	/**
+	 * @param queue queue to run operations on
+	 * @param ioThreads number of threads, and so connections, used for queue operations
+	 * @param maxPendingTasks bound of the I/O task queue, further requests fail with RejectedExecutionException
+	 */
+	public AsyncMySQLQueue(final AbstractMySQLQueue<E> queue, int ioThreads, int maxPendingTasks) {
+		if (ioThreads < 1)
+			throw new IllegalArgumentException("ioThreads must be positive");
+		if (maxPendingTasks < 1)
+			throw new IllegalArgumentException("maxPendingTasks must be positive");
+
+		this.queue = queue;
+		this.io = new ThreadPoolExecutor(ioThreads, ioThreads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(maxPendingTasks), threadFactory("async-io-" + queue.queueName));
+		this.dispatcher = Executors.newSingleThreadExecutor(threadFactory("async-take-" + queue.queueName));
+		this.timer = Executors.newSingleThreadScheduledExecutor(threadFactory("async-timer-" + queue.queueName));
+	}
+
+	/**
+	 * Uses 4 I/O threads and up to 10000 pending tasks
+	 */
+	public AsyncMySQLQueue(AbstractMySQLQueue<E> queue) {
+		this(queue, 4, 10000);
+	}
+
+	static ThreadFactory threadFactory(final String name) {
+		final AtomicInteger counter = new AtomicInteger(0);
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + counter.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	public AbstractMySQLQueue<E> getQueue() {
+		return queue;
+	}
+
+	public CompletableFuture<Boolean> addAsync(E value) {
+		return addAsync(value, ValueContainer.DEFAULT_PRIORRITY);
+	}
+
+	/**
+	 * Concurrent adds are written together by a single bulk insert
+	 */
+	public CompletableFuture<Boolean> addAsync(E value, int priority) {
+		PendingAdd<E> add = new PendingAdd<E>(value, priority);
+		adds.submit(add);
+		return add.future;
+	}
+
+	public CompletableFuture<Boolean> addAllAsync(Collection<? extends E> values) {
+		return addAllAsync(values, ValueContainer.DEFAULT_PRIORRITY);
+	}
+
+	public CompletableFuture<Boolean> addAllAsync(final Collection<? extends E> values, final int priority) {
+		return submit(() -> queue.addAll(values, priority));
+	}
+
+	/**
+	 * Completes with the head of the queue, or null if it is empty.
+	 * Concurrent polls are served by a single batch poll.
+	 */
+	public CompletableFuture<ValueContainer<E>> pollAsync() {
+		CompletableFuture<ValueContainer<E>> future = new CompletableFuture<ValueContainer<E>>();
+		polls.submit(future);
+		return future;
+	}
+
+	/**
+	 * Completes with the head of the queue once available, or null after the timeout
+	 */
+	public CompletableFuture<ValueContainer<E>> pollAsync(long timeout, TimeUnit unit) {
+		final CompletableFuture<ValueContainer<E>> future = addWaiter(new CompletableFuture<ValueContainer<E>>());
+		try {
+			timer.schedule(() -> future.complete(null), timeout, unit);
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Completes with the head of the queue once available.
+	 * Cancel the future to stop waiting.
+	 */
+	public CompletableFuture<ValueContainer<E>> takeAsync() {
+		return addWaiter(new CompletableFuture<ValueContainer<E>>());
+	}
+
+	public CompletableFuture<List<ValueContainer<E>>> pollBatchAsync(final int n) {
+		return submit(() -> queue.pollBatchWithMetadata(n));
+	}
+
+	public CompletableFuture<ValueContainer<E>> peekAsync() {
+		return submit(() -> queue.peekWithMetadata());
+	}
+
+	public CompletableFuture<Integer> releaseAsync(final List<ValueContainer<E>> items) {
+		return submit(() -> queue.release(items));
+	}
+
+	public CompletableFuture<Boolean> ackAsync(final long id) {
+		return submit(() -> queue.ack(id));
+	}
+
+	public CompletableFuture<Boolean> nackAsync(final long id) {
+		return submit(() -> queue.nack(id));
+	}
+
+	public CompletableFuture<Boolean> extendLeaseAsync(final long id, final long duration, final TimeUnit unit) {
+		return submit(() -> queue.extendLease(id, duration, unit));
+	}
+
+	public CompletableFuture<Void> updateStatusAsync(final long id, final String newStatus) {
+		return submit(() -> {
+			queue.updateStatus(id, newStatus);
+			return null;
+		});
+	}
+
+	public CompletableFuture<String> getStatusAsync(final long id) {
+		return submit(() -> queue.getStatus(id));
+	}
+
+	public CompletableFuture<Integer> sizeAsync() {
+		return submit(() -> queue.size());
+	}
+
+	/**
+	 * Runs task on the I/O pool
+	 */
+	protected <T> CompletableFuture<T> submit(final Callable<T> task) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		try {
+			execute(io, () -> {
+				if (future.isDone())
+					return;
+				try {
+					future.complete(task.call());
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * @throws RejectedExecutionException if the executor is saturated or the queue is closed
+	 */
+	protected void execute(ExecutorService executor, Runnable task) {
+		if (closed)
+			throw new RejectedExecutionException("Queue is closed");
+		executor.execute(task);
+	}
+
+	/**
+	 * Collects concurrent requests, flushed together by one I/O task
+	 */
+	abstract class Batcher<T> {
+		final ConcurrentLinkedQueue<T> pending = new ConcurrentLinkedQueue<T>();
+		final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+		void submit(T request) {
+			pending.add(request);
+			schedule();
+		}
+
+		void schedule() {
+			if (pending.isEmpty() || !scheduled.compareAndSet(false, true))
+				return;
+
+			try {
+				execute(io, this::run);
+			} catch (RejectedExecutionException e) {
+				scheduled.set(false);
+				T request;
+				while ((request = pending.poll()) != null) {
+					fail(request, e);
+				}
+			}
+		}
+
+		void run() {
+			try {
+				final int max = queue.getBulkInsertRows();
+				List<T> batch = new ArrayList<T>();
+				T request;
+				while (batch.size() < max && (request = pending.poll()) != null) {
+					batch.add(request);
+				}
+				if (!batch.isEmpty())
+					flush(batch);
+			} finally {
+				scheduled.set(false);
+			}
+			// Requests which arrived during the flush
+			schedule();
+		}
+
+		abstract void flush(List<T> batch);
+
+		abstract void fail(T request, Throwable e);
+	}
+
+	static class PendingAdd<E> {
+		final E value;
+		final int priority;
+		final CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+
+		PendingAdd(E value, int priority) {
+			this.value = value;
+			this.priority = priority;
+		}
+	}
+
+	/**
+	 * Writes adds with one bulk insert per priority
+	 */
+	protected void flushAdds(List<PendingAdd<E>> batch) {
+		Map<Integer, List<PendingAdd<E>>> byPriority = new LinkedHashMap<Integer, List<PendingAdd<E>>>();
+		for (PendingAdd<E> add : batch) {
+			List<PendingAdd<E>> group = byPriority.get(add.priority);
+			if (group == null) {
+				group = new ArrayList<PendingAdd<E>>();
+				byPriority.put(add.priority, group);
+			}
+			group.add(add);
+		}
+
+		for (Map.Entry<Integer, List<PendingAdd<E>>> entry : byPriority.entrySet()) {
+			List<PendingAdd<E>> group = entry.getValue();
+			List<E> values = new ArrayList<E>(group.size());
+			for (PendingAdd<E> add : group) {
+				values.add(add.value);
+			}
+
+			try {
+				queue.addAll(values, entry.getKey());
+				for (PendingAdd<E> add : group) {
+					add.future.complete(Boolean.TRUE);
+				}
+			} catch (RuntimeException e) {
+				for (PendingAdd<E> add : group) {
+					add.future.completeExceptionally(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Serves concurrent non blocking polls with one batch poll
+	 */
+	protected void flushPolls(List<CompletableFuture<ValueContainer<E>>> batch) {
+		List<ValueContainer<E>> items;
+		try {
+			items = queue.pollBatchWithMetadata(batch.size());
+		} catch (RuntimeException e) {
+			for (CompletableFuture<ValueContainer<E>> future : batch) {
+				future.completeExceptionally(e);
+			}
+			return;
+		}
+
+		List<ValueContainer<E>> unclaimed = handOut(batch.iterator(), items);
+		for (CompletableFuture<ValueContainer<E>> future : batch) {
+			future.complete(null);
+		}
+		releaseUnclaimed(unclaimed);
+	}
+
+	/**
+	 * Completes futures in order with items. Futures already done (cancelled,
+	 * timed out) are skipped, and removed from the iterator.
+	 * @return items nobody took
+	 */
+	protected List<ValueContainer<E>> handOut(Iterator<CompletableFuture<ValueContainer<E>>> futures,
+			List<ValueContainer<E>> items) {
+		int i = 0;
+		while (i < items.size() && futures.hasNext()) {
+			CompletableFuture<ValueContainer<E>> future = futures.next();
+			if (future.complete(items.get(i)))
+				i++;
+			futures.remove();
+		}
+		return items.subList(i, items.size());
+	}
+
+	protected void releaseUnclaimed(List<ValueContainer<E>> items) {
+		if (items.isEmpty())
+			return;
+		try {
+			queue.release(new ArrayList<ValueContainer<E>>(items));
+		} catch (RuntimeException e) {
+			LOG.warn("Failed to release " + items.size() + " items of '" + queue.queueName + "'", e);
+		}
+	}
+
+	/**
+	 * Registers a waiter and makes sure the dispatcher runs
+	 */
+	protected CompletableFuture<ValueContainer<E>> addWaiter(CompletableFuture<ValueContainer<E>> future) {
+		waiters.add(future);
+		try {
+			dispatch();
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	protected void dispatch() {
+		if (dispatching.compareAndSet(false, true)) {
+			try {
+				execute(dispatcher, this::runDispatcher);
+			} catch (RejectedExecutionException e) {
+				dispatching.set(false);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Claims items for all waiters in batches, sleeping on the queue condition
+	 * while the queue is empty. Runs until no one is waiting.
+	 */
+	protected void runDispatcher() {
+		try {
+			while (!closed) {
+				int n = 0;
+				for (Iterator<CompletableFuture<ValueContainer<E>>> it = waiters.iterator(); it.hasNext(); ) {
+					if (it.next().isDone())
+						it.remove();
+					else
+						n++;
+				}
+				if (n == 0)
+					return;
+
+				List<ValueContainer<E>> items = queue.pollBatchWithMetadata(Math.min(n, queue.getDrainBatchSize()));
+				if (items.isEmpty()) {
+					Date deadline = new Date(System.currentTimeMillis()
+							+ TimeUnit.SECONDS.toMillis(queue.getTakeBlockingTime()));
+					queue.awaitUntil(queue.condition, deadline);
+				} else {
+					releaseUnclaimed(handOut(waiters.iterator(), items));
+				}
+			}
+		} catch (InterruptedException e) {
+			// Closing
+		} catch (RuntimeException e) {
+			LOG.warn("Failed to dispatch items of '" + queue.queueName + "'", e);
+			pause();
+		} finally {
+			dispatching.set(false);
+		}
+
+		// Waiters which arrived after we decided to stop, or retry after failure
+		if (!closed && !waiters.isEmpty()) {
+			try {
+				dispatch();
+			} catch (RejectedExecutionException e) {
+				// Closing
+			}
+		}
+	}
+
+	private void pause() {
+		try {
+			Thread.sleep(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Number of pending takes and polls with timeout
+	 */
+	public int waiting() {
+		int n = 0;
+		for (CompletableFuture<ValueContainer<E>> future : waiters) {
+			if (!future.isDone())
+				n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Finishes queued I/O tasks and cancels pending takes.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		timer.shutdownNow();
+		dispatcher.shutdownNow();
+		io.shutdown();
+		try {
+			if (!io.awaitTermination(queue.getTakeBlockingTime() + 1, TimeUnit.SECONDS))
+				LOG.warn("I/O tasks of '{}' did not finish in time", queue.queueName);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		CompletableFuture<ValueContainer<E>> future;
+		while ((future = waiters.poll()) != null) {
+			future.completeExceptionally(new CancellationException("Queue is closed"));
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package net.bramp.db_patterns.queues;
+
+import net.bramp.serializator.Serializator;
+
+/**
+ * ValueContainer keeping the serialized value until getValue is called.
+ * Not thread safe.
+ *
+ * @param <E>
+ * @author bramp
+ */
+class LazyValueContainer<E> extends ValueContainer<E> {
+
+	private final Serializator<E> serializator;
+	private byte[] stored;
+
+	LazyValueContainer(long id, String status, long priority, byte[] stored, Serializator<E> serializator) {
+		super(id, status, priority, null);
+		this.stored = stored;
+		this.serializator = serializator;
+	}
+
+	@Override
+	public E getValue() {
+		if (stored != null) {
+			value = serializator.deserialize(stored);
+			stored = null;
+		}
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		return "ValueWithMetadata[" + id + " " + status + " " + getValue() + "]";
+	}
+}
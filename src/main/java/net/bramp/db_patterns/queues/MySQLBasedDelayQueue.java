@@ -9,6 +9,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.sql.DataSource;
 
@@ -18,7 +19,7 @@ import net.bramp.serializator.Serializator;
  * A queue backed by MySQL
  * <p>
  * CREATE TABLE IF NOT EXISTS queue (
- *   id int(10)  unsigned NOT NULL AUTO_INCREMENT,
+ *   id bigint(20) unsigned NOT NULL AUTO_INCREMENT,
  *   queue_name  varchar(255) NOT NULL,                          -- Queue name
  *   inserted    timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,   -- Time the row was inserted
  *   inserted_by varchar(255) NOT NULL,                          -- and by who
@@ -31,8 +32,9 @@ import net.bramp.serializator.Serializator;
  *   PRIMARY KEY (id)
  *   UNIQUE KEY `queue_peek_index` (`acquired`,`queue_name`, `delayed_to`, `priority`,`id`)
  * ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
- * <p/>
- * TODO Create efficient drainTo
+ * <p>
+ * PollStrategy.CLAIM_TOKEN, leases and dedup keys additionally require the claim_token, lease_until
+ * and dedup_key columns, see MySQLBasedQueue. QueueSchema with setDelayed(true) installs them all.
  * 
  * @param <E>
  * @author matzz
@@ -40,22 +42,29 @@ import net.bramp.serializator.Serializator;
 public class MySQLBasedDelayQueue<E extends Delayed> extends
 		AbstractMySQLQueue<E> {
 
-	protected String closestDelayQuery = "SELECT min(TIME_TO_SEC(TIMEDIFF(delayed_to,NOW()))) FROM "
-			+ tableNamePlaceholder
-			+ " WHERE acquired IS NULL AND queue_name = ?";
-
 	protected String delayCondition = "AND (delayed_to<=NOW() OR delayed_to is null) ";
 
 	{
+		closestDelayQuery = "SELECT min(TIME_TO_SEC(TIMEDIFF(delayed_to,NOW()))) FROM "
+				+ tableNamePlaceholder
+				+ " WHERE acquired IS NULL AND " + queueColumnPlaceholder + " = ?";
+
+		addRowQuery = "(?, now(), ?, DATE_ADD(NOW(), INTERVAL ? SECOND), -?, ?)";
 		addQuery = "INSERT INTO "
 				+ tableNamePlaceholder
 				+ " "
-				+ "(queue_name, inserted, inserted_by, delayed_to, priority, value) values "
-				+ "(?, now(), ?, DATE_ADD(NOW(), INTERVAL ? SECOND), -?, ?)";
+				+ "(" + queueColumnPlaceholder + ", inserted, inserted_by, delayed_to, priority, value) values "
+				+ addRowQuery;
+		addDedupRowQuery = "(?, now(), ?, DATE_ADD(NOW(), INTERVAL ? SECOND), -?, ?, ?)";
+		addDedupQuery = "INSERT INTO "
+				+ tableNamePlaceholder
+				+ " "
+				+ "(" + queueColumnPlaceholder + ", inserted, inserted_by, delayed_to, priority, value, dedup_key) values "
+				+ addDedupRowQuery;
 
 		peekQuery = "SELECT id, status, -priority, value FROM "
 				+ tableNamePlaceholder + " WHERE " + "acquired IS NULL "
-				+ delayCondition + "AND queue_name = ? "
+				+ delayCondition + "AND " + queueColumnPlaceholder + " = ? "
 				+ "ORDER BY priority ASC, id ASC " + "LIMIT 1; ";
 
 		pollQuery = new String[] {
@@ -63,12 +72,27 @@ public class MySQLBasedDelayQueue<E extends Delayed> extends
 				"SELECT (SELECT @update_id := id), status, -priority, value "
 						+ "FROM " + tableNamePlaceholder + " " + "WHERE "
 						+ "acquired IS NULL " + delayCondition
-						+ "AND queue_name = ? "
+						+ "AND " + queueColumnPlaceholder + " = ? "
 						+ "ORDER BY priority ASC, id ASC " + "LIMIT 1 "
-						+ "FOR UPDATE",
+						+ lockingPlaceholder,
 				"UPDATE " + tableNamePlaceholder + " u " + "SET "
 						+ "acquired = NOW(), " + "acquired_by = ? "
+						+ leasePlaceholder + " "
 						+ "where u.id = @update_id;" };
+
+		pollBatchQuery = "SELECT id, status, -priority, value "
+				+ "FROM " + tableNamePlaceholder + " " + "WHERE "
+				+ "acquired IS NULL " + delayCondition
+				+ "AND " + queueColumnPlaceholder + " = ? "
+				+ "ORDER BY priority ASC, id ASC " + "LIMIT ? "
+				+ lockingPlaceholder;
+
+		claimQuery = "UPDATE " + tableNamePlaceholder + " SET "
+				+ "acquired = NOW(), " + "acquired_by = ?, "
+				+ "claim_token = ? " + leasePlaceholder + " WHERE "
+				+ "acquired IS NULL " + delayCondition
+				+ "AND " + queueColumnPlaceholder + " = ? "
+				+ "ORDER BY priority ASC, id ASC " + "LIMIT ?";
 	}
 
 	public MySQLBasedDelayQueue(DataSource ds, String queueTableName,
@@ -82,13 +106,13 @@ public class MySQLBasedDelayQueue<E extends Delayed> extends
 	}
 
 	@Override
-	protected void setAddParameters(E value, int priority, PreparedStatement s)
-			throws SQLException {
-		s.setString(1, queueName);
-		s.setObject(2, me); // Inserted by me
-		s.setLong(3, value.getDelay(TimeUnit.SECONDS));
-		s.setLong(4, priority);
-		setValueToStatment(s, 5, value);
+	protected int setAddParameters(E value, int priority, PreparedStatement s,
+			int index) throws SQLException {
+		s.setString(index, queueKey);
+		s.setObject(index + 1, nodeKey); // Inserted by me
+		s.setLong(index + 2, value.getDelay(TimeUnit.SECONDS));
+		s.setLong(index + 3, priority);
+		return index + 4;
 	}
 
 	/**
@@ -99,11 +123,10 @@ public class MySQLBasedDelayQueue<E extends Delayed> extends
 	protected long getClosestDelay() throws SQLException {
 		int minDelay = 0;
 
-		String query = setTable(closestDelayQuery);
-		Connection c = ds.getConnection();
+		Connection c = getConnection();
 		try {
-			PreparedStatement s = c.prepareStatement(query);
-			s.setString(1, queueName);
+			PreparedStatement s = c.prepareStatement(getQueryPlan().closestDelay);
+			s.setString(1, queueKey);
 			if (s.execute()) {
 				ResultSet rs = s.getResultSet();
 				if (rs != null && rs.next()) {
@@ -116,38 +139,71 @@ public class MySQLBasedDelayQueue<E extends Delayed> extends
 		}
 	}
 
-	protected ScheduledExecutorService wakeupScheduler = Executors
+	protected volatile ScheduledExecutorService wakeupScheduler = Executors
 			.newScheduledThreadPool(1);
+	protected boolean ownsWakeupScheduler = true;
 	protected ScheduledFuture<?> wakeupTask = null;
 
+	/**
+	 * Guards wakeupTask. A lock rather than a monitor, so virtual threads
+	 * waiting for it are not pinned to their carrier.
+	 */
+	protected final ReentrantLock wakeupLock = new ReentrantLock();
+
+	/**
+	 * Sets the scheduler running delayed wakeups, e.g. one shared by many
+	 * queues or backed by virtual threads. The default single thread
+	 * scheduler of this queue is shut down.
+	 */
+	public void setWakeupScheduler(ScheduledExecutorService wakeupScheduler) {
+		wakeupLock.lock();
+		try {
+			if (wakeupTask != null) {
+				wakeupTask.cancel(false);
+				wakeupTask = null;
+			}
+			if (ownsWakeupScheduler) {
+				this.wakeupScheduler.shutdown();
+				ownsWakeupScheduler = false;
+			}
+			this.wakeupScheduler = wakeupScheduler;
+		} finally {
+			wakeupLock.unlock();
+		}
+	}
+
 	protected class WakeupTask implements Runnable {
 		@Override
 		public void run() {
-			condition.signal();
-			synchronized (wakeupScheduler) {
-				wakeupScheduler.schedule(new Runnable() {
-					@Override
-					public void run() {
-						wakeupThread();
-					}
-				}, 1, TimeUnit.SECONDS);
-			}
+			signalCondition(condition, false);
+			wakeupScheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					wakeupThread();
+				}
+			}, 1, TimeUnit.SECONDS);
 		}
 	};
 
+	/**
+	 * Looks up the closest delay without holding the lock, so concurrent
+	 * adds don't queue up behind a JDBC round trip.
+	 */
 	@Override
 	protected void wakeupThread() {
-		synchronized (wakeupScheduler) {
-			long delaySeconds;
-			try {
-				delaySeconds = getClosestDelay();
-				if (delaySeconds <= 0) {
-					delaySeconds = 1;
-				}
-			} catch (SQLException e) {
+		long delaySeconds;
+		try {
+			delaySeconds = getClosestDelay();
+			if (delaySeconds <= 0) {
 				delaySeconds = 1;
-				e.printStackTrace();
 			}
+		} catch (SQLException e) {
+			delaySeconds = 1;
+			LOG.warn("Failed to get closest delay of '" + queueName + "'", e);
+		}
+
+		wakeupLock.lock();
+		try {
 			if (wakeupTask != null
 					&& wakeupTask.getDelay(TimeUnit.SECONDS) > delaySeconds) {
 				wakeupTask.cancel(false);
@@ -158,6 +214,8 @@ public class MySQLBasedDelayQueue<E extends Delayed> extends
 						delaySeconds, TimeUnit.SECONDS);
 			}
 
+		} finally {
+			wakeupLock.unlock();
 		}
 	}
 
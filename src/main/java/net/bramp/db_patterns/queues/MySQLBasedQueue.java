@@ -11,7 +11,7 @@ import net.bramp.serializator.Serializator;
  * A queue backed by MySQL
  * <p>
  * CREATE TABLE IF NOT EXISTS queue (
- *   id int(10)  unsigned NOT NULL AUTO_INCREMENT,
+ *   id bigint(20) unsigned NOT NULL AUTO_INCREMENT,
  *   queue_name  varchar(255) NOT NULL,                          -- Queue name
  *   inserted    timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,   -- Time the row was inserted
  *   inserted_by varchar(255) NOT NULL,                          -- and by who
@@ -23,20 +23,61 @@ import net.bramp.serializator.Serializator;
  *   PRIMARY KEY (id)
  *   UNIQUE KEY `queue_peek_index` (`acquired`,`queue_name`, `priority`,`id`)
  * ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
- * <p/>
- * TODO Create efficient drainTo
+ * <p>
+ * PollStrategy.CLAIM_TOKEN additionally requires:
+ * <p>
+ * ALTER TABLE queue
+ *   ADD COLUMN claim_token varchar(64) DEFAULT NULL,               -- Token of the claim which acquired the row
+ *   ADD KEY `queue_claim_index` (`claim_token`);
+ * <p>
+ * Leases (setLeaseTime) additionally require:
+ * <p>
+ * ALTER TABLE queue
+ *   ADD COLUMN lease_until timestamp NULL DEFAULT NULL,            -- Time the lease of an acquired row expires
+ *   ADD KEY `queue_lease_index` (`queue_name`, `lease_until`, `acquired`);
+ * <p>
+ * Dedup keys (add with dedupKey) additionally require:
+ * <p>
+ * ALTER TABLE queue
+ *   ADD COLUMN dedup_key varchar(255) DEFAULT NULL,                -- Deduplication key given by the producer
+ *   ADD UNIQUE KEY `queue_dedup_index` (`queue_name`, `dedup_key`);
+ * <p>
+ * Archiving (setArchiveOnAck, archiveCompleted) requires a table with the same columns:
+ * <p>
+ * CREATE TABLE queue_archive LIKE queue;
+ * ALTER TABLE queue_archive DROP KEY `queue_dedup_index`;        -- If dedup keys are used
+ * <p>
+ * and, without leases, an index for archiveCompleted to find completed rows of one queue:
+ * <p>
+ * ALTER TABLE queue ADD KEY `queue_acquired_index` (`queue_name`, `acquired`);
+ * <p>
+ * Counted size (setCountedSize, setCapacity) requires:
+ * <p>
+ * CREATE TABLE queue_counter (
+ *   queue_name  varchar(255) NOT NULL,                          -- Queue name
+ *   stripe      int(11) NOT NULL,                               -- Counter stripe
+ *   pending     bigint(20) NOT NULL DEFAULT '0',                -- Part of the number of pending items
+ *   PRIMARY KEY (queue_name, stripe)
+ * ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+ * <p>
+ * QueueSchema installs all of these, or the compact layout (see setLayout).
  *
  * @param <E>
  * @author bramp
  */
 public class MySQLBasedQueue<E> extends AbstractMySQLQueue<E> {
 	{
+		addRowQuery = "(?, now(), ?, -?, ?)";
 		addQuery = "INSERT INTO "+tableNamePlaceholder+" "
-			+ "(queue_name, inserted, inserted_by, priority, value) values "
-			+ "(?, now(), ?, -?, ?)";
+			+ "(" + queueColumnPlaceholder + ", inserted, inserted_by, priority, value) values "
+			+ addRowQuery;
+		addDedupRowQuery = "(?, now(), ?, -?, ?, ?)";
+		addDedupQuery = "INSERT INTO "+tableNamePlaceholder+" "
+			+ "(" + queueColumnPlaceholder + ", inserted, inserted_by, priority, value, dedup_key) values "
+			+ addDedupRowQuery;
 		peekQuery = "SELECT id, status, -priority, value FROM "+tableNamePlaceholder+" WHERE "
 				+ "acquired IS NULL "
-				+ "AND queue_name = ? "
+				+ "AND " + queueColumnPlaceholder + " = ? "
 				+ "ORDER BY priority ASC, id ASC "
 				+ "LIMIT 1; ";
 		pollQuery = new String[] {
@@ -45,16 +86,36 @@ public class MySQLBasedQueue<E> extends AbstractMySQLQueue<E> {
 				+ "FROM "+tableNamePlaceholder+" "
 				+ "WHERE "
 				+ "acquired IS NULL "
-				+ "AND queue_name = ? "
+				+ "AND " + queueColumnPlaceholder + " = ? "
 				+ "ORDER BY priority ASC, id ASC "
 				+ "LIMIT 1 "
-				+ "FOR UPDATE",
+				+ lockingPlaceholder,
 				"UPDATE "+tableNamePlaceholder+" u "
 				+ "SET "
 				+ "acquired = NOW(), "
 				+ "acquired_by = ? "
+				+ leasePlaceholder + " "
 				+ "where u.id = @update_id;"
 		};
+		pollBatchQuery = "SELECT id, status, -priority, value "
+				+ "FROM "+tableNamePlaceholder+" "
+				+ "WHERE "
+				+ "acquired IS NULL "
+				+ "AND " + queueColumnPlaceholder + " = ? "
+				+ "ORDER BY priority ASC, id ASC "
+				+ "LIMIT ? "
+				+ lockingPlaceholder;
+		claimQuery = "UPDATE "+tableNamePlaceholder+" "
+				+ "SET "
+				+ "acquired = NOW(), "
+				+ "acquired_by = ?, "
+				+ "claim_token = ? "
+				+ leasePlaceholder + " "
+				+ "WHERE "
+				+ "acquired IS NULL "
+				+ "AND " + queueColumnPlaceholder + " = ? "
+				+ "ORDER BY priority ASC, id ASC "
+				+ "LIMIT ?";
 	}
 
 	/**
@@ -80,10 +141,10 @@ public class MySQLBasedQueue<E> extends AbstractMySQLQueue<E> {
 	}
 
 	@Override
-	protected void setAddParameters(E value, int priority, PreparedStatement s) throws SQLException {
-		s.setString(1, queueName);
-		s.setObject(2, me); // Inserted by me
-		s.setLong(3, priority); // Inserted by me
-		setValueToStatment(s, 4, value);
+	protected int setAddParameters(E value, int priority, PreparedStatement s, int index) throws SQLException {
+		s.setString(index, queueKey);
+		s.setObject(index + 1, nodeKey); // Inserted by me
+		s.setLong(index + 2, priority);
+		return index + 3;
 	}
 }
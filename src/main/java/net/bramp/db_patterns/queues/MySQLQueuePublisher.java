@@ -0,0 +1,215 @@
+package net.bramp.db_patterns.queues;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes queue items to Flow subscribers, for reactive pipelines.
+ * <p>
+ * Subscriber demand is turned into batch claims of at most the outstanding
+ * demand, so no more rows are claimed than were requested. While demand
+ * exists and the queue is empty, the subscription sleeps on the queue
+ * condition instead of polling. The queue never completes, items stay
+ * claimed once delivered and items claimed after cancel are released.
+ * <p>
+ * Each subscription with outstanding demand uses one executor thread.
+ *
+ * @param <E>
+ * @author bramp
+ */
+public class MySQLQueuePublisher<E> implements Flow.Publisher<ValueContainer<E>> {
+
+	final static Logger LOG = LoggerFactory.getLogger(MySQLQueuePublisher.class);
+
+	final AbstractMySQLQueue<E> queue;
+	final Executor executor;
+	final int maxBatch;
+
+	/**
+	 * time in seconds
+	 */
+	private volatile int waitTime = 1;
+
+	/**
+	 * @param queue queue to claim items from
+	 * @param maxBatch max number of items claimed by one query
+	 * @param executor runs subscriptions
+	 */
+	public MySQLQueuePublisher(AbstractMySQLQueue<E> queue, int maxBatch, Executor executor) {
+		if (maxBatch < 1)
+			throw new IllegalArgumentException("maxBatch must be positive");
+
+		this.queue = queue;
+		this.maxBatch = maxBatch;
+		this.executor = executor;
+	}
+
+	/**
+	 * Claims up to drainBatchSize items at a time, each subscription on its own daemon thread
+	 */
+	public MySQLQueuePublisher(AbstractMySQLQueue<E> queue) {
+		this(queue, queue.getDrainBatchSize(),
+				Executors.newCachedThreadPool(AsyncMySQLQueue.threadFactory("publisher-" + queue.queueName)));
+	}
+
+	public int getWaitTime() {
+		return waitTime;
+	}
+
+	/**
+	 * Sets how long a subscription sleeps on an empty queue before checking
+	 * for cancel. Unit - seconds. Default 1.
+	 */
+	public void setWaitTime(int waitTime) {
+		this.waitTime = waitTime;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super ValueContainer<E>> subscriber) {
+		Objects.requireNonNull(subscriber, "subscriber");
+		subscriber.onSubscribe(new QueueSubscription(subscriber));
+	}
+
+	protected class QueueSubscription implements Flow.Subscription, Runnable {
+		final Flow.Subscriber<? super ValueContainer<E>> subscriber;
+
+		final AtomicLong demand = new AtomicLong(0);
+
+		/**
+		 * Number of pending schedules, the drain loop runs while it is not 0
+		 */
+		final AtomicInteger wip = new AtomicInteger(0);
+
+		volatile boolean cancelled = false;
+		volatile Throwable error = null;
+
+		QueueSubscription(Flow.Subscriber<? super ValueContainer<E>> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				error = new IllegalArgumentException("Non-positive request: " + n);
+			} else {
+				long current, next;
+				do {
+					current = demand.get();
+					next = current + n;
+					if (next < 0)
+						next = Long.MAX_VALUE; // Overflow, unbounded
+				} while (!demand.compareAndSet(current, next));
+			}
+			schedule();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+		}
+
+		protected void schedule() {
+			if (wip.getAndIncrement() != 0)
+				return;
+
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				cancelled = true;
+				subscriber.onError(e);
+			}
+		}
+
+		@Override
+		public void run() {
+			int missed = 1;
+			do {
+				while (!cancelled) {
+					if (error != null) {
+						cancelled = true;
+						subscriber.onError(error);
+						return;
+					}
+
+					long n = demand.get();
+					if (n == 0)
+						break;
+
+					List<ValueContainer<E>> items;
+					try {
+						items = queue.pollBatchWithMetadata((int) Math.min(n, maxBatch));
+						if (items.isEmpty()) {
+							queue.awaitUntil(queue.condition, new Date(System.currentTimeMillis()
+									+ TimeUnit.SECONDS.toMillis(waitTime)));
+							continue;
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						cancelled = true;
+						subscriber.onError(e);
+						return;
+					} catch (RuntimeException e) {
+						cancelled = true;
+						subscriber.onError(e);
+						return;
+					}
+
+					if (!deliver(items))
+						return;
+				}
+
+				if (cancelled)
+					return;
+
+				missed = wip.addAndGet(-missed);
+			} while (missed != 0);
+		}
+
+		/**
+		 * @return false if the subscription ended while delivering
+		 */
+		protected boolean deliver(List<ValueContainer<E>> items) {
+			for (int i = 0; i < items.size(); i++) {
+				if (cancelled) {
+					release(items.subList(i, items.size()));
+					return false;
+				}
+
+				if (demand.get() != Long.MAX_VALUE)
+					demand.decrementAndGet();
+
+				try {
+					subscriber.onNext(items.get(i));
+				} catch (Throwable e) {
+					// Broken subscriber, treat as cancelled
+					LOG.warn("Subscriber of '" + queue.queueName + "' failed, cancelling", e);
+					cancelled = true;
+					release(items.subList(i + 1, items.size()));
+					return false;
+				}
+			}
+			return true;
+		}
+
+		protected void release(List<ValueContainer<E>> items) {
+			if (items.isEmpty())
+				return;
+			try {
+				queue.release(items);
+			} catch (RuntimeException e) {
+				LOG.warn("Failed to release " + items.size() + " items of '" + queue.queueName + "'", e);
+			}
+		}
+	}
+}
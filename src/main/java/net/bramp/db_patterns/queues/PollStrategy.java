@@ -0,0 +1,39 @@
+package net.bramp.db_patterns.queues;
+
+/**
+ * How poll locks and acquires rows.
+ *
+ * @author bramp
+ */
+public enum PollStrategy {
+
+	/**
+	 * SELECT ... FOR UPDATE. Concurrent consumers wait on the head row of the queue.
+	 */
+	FOR_UPDATE("FOR UPDATE"),
+
+	/**
+	 * SELECT ... FOR UPDATE SKIP LOCKED. Concurrent consumers skip rows locked by others,
+	 * so each one claims a different row in parallel. Priority order is kept only
+	 * approximately under contention. Requires MySQL 8.0.1+ or MariaDB 10.6+.
+	 */
+	SKIP_LOCKED("FOR UPDATE SKIP LOCKED"),
+
+	/**
+	 * Rows are acquired by a single UPDATE ... ORDER BY ... LIMIT marking them with a
+	 * unique claim token, then read back by that token. Two round trips without an
+	 * explicit transaction, instead of four. Requires the claim_token column
+	 * and its index (see MySQLBasedQueue).
+	 */
+	CLAIM_TOKEN("FOR UPDATE");
+
+	final String lockingClause;
+
+	PollStrategy(String lockingClause) {
+		this.lockingClause = lockingClause;
+	}
+
+	public String getLockingClause() {
+		return lockingClause;
+	}
+}
@@ -0,0 +1,513 @@
+package net.bramp.db_patterns.queues;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.bramp.db_patterns.queues.interfaces.StatusableQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Consumer side wrapper claiming items in batches into a bounded local buffer.
+ * poll/take are served from memory, the buffer is refilled in background
+ * once it drops to the low water mark.
+ * <p>
+ * Buffered items are acquired in the database, close() returns the ones
+ * not consumed back to the queue and wakes up blocked consumers, take then
+ * throws IllegalStateException and poll returns null. With leases enabled,
+ * items whose lease ended while buffered are dropped, the lease reaper re-queues them.
+ *
+ * @param <E>
+ * @author bramp
+ */
+public class PrefetchingQueue<E> extends AbstractBlockingQueue<E> implements
+		StatusableQueue<E, ValueContainer<E>>, Closeable {
+
+	final static Logger LOG = LoggerFactory.getLogger(PrefetchingQueue.class);
+
+	final AbstractMySQLQueue<E> queue;
+	final BlockingQueue<Buffered<E>> buffer;
+	final int capacity;
+	final int lowWaterMark;
+
+	final ExecutorService refiller;
+	final AtomicBoolean refilling = new AtomicBoolean(false);
+
+	/**
+	 * Number of threads blocked in take or poll(timeout)
+	 */
+	final AtomicInteger waiting = new AtomicInteger(0);
+
+	volatile boolean closed = false;
+
+	/**
+	 * time in seconds
+	 */
+	private volatile int refillBlockingTime = 10;
+
+	/**
+	 * @param queue queue to claim items from
+	 * @param capacity max number of items buffered
+	 * @param lowWaterMark buffer is refilled once it has this many items or less
+	 */
+	public PrefetchingQueue(final AbstractMySQLQueue<E> queue, int capacity, int lowWaterMark) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be positive");
+		if (lowWaterMark < 0 || lowWaterMark >= capacity)
+			throw new IllegalArgumentException("lowWaterMark must be between 0 and capacity - 1");
+
+		this.queue = queue;
+		this.capacity = capacity;
+		this.lowWaterMark = lowWaterMark;
+		this.buffer = new LinkedBlockingQueue<Buffered<E>>(capacity);
+		this.refiller = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "prefetch-" + queue.queueName);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Gets how long refill blocks on an empty queue while consumers wait. Default 10s.
+	 * Unit - seconds.
+	 */
+	public int getRefillBlockingTime() {
+		return refillBlockingTime;
+	}
+
+	/**
+	 * Sets how long refill blocks on an empty queue while consumers wait.
+	 * Decrease it to make close() faster. Unit - seconds.
+	 */
+	public void setRefillBlockingTime(int refillBlockingTime) {
+		this.refillBlockingTime = refillBlockingTime;
+	}
+
+	/**
+	 * A claimed item with the end of its lease
+	 */
+	static final class Buffered<E> {
+		final ValueContainer<E> item;
+		final boolean leased;
+
+		/**
+		 * System.nanoTime() the lease ends, counted from before the claim
+		 */
+		final long leaseEnd;
+
+		Buffered(ValueContainer<E> item, boolean leased, long leaseEnd) {
+			this.item = item;
+			this.leased = leased;
+			this.leaseEnd = leaseEnd;
+		}
+
+		boolean expired() {
+			return leased && System.nanoTime() - leaseEnd >= 0;
+		}
+	}
+
+	/**
+	 * Put in the buffer by close, one per blocked consumer, to wake it up
+	 */
+	@SuppressWarnings("rawtypes")
+	static final Buffered CLOSED = new Buffered<Object>(null, false, 0);
+
+	protected class RefillTask implements Runnable {
+		@Override
+		public void run() {
+			try {
+				refill();
+			} catch (InterruptedException e) {
+				// Closing
+			} catch (RuntimeException e) {
+				LOG.warn("Failed to refill buffer", e);
+			} finally {
+				refilling.set(false);
+			}
+
+			// A consumer might have started waiting after we decided to stop
+			if (waiting.get() > 0)
+				triggerRefill();
+		}
+	}
+
+	protected void refill() throws InterruptedException {
+		while (!closed) {
+			int n = capacity - buffer.size();
+			if (n <= 0)
+				return;
+
+			final long leaseNanos = queue.getLeaseTime(TimeUnit.NANOSECONDS);
+			final long claimStart = System.nanoTime();
+
+			List<ValueContainer<E>> items = queue.pollBatchWithMetadata(n);
+			if (items.isEmpty()) {
+				// Queue is empty, only block if someone is waiting for items
+				if (waiting.get() == 0)
+					return;
+
+				ValueContainer<E> item = queue.pollWithMetadata(refillBlockingTime, TimeUnit.SECONDS);
+				if (item == null)
+					continue;
+				items = Collections.singletonList(item);
+			}
+
+			bufferItems(items, leaseNanos > 0, claimStart + leaseNanos);
+
+			if (buffer.size() > lowWaterMark && waiting.get() == 0)
+				return;
+		}
+	}
+
+	/**
+	 * Buffers claimed items. Items claimed while closing are released, as
+	 * close() might have drained the buffer already.
+	 */
+	protected void bufferItems(List<ValueContainer<E>> items, boolean leased, long leaseEnd)
+			throws InterruptedException {
+		int i = 0;
+		try {
+			for (; i < items.size() && !closed; i++) {
+				buffer.put(new Buffered<E>(items.get(i), leased, leaseEnd));
+			}
+		} finally {
+			if (i < items.size())
+				releaseItems(items.subList(i, items.size()));
+		}
+
+		if (closed)
+			releaseBuffered();
+	}
+
+	/**
+	 * Next buffered item whose lease has not ended, dropping expired ones
+	 * @return item, or null if the buffer is empty
+	 */
+	protected ValueContainer<E> pollBuffered() {
+		Buffered<E> b;
+		while ((b = buffer.poll()) != null) {
+			if (b == CLOSED) {
+				// Left for a blocked consumer
+				buffer.offer(b);
+				return null;
+			}
+			if (!b.expired())
+				return b.item;
+			LOG.debug("Dropped prefetched item {}, its lease ended", b.item.id);
+		}
+		return null;
+	}
+
+	/**
+	 * Waits for an unexpired buffered item. Callers count themselves in waiting
+	 * first, so close either sees them or they see closed.
+	 * @param timeoutNanos max time to wait, or -1 to wait forever
+	 * @return item, or null on timeout or close
+	 */
+	protected ValueContainer<E> awaitBuffered(long timeoutNanos) throws InterruptedException {
+		final long deadline = System.nanoTime() + timeoutNanos;
+		while (true) {
+			if (closed)
+				return pollBuffered();
+
+			Buffered<E> b;
+			if (timeoutNanos < 0) {
+				b = buffer.take();
+			} else {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0)
+					return null;
+				b = buffer.poll(remaining, TimeUnit.NANOSECONDS);
+				if (b == null)
+					return null;
+			}
+
+			if (b == CLOSED)
+				return null;
+			if (!b.expired())
+				return b.item;
+			LOG.debug("Dropped prefetched item {}, its lease ended", b.item.id);
+		}
+	}
+
+	/**
+	 * Schedules a refill, unless one is already running
+	 */
+	protected void triggerRefill() {
+		if (closed)
+			return;
+
+		if (refilling.compareAndSet(false, true)) {
+			try {
+				refiller.execute(new RefillTask());
+			} catch (RuntimeException e) {
+				// Rejected as we are closing
+				refilling.set(false);
+			}
+		}
+	}
+
+	protected void afterTake() {
+		if (buffer.size() <= lowWaterMark)
+			triggerRefill();
+	}
+
+	@Override
+	public ValueContainer<E> pollWithMetadata() {
+		ValueContainer<E> item = pollBuffered();
+		if (item == null && !closed) {
+			// Buffer is empty, avoid reporting an empty queue while refill is pending
+			item = queue.pollWithMetadata();
+		}
+		afterTake();
+		return item;
+	}
+
+	@Override
+	public ValueContainer<E> pollWithMetadata(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		ValueContainer<E> item = pollBuffered();
+		if (item == null) {
+			waiting.incrementAndGet();
+			try {
+				triggerRefill();
+				item = awaitBuffered(Math.max(0, unit.toNanos(timeout)));
+			} finally {
+				waiting.decrementAndGet();
+			}
+		}
+		afterTake();
+		return item;
+	}
+
+	@Override
+	public ValueContainer<E> takeWithMetadata() throws InterruptedException {
+		ValueContainer<E> item = pollBuffered();
+		if (item == null) {
+			if (closed)
+				throw new IllegalStateException("Queue is closed");
+
+			waiting.incrementAndGet();
+			try {
+				triggerRefill();
+				item = awaitBuffered(-1);
+			} finally {
+				waiting.decrementAndGet();
+			}
+			if (item == null)
+				throw new IllegalStateException("Queue is closed");
+		}
+		afterTake();
+		return item;
+	}
+
+	@Override
+	public List<ValueContainer<E>> pollBatchWithMetadata(int n) {
+		List<ValueContainer<E>> items = new ArrayList<ValueContainer<E>>(Math.min(n, capacity));
+		ValueContainer<E> item;
+		while (items.size() < n && (item = pollBuffered()) != null) {
+			items.add(item);
+		}
+		if (items.size() < n && !closed)
+			items.addAll(queue.pollBatchWithMetadata(n - items.size()));
+		afterTake();
+		return items;
+	}
+
+	@Override
+	public ValueContainer<E> peekWithMetadata() {
+		Buffered<E> b = buffer.peek();
+		return b != null && !b.expired() ? b.item : queue.peekWithMetadata();
+	}
+
+	@Override
+	public int release(List<ValueContainer<E>> items) {
+		return queue.release(items);
+	}
+
+	@Override
+	public boolean ack(long id) {
+		return queue.ack(id);
+	}
+
+	@Override
+	public boolean nack(long id) {
+		return queue.nack(id);
+	}
+
+	@Override
+	public boolean extendLease(long id, long duration, TimeUnit unit) {
+		return queue.extendLease(id, duration, unit);
+	}
+
+	@Override
+	public void updateStatus(long id, String newStatus) {
+		queue.updateStatus(id, newStatus);
+	}
+
+	@Override
+	public int updateStatus(long[] ids, String newStatus) {
+		return queue.updateStatus(ids, newStatus);
+	}
+
+	@Override
+	public int updateStatuses(Map<Long, String> statuses) {
+		return queue.updateStatuses(statuses);
+	}
+
+	@Override
+	public String getStatus(long id) {
+		return queue.getStatus(id);
+	}
+
+	@Override
+	public boolean add(E e) {
+		return queue.add(e);
+	}
+
+	@Override
+	public E peek() {
+		ValueContainer<E> item = peekWithMetadata();
+		return item != null ? item.value : null;
+	}
+
+	@Override
+	public E poll() {
+		ValueContainer<E> item = pollWithMetadata();
+		return item != null ? item.value : null;
+	}
+
+	@Override
+	public E take() throws InterruptedException {
+		return takeWithMetadata().value;
+	}
+
+	@Override
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		ValueContainer<E> item = pollWithMetadata(timeout, unit);
+		return item != null ? item.value : null;
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c, int maxElements) {
+		if (c == this)
+			throw new IllegalArgumentException("Draining to self is not supported");
+
+		int count = 0;
+		while (count < maxElements) {
+			int n = Math.min(capacity, maxElements - count);
+			List<ValueContainer<E>> items = pollBatchWithMetadata(n);
+			for (ValueContainer<E> item : items) {
+				c.add(item.value);
+			}
+			count += items.size();
+
+			if (items.size() < n)
+				break;
+		}
+		return count;
+	}
+
+	/**
+	 * Items waiting in the database plus the ones buffered
+	 */
+	@Override
+	public int size() {
+		return queue.size() + buffer.size();
+	}
+
+	@Override
+	public void clear() {
+		buffer.clear();
+		queue.clear();
+	}
+
+	/**
+	 * Number of items claimed and not consumed yet
+	 */
+	public int buffered() {
+		return buffer.size();
+	}
+
+	/**
+	 * Stops refilling and returns unconsumed items to the queue.
+	 * Might block up to refillBlockingTime for a pending refill to finish,
+	 * a refill finishing later releases what it claimed itself.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		releaseBuffered();
+
+		refiller.shutdownNow();
+		try {
+			if (!refiller.awaitTermination(refillBlockingTime + 1, TimeUnit.SECONDS))
+				LOG.warn("Refill of '{}' did not finish in time", queue.queueName);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		// Items buffered by the refill while it was stopping
+		releaseBuffered();
+
+		// Wake up consumers blocked on the buffer
+		for (int i = waiting.get(); i > 0; i--) {
+			buffer.offer(PrefetchingQueue.<E>closedMarker());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static <E> Buffered<E> closedMarker() {
+		return CLOSED;
+	}
+
+	/**
+	 * Returns buffered items to the queue, except those whose lease ended,
+	 * as another consumer might hold them now
+	 */
+	protected void releaseBuffered() {
+		List<ValueContainer<E>> items = new ArrayList<ValueContainer<E>>(buffer.size());
+		int markers = 0;
+		Buffered<E> b;
+		while ((b = buffer.poll()) != null) {
+			if (b == CLOSED) {
+				markers++;
+			} else if (!b.expired()) {
+				items.add(b.item);
+			}
+		}
+		releaseItems(items);
+
+		// Still meant for blocked consumers
+		for (; markers > 0; markers--) {
+			buffer.offer(PrefetchingQueue.<E>closedMarker());
+		}
+	}
+
+	protected void releaseItems(List<ValueContainer<E>> items) {
+		if (items.isEmpty())
+			return;
+		try {
+			int released = queue.release(items);
+			LOG.debug("Released {} prefetched items of '{}'", released, queue.queueName);
+		} catch (RuntimeException e) {
+			LOG.warn("Failed to release " + items.size() + " prefetched items of '" + queue.queueName + "'", e);
+		}
+	}
+}
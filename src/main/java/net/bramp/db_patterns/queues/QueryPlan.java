@@ -0,0 +1,126 @@
+package net.bramp.db_patterns.queues;
+
+/**
+ * All SQL of a queue instance, with table name and row locking clause binded.
+ * Built once per queue (and again if the poll strategy changes), so the
+ * add/poll/peek path does no string processing.
+ *
+ * @author bramp
+ */
+final class QueryPlan {
+
+	final String tableName;
+	final String archiveTableName;
+	final String counterTableName;
+	final PollStrategy pollStrategy;
+	final int leaseSeconds;
+	final QueueSchema.Layout layout;
+
+	final String add;
+	final String addRow;
+	final String addDedup;
+	final String addDedupRow;
+	final String releaseDedupKeys;
+	final String takenDedupKeys;
+	final String peek;
+	final String closestDelay;
+	final String[] poll;
+	final String pollBatch;
+	final String acquireBatch;
+	final String releaseBatch;
+	final String completeBatch;
+	final String ack;
+	final String extendLease;
+	final String reapLeases;
+	final String archiveSelect;
+	final String archiveInsert;
+	final String archiveDelete;
+	final String archiveCleanup;
+	final String claim;
+	final String claimed;
+	final String size;
+	final String browse;
+	final String counterUpdate;
+	final String counterSize;
+	final String counterReset;
+	final String updateStatus;
+	final String updateStatusBatch;
+	final String getStatus;
+	final String clear;
+	final String cleanup;
+	final String cleanupAll;
+
+	QueryPlan(AbstractMySQLQueue<?> queue, String tableName, String archiveTableName,
+			String counterTableName, PollStrategy pollStrategy, int leaseSeconds,
+			QueueSchema.Layout layout) {
+		this.tableName = tableName;
+		this.archiveTableName = archiveTableName;
+		this.counterTableName = counterTableName;
+		this.pollStrategy = pollStrategy;
+		this.leaseSeconds = leaseSeconds;
+		this.layout = layout;
+
+		add = resolve(queue.addQuery);
+		addRow = queue.addRowQuery;
+		addDedup = resolve(queue.addDedupQuery);
+		addDedupRow = queue.addDedupRowQuery;
+		releaseDedupKeys = resolve(queue.releaseDedupKeysQuery);
+		takenDedupKeys = resolve(queue.takenDedupKeysQuery);
+		peek = resolve(queue.peekQuery);
+		closestDelay = resolve(queue.closestDelayQuery);
+		poll = new String[queue.pollQuery.length];
+		for (int i = 0; i < poll.length; i++) {
+			poll[i] = resolve(queue.pollQuery[i]);
+		}
+		pollBatch = resolve(queue.pollBatchQuery);
+		acquireBatch = resolve(queue.acquireBatchQuery);
+		releaseBatch = resolve(queue.releaseBatchQuery);
+		completeBatch = resolve(queue.completeBatchQuery);
+		ack = resolve(queue.ackQuery);
+		extendLease = resolve(queue.extendLeaseQuery);
+		reapLeases = resolve(queue.reapLeasesQuery);
+		archiveSelect = resolve(queue.archiveSelectQuery);
+		archiveInsert = resolve(queue.archiveInsertQuery);
+		archiveDelete = resolve(queue.archiveDeleteQuery);
+		archiveCleanup = resolve(queue.archiveCleanupQuery);
+		claim = resolve(queue.claimQuery);
+		claimed = resolve(queue.claimedQuery);
+		size = resolve(queue.sizeQuery);
+		browse = resolve(queue.browseQuery);
+		counterUpdate = resolve(queue.counterUpdateQuery);
+		counterSize = resolve(queue.counterSizeQuery);
+		counterReset = resolve(queue.counterResetQuery);
+		updateStatus = resolve(queue.updateStatusQuery);
+		updateStatusBatch = resolve(queue.updateStatusBatchQuery);
+		getStatus = resolve(queue.getStatusQuery);
+		clear = resolve(queue.clearQuery);
+		cleanup = resolve(queue.cleanupQuery);
+		cleanupAll = resolve(queue.cleanupAllQuery);
+	}
+
+	/**
+	 * Binds table names, queue column, locking clause and lease columns to a query template
+	 * @param template
+	 * @return sql, or null if template is null
+	 */
+	String resolve(String template) {
+		if (template == null)
+			return null;
+
+		return template
+				.replace(AbstractMySQLQueue.queueColumnPlaceholder,
+						layout == QueueSchema.Layout.COMPACT ? "queue_id" : "queue_name")
+				.replace(AbstractMySQLQueue.tableNamePlaceholder, tableName)
+				.replace(AbstractMySQLQueue.archiveTablePlaceholder, archiveTableName)
+				.replace(AbstractMySQLQueue.counterTablePlaceholder, counterTableName)
+				.replace(AbstractMySQLQueue.lockingPlaceholder, pollStrategy.getLockingClause())
+				.replace(AbstractMySQLQueue.leasePlaceholder, leaseSeconds > 0
+						? ", lease_until = DATE_ADD(NOW(), INTERVAL " + leaseSeconds + " SECOND)" : "")
+				.replace(AbstractMySQLQueue.leaseResetPlaceholder, leaseSeconds > 0
+						? ", lease_until = NULL" : "")
+				.replace(AbstractMySQLQueue.leaseDonePlaceholder, leaseSeconds > 0
+						? "AND lease_until IS NULL" : "")
+				.replace(AbstractMySQLQueue.leaseHeldPlaceholder, leaseSeconds > 0
+						? "AND lease_until >= NOW()" : "");
+	}
+}
@@ -0,0 +1,481 @@
+package net.bramp.db_patterns.queues;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import net.bramp.sql.MySQLVersion;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates and migrates the tables of a queue.
+ * <p>
+ * Two layouts are supported, a queue is switched with AbstractMySQLQueue.setLayout:
+ * <ul>
+ * <li>NAMED - queue and node names stored in every row, as documented on MySQLBasedQueue.</li>
+ * <li>COMPACT - the queue name is a SMALLINT queue_id and node names are SMALLINT ids,
+ * both mapped through dictionary tables (&lt;table&gt;_queues, &lt;table&gt;_nodes), and
+ * the status is an ENUM, stored as a one byte code. The peek index
+ * (acquired, queue_id, priority, id) is then a few bytes per row, so the pending range
+ * of a queue is scanned and counted from a small index. Statuses must be declared up
+ * front with setStatuses.</li>
+ * </ul>
+ * Both layouts use BIGINT ids.
+ * <p>
+ * An existing deployment migrates online by installing a compact table under a new
+ * name, switching producers to it, moving pending rows with migratePending while old
+ * consumers keep polling the old table, then switching consumers. Rows polled by
+ * neither are locked by migratePending for the duration of one batch only, rows
+ * locked by old consumers are skipped if the server supports SKIP LOCKED.
+ *
+ * @author bramp
+ */
+public class QueueSchema {
+
+	final static Logger LOG = LoggerFactory.getLogger(QueueSchema.class);
+
+	public enum Layout {
+		NAMED, COMPACT
+	}
+
+	final DataSource ds;
+	final String tableName;
+
+	private volatile boolean delayed = false;
+
+	private volatile Set<String> statuses = new LinkedHashSet<String>(Arrays.asList("NEW", "DONE", "FAILED"));
+
+	/**
+	 * @param ds
+	 * @param tableName queue table name, without quotes
+	 */
+	public QueueSchema(DataSource ds, String tableName) {
+		if (tableName.isEmpty())
+			throw new IllegalArgumentException("tableName must not be empty");
+
+		this.ds = ds;
+		this.tableName = tableName.replaceAll("`", "");
+	}
+
+	public boolean isDelayed() {
+		return delayed;
+	}
+
+	/**
+	 * Installs the delayed_to column and index of MySQLBasedDelayQueue. Default false.
+	 */
+	public void setDelayed(boolean delayed) {
+		this.delayed = delayed;
+	}
+
+	public Set<String> getStatuses() {
+		return statuses;
+	}
+
+	/**
+	 * Sets the statuses of the compact layout status ENUM. NEW is always included.
+	 * Default NEW, DONE, FAILED.
+	 */
+	public void setStatuses(String... statuses) {
+		Set<String> set = new LinkedHashSet<String>();
+		set.add("NEW");
+		for (String status : statuses) {
+			if (status == null || status.isEmpty() || status.indexOf('\'') >= 0)
+				throw new IllegalArgumentException("Invalid status '" + status + "'");
+			set.add(status);
+		}
+		this.statuses = set;
+	}
+
+	/**
+	 * Creates the queue, archive and counter tables (and dictionary tables of the
+	 * compact layout) if they do not exist
+	 * @param layout
+	 * @throws SQLException
+	 */
+	public void install(Layout layout) throws SQLException {
+		List<String> ddl = new ArrayList<String>();
+		if (layout == Layout.COMPACT) {
+			ddl.add("CREATE TABLE IF NOT EXISTS " + quote(tableName + "_queues") + " ("
+					+ " queue_id smallint unsigned NOT NULL AUTO_INCREMENT,"
+					+ " queue_name varchar(255) NOT NULL,"
+					+ " PRIMARY KEY (queue_id),"
+					+ " UNIQUE KEY `queue_name_index` (queue_name)"
+					+ ") ENGINE=InnoDB DEFAULT CHARSET=utf8");
+			ddl.add("CREATE TABLE IF NOT EXISTS " + quote(tableName + "_nodes") + " ("
+					+ " node_id smallint unsigned NOT NULL AUTO_INCREMENT,"
+					+ " node_name varchar(255) NOT NULL,"
+					+ " PRIMARY KEY (node_id),"
+					+ " UNIQUE KEY `node_name_index` (node_name)"
+					+ ") ENGINE=InnoDB DEFAULT CHARSET=utf8");
+		}
+		ddl.add(queueTableSql(tableName, layout, false));
+		ddl.add(queueTableSql(tableName + "_archive", layout, true));
+		ddl.add(counterTableSql(layout));
+
+		Connection c = ds.getConnection();
+		try {
+			Statement s = c.createStatement();
+			try {
+				for (String sql : ddl) {
+					s.execute(sql);
+				}
+			} finally {
+				s.close();
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * @return layout of the installed queue table
+	 * @throws SQLException
+	 */
+	public Layout detectLayout() throws SQLException {
+		return hasColumn(tableName, "queue_id") ? Layout.COMPACT : Layout.NAMED;
+	}
+
+	/**
+	 * Reads the statuses of the compact layout status ENUM
+	 * @return statuses, or null if the status column accepts any value
+	 * @throws SQLException
+	 */
+	public Set<String> readStatuses() throws SQLException {
+		Connection c = ds.getConnection();
+		try {
+			PreparedStatement s = c.prepareStatement("SELECT COLUMN_TYPE FROM INFORMATION_SCHEMA.COLUMNS"
+					+ " WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND COLUMN_NAME = 'status'");
+			try {
+				s.setString(1, tableName);
+				ResultSet rs = s.executeQuery();
+				if (!rs.next())
+					throw new SQLException("Table " + quote(tableName) + " has no status column");
+				return parseEnum(rs.getString(1));
+			} finally {
+				s.close();
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * @param columnType as in INFORMATION_SCHEMA, eg enum('NEW','DONE')
+	 * @return values of the enum, or null if the column is not an enum
+	 */
+	static Set<String> parseEnum(String columnType) {
+		if (!columnType.startsWith("enum('") || !columnType.endsWith("')"))
+			return null;
+
+		Set<String> values = new LinkedHashSet<String>();
+		// Statuses can't contain quotes, see setStatuses
+		for (String value : columnType.substring(6, columnType.length() - 2).split("','")) {
+			values.add(value);
+		}
+		return Collections.unmodifiableSet(values);
+	}
+
+	/**
+	 * Widens the id of the queue and archive tables to BIGINT. The ALTER copies
+	 * the table and blocks writes while it runs, use migratePending into a new
+	 * table for a large queue.
+	 * @throws SQLException
+	 */
+	public void migrateIds() throws SQLException {
+		Connection c = ds.getConnection();
+		try {
+			Statement s = c.createStatement();
+			try {
+				s.execute("ALTER TABLE " + quote(tableName)
+						+ " MODIFY id bigint unsigned NOT NULL AUTO_INCREMENT");
+				if (tableExists(c, tableName + "_archive"))
+					s.execute("ALTER TABLE " + quote(tableName + "_archive")
+							+ " MODIFY id bigint unsigned NOT NULL AUTO_INCREMENT");
+			} finally {
+				s.close();
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Moves pending rows of a queue from a named layout table into this compact
+	 * table, batchSize rows per transaction. Moved rows get new ids. Rebuild size
+	 * counters of both queues afterwards if counted size is used. Fails before
+	 * moving a batch holding a status the status ENUM does not accept.
+	 * <p>
+	 * Rows whose dedup key is already in this table, re-added by a producer
+	 * switched to it, are deleted without being moved and logged.
+	 * @param fromTable named layout table, without quotes
+	 * @param queueName
+	 * @param batchSize
+	 * @return number of rows moved, without the dropped duplicates
+	 * @throws SQLException
+	 */
+	public long migratePending(String fromTable, String queueName, int batchSize) throws SQLException {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("batchSize must be positive");
+
+		final String from = quote(fromTable.replaceAll("`", ""));
+		final boolean delayColumn = delayed;
+		final boolean dedupColumn = hasColumn(fromTable.replaceAll("`", ""), "dedup_key");
+		final int queueId = queueId(queueName);
+		final Set<String> allowed = readStatuses();
+
+		// Do not wait on rows old consumers are polling
+		final PollStrategy locking = MySQLVersion.detect(ds).supportsSkipLocked()
+				? PollStrategy.SKIP_LOCKED : PollStrategy.FOR_UPDATE;
+
+		final String select = "SELECT id FROM " + from
+				+ " WHERE acquired IS NULL AND queue_name = ?"
+				+ " ORDER BY priority ASC, id ASC LIMIT ? " + locking.getLockingClause();
+		final String internNodes = "INSERT IGNORE INTO " + quote(tableName + "_nodes")
+				+ " (node_name) SELECT DISTINCT inserted_by FROM " + from + " WHERE id IN ";
+		final String columns = "inserted, inserted_by, status, priority, value"
+				+ (delayColumn ? ", delayed_to" : "") + (dedupColumn ? ", dedup_key" : "");
+		final String insert = "INSERT INTO " + quote(tableName)
+				+ " (queue_id, " + columns + ") SELECT ?, o.inserted, n.node_id, o.status, o.priority, o.value"
+				+ (delayColumn ? ", o.delayed_to" : "") + (dedupColumn ? ", o.dedup_key" : "")
+				+ " FROM " + from + " o JOIN " + quote(tableName + "_nodes") + " n ON n.node_name = o.inserted_by"
+				+ (dedupColumn ? " WHERE NOT EXISTS (SELECT 1 FROM " + quote(tableName) + " t"
+						+ " WHERE t.queue_id = " + queueId + " AND t.dedup_key = o.dedup_key)" + " AND" : " WHERE")
+				+ " o.id IN ";
+		final String delete = "DELETE FROM " + from + " WHERE id IN ";
+		final String selectStatuses = "SELECT DISTINCT status FROM " + from + " WHERE id IN ";
+
+		long total = 0;
+		long dropped = 0;
+		Connection c = ds.getConnection();
+		try {
+			c.setAutoCommit(false);
+			while (true) {
+				List<Long> ids = new ArrayList<Long>();
+				PreparedStatement s = c.prepareStatement(select);
+				try {
+					s.setString(1, queueName);
+					s.setInt(2, batchSize);
+					ResultSet rs = s.executeQuery();
+					while (rs.next()) {
+						ids.add(rs.getLong(1));
+					}
+				} finally {
+					s.close();
+				}
+
+				if (ids.isEmpty()) {
+					c.commit();
+					break;
+				}
+
+				if (allowed != null)
+					checkStatuses(c, AbstractMySQLQueue.appendIdList(selectStatuses, ids.size()), ids, allowed);
+
+				executeForIds(c, AbstractMySQLQueue.appendIdList(internNodes, ids.size()), ids, null);
+				int moved = executeForIds(c, AbstractMySQLQueue.appendIdList(insert, ids.size()), ids, queueId);
+				executeForIds(c, AbstractMySQLQueue.appendIdList(delete, ids.size()), ids, null);
+				c.commit();
+
+				total += moved;
+				if (moved < ids.size()) {
+					dropped += ids.size() - moved;
+					LOG.warn("Dropped " + (ids.size() - moved) + " pending rows of '" + queueName + "' among ids "
+							+ ids + ", their dedup keys are already in " + quote(tableName));
+				}
+				if (ids.size() < batchSize)
+					break;
+			}
+		} catch (SQLException e) {
+			c.rollback();
+			throw e;
+		} catch (RuntimeException e) {
+			c.rollback();
+			throw e;
+		} finally {
+			c.setAutoCommit(true);
+			c.close();
+		}
+
+		LOG.info("Moved " + total + " pending rows of '" + queueName + "' from " + from + " to " + quote(tableName)
+				+ (dropped > 0 ? ", dropped " + dropped + " duplicates" : ""));
+		return total;
+	}
+
+	/**
+	 * Returns the compact layout id of a queue name, adding it to the dictionary if missing
+	 * @param queueName
+	 * @return queue id
+	 * @throws SQLException
+	 */
+	public int queueId(String queueName) throws SQLException {
+		return intern(quote(tableName + "_queues"), "queue_id", "queue_name", queueName);
+	}
+
+	/**
+	 * Returns the compact layout id of a node name, adding it to the dictionary if missing
+	 * @param node
+	 * @return node id
+	 * @throws SQLException
+	 */
+	public int nodeId(String node) throws SQLException {
+		return intern(quote(tableName + "_nodes"), "node_id", "node_name", node);
+	}
+
+	protected int intern(String table, String idColumn, String nameColumn, String name) throws SQLException {
+		Connection c = ds.getConnection();
+		try {
+			PreparedStatement s = c.prepareStatement("INSERT IGNORE INTO " + table
+					+ " (" + nameColumn + ") VALUES (?)");
+			try {
+				s.setString(1, name);
+				s.executeUpdate();
+			} finally {
+				s.close();
+			}
+
+			s = c.prepareStatement("SELECT " + idColumn + " FROM " + table + " WHERE " + nameColumn + " = ?");
+			try {
+				s.setString(1, name);
+				ResultSet rs = s.executeQuery();
+				if (!rs.next())
+					throw new SQLException("'" + name + "' missing from " + table);
+				return rs.getInt(1);
+			} finally {
+				s.close();
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+	protected String queueTableSql(String name, Layout layout, boolean archive) {
+		final boolean compact = layout == Layout.COMPACT;
+		final String queueColumn = compact ? "queue_id" : "queue_name";
+		final String nodeType = compact ? "smallint unsigned" : "varchar(255)";
+
+		StringBuilder sql = new StringBuilder("CREATE TABLE IF NOT EXISTS ").append(quote(name)).append(" (")
+				.append(" id bigint unsigned NOT NULL AUTO_INCREMENT,")
+				.append(" ").append(queueColumn).append(compact ? " smallint unsigned" : " varchar(255)").append(" NOT NULL,")
+				.append(" inserted timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,")
+				.append(" inserted_by ").append(nodeType).append(" NOT NULL,")
+				.append(" acquired timestamp NULL DEFAULT NULL,")
+				.append(" acquired_by ").append(nodeType).append(" DEFAULT NULL,")
+				.append(" status ").append(compact ? statusEnum() : "varchar(255)").append(" NOT NULL DEFAULT 'NEW',");
+		if (delayed)
+			sql.append(" delayed_to timestamp NULL DEFAULT NULL,");
+		sql.append(" priority int(11) NOT NULL DEFAULT '0',")
+				.append(" value blob NOT NULL,")
+				.append(" claim_token varchar(64) DEFAULT NULL,")
+				.append(" lease_until timestamp NULL DEFAULT NULL,")
+				.append(" dedup_key varchar(255) DEFAULT NULL,")
+				.append(" PRIMARY KEY (id),")
+				.append(" UNIQUE KEY `queue_peek_index` (acquired, ").append(queueColumn)
+				.append(delayed ? ", delayed_to" : "").append(", priority, id),")
+				.append(" KEY `queue_claim_index` (claim_token),")
+				.append(" KEY `queue_lease_index` (").append(queueColumn).append(", lease_until, acquired),")
+				.append(" KEY `queue_acquired_index` (").append(queueColumn).append(", acquired),")
+				// Archived rows keep their keys, but the window of the queue table no longer applies
+				.append(archive ? " KEY" : " UNIQUE KEY")
+				.append(" `queue_dedup_index` (").append(queueColumn).append(", dedup_key)")
+				.append(") ENGINE=InnoDB DEFAULT CHARSET=utf8");
+		return sql.toString();
+	}
+
+	protected String counterTableSql(Layout layout) {
+		final String queueColumn = layout == Layout.COMPACT
+				? "queue_id smallint unsigned" : "queue_name varchar(255)";
+		return "CREATE TABLE IF NOT EXISTS " + quote(tableName + "_counter") + " ("
+				+ " " + queueColumn + " NOT NULL,"
+				+ " stripe int(11) NOT NULL,"
+				+ " pending bigint(20) NOT NULL DEFAULT '0',"
+				+ " PRIMARY KEY (" + (layout == Layout.COMPACT ? "queue_id" : "queue_name") + ", stripe)"
+				+ ") ENGINE=InnoDB DEFAULT CHARSET=utf8";
+	}
+
+	protected String statusEnum() {
+		StringBuilder sql = new StringBuilder("enum(");
+		for (String status : statuses) {
+			if (sql.length() > 5)
+				sql.append(", ");
+			sql.append('\'').append(status).append('\'');
+		}
+		return sql.append(')').toString();
+	}
+
+	protected boolean hasColumn(String table, String column) throws SQLException {
+		Connection c = ds.getConnection();
+		try {
+			PreparedStatement s = c.prepareStatement("SELECT 1 FROM INFORMATION_SCHEMA.COLUMNS"
+					+ " WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND COLUMN_NAME = ?");
+			try {
+				s.setString(1, table);
+				s.setString(2, column);
+				return s.executeQuery().next();
+			} finally {
+				s.close();
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+	protected boolean tableExists(Connection c, String table) throws SQLException {
+		PreparedStatement s = c.prepareStatement("SELECT 1 FROM INFORMATION_SCHEMA.TABLES"
+				+ " WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ?");
+		try {
+			s.setString(1, table);
+			return s.executeQuery().next();
+		} finally {
+			s.close();
+		}
+	}
+
+	private static void checkStatuses(Connection c, String sql, List<Long> ids, Set<String> allowed) throws SQLException {
+		PreparedStatement s = c.prepareStatement(sql);
+		try {
+			for (int i = 0; i < ids.size(); i++) {
+				s.setLong(i + 1, ids.get(i));
+			}
+			ResultSet rs = s.executeQuery();
+			while (rs.next()) {
+				if (!allowed.contains(rs.getString(1)))
+					throw new IllegalStateException("Status '" + rs.getString(1) + "' is not one of " + allowed
+							+ ", add it with ALTER TABLE before migrating");
+			}
+		} finally {
+			s.close();
+		}
+	}
+
+	private static int executeForIds(Connection c, String sql, List<Long> ids, Integer first) throws SQLException {
+		PreparedStatement s = c.prepareStatement(sql);
+		try {
+			int index = 1;
+			if (first != null)
+				s.setInt(index++, first);
+			for (Long id : ids) {
+				s.setLong(index++, id);
+			}
+			return s.executeUpdate();
+		} finally {
+			s.close();
+		}
+	}
+
+	static String quote(String tableName) {
+		return "`" + tableName + "`";
+	}
+}
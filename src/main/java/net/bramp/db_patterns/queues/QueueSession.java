@@ -0,0 +1,311 @@
+package net.bramp.db_patterns.queues;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pins one connection to a consumer. Queue operations run through the
+ * session use that connection, including the SLEEP() of blocking polls,
+ * instead of checking connections out of the pool for every call. Prepared
+ * statements are kept open and reused across operations, so with
+ * useServerPrepStmts=true the server parses each query once per session.
+ * <p>
+ * After an operation fails the cached statements are dropped and the
+ * connection is validated before the next operation, replacing it if it broke.
+ * <p>
+ * Not thread safe, use one session per consumer thread:
+ * <pre>
+ * try (QueueSession&lt;String&gt; session = queue.openSession()) {
+ *   while (running) {
+ *     ValueContainer&lt;String&gt; item = session.pollWithMetadata(10, TimeUnit.SECONDS);
+ *     ...
+ *     session.updateStatus(item.getId(), "DONE");
+ *   }
+ * }
+ * </pre>
+ *
+ * @param <E>
+ * @author bramp
+ */
+public class QueueSession<E> implements AutoCloseable {
+
+	final static Logger LOG = LoggerFactory.getLogger(QueueSession.class);
+
+	/**
+	 * Seconds to wait for a connection to be validated
+	 */
+	final static int VALIDATION_TIMEOUT = 5;
+
+	final AbstractMySQLQueue<E> queue;
+	final int maxStatements;
+
+	/**
+	 * Open statements by SQL, least recently used first
+	 */
+	final LinkedHashMap<String, CachedStatement> statements;
+
+	Connection connection = null;
+	Connection pinned = null;
+	boolean invalid = false;
+	boolean closed = false;
+
+	/**
+	 * @param queue queue to run operations on
+	 * @param maxStatements max number of prepared statements kept open
+	 */
+	QueueSession(AbstractMySQLQueue<E> queue, int maxStatements) {
+		if (maxStatements < 1)
+			throw new IllegalArgumentException("maxStatements must be positive");
+
+		this.queue = queue;
+		this.maxStatements = maxStatements;
+		this.statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true);
+	}
+
+	public AbstractMySQLQueue<E> getQueue() {
+		return queue;
+	}
+
+	interface BlockingOperation<E, T> {
+		T apply(AbstractMySQLQueue<E> queue) throws InterruptedException;
+	}
+
+	/**
+	 * Runs queue operations on the pinned connection
+	 * @param operation called with the queue
+	 * @return result of the operation
+	 */
+	public <T> T run(Function<? super AbstractMySQLQueue<E>, T> operation) {
+		try {
+			return runBlocking(operation::apply);
+		} catch (InterruptedException e) {
+			throw new AssertionError(e); // Functions can't throw it
+		}
+	}
+
+	<T> T runBlocking(BlockingOperation<E, T> operation) throws InterruptedException {
+		if (closed)
+			throw new IllegalStateException("Session is closed");
+		if (queue.session.get() != null)
+			throw new IllegalStateException("A session is already running on this thread");
+
+		queue.session.set(this);
+		try {
+			return operation.apply(queue);
+		} catch (RuntimeException e) {
+			invalidate();
+			throw e;
+		} finally {
+			queue.session.remove();
+		}
+	}
+
+	public ValueContainer<E> pollWithMetadata() {
+		return run(q -> q.pollWithMetadata());
+	}
+
+	public List<ValueContainer<E>> pollBatchWithMetadata(int n) {
+		return run(q -> q.pollBatchWithMetadata(n));
+	}
+
+	/**
+	 * Polls and sleeps on the pinned connection until an item is claimed or the timeout elapses
+	 */
+	public ValueContainer<E> pollWithMetadata(long timeout, TimeUnit unit) throws InterruptedException {
+		return runBlocking(q -> q.pollWithMetadata(timeout, unit));
+	}
+
+	public ValueContainer<E> takeWithMetadata() throws InterruptedException {
+		ValueContainer<E> head = null;
+		while (head == null) {
+			if (Thread.interrupted())
+				throw new InterruptedException();
+
+			head = pollWithMetadata(queue.getTakeBlockingTime(), TimeUnit.SECONDS);
+		}
+		return head;
+	}
+
+	public ValueContainer<E> peekWithMetadata() {
+		return run(q -> q.peekWithMetadata());
+	}
+
+	public int size() {
+		return run(q -> q.size());
+	}
+
+	public boolean ack(long id) {
+		return run(q -> q.ack(id));
+	}
+
+	public int release(List<ValueContainer<E>> items) {
+		return run(q -> q.release(items));
+	}
+
+	public int complete(String status, List<Long> ids) {
+		return run(q -> q.complete(status, ids));
+	}
+
+	public void updateStatus(long id, String newStatus) {
+		run(q -> {
+			q.updateStatus(id, newStatus);
+			return null;
+		});
+	}
+
+	public String getStatus(long id) {
+		return run(q -> q.getStatus(id));
+	}
+
+	/**
+	 * Returns the pinned connection, validating it first if the last operation failed.
+	 * Its close() does nothing and its statements are cached.
+	 */
+	Connection connection() throws SQLException {
+		if (connection != null && invalid) {
+			if (connection.isValid(VALIDATION_TIMEOUT)) {
+				if (!connection.getAutoCommit()) {
+					connection.rollback();
+					connection.setAutoCommit(true);
+				}
+			} else {
+				LOG.info("Replacing broken connection of session on '{}'", queue.queueName);
+				closeQuietly(connection);
+				connection = null;
+			}
+			invalid = false;
+		}
+
+		if (connection == null) {
+			connection = queue.ds.getConnection();
+			pinned = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+					new Class<?>[] { Connection.class }, new PinnedConnection());
+		}
+		return pinned;
+	}
+
+	/**
+	 * Drops cached statements and validates the connection before the next operation
+	 */
+	protected void invalidate() {
+		closeStatements();
+		invalid = true;
+	}
+
+	protected void closeStatements() {
+		for (CachedStatement s : statements.values()) {
+			closeQuietly(s.statement);
+		}
+		statements.clear();
+	}
+
+	/**
+	 * Number of prepared statements kept open
+	 */
+	public int openStatements() {
+		return statements.size();
+	}
+
+	@Override
+	public void close() {
+		if (closed)
+			return;
+
+		closed = true;
+		closeStatements();
+		if (connection != null) {
+			closeQuietly(connection);
+			connection = null;
+			pinned = null;
+		}
+	}
+
+	static void closeQuietly(AutoCloseable c) {
+		try {
+			c.close();
+		} catch (Exception e) {
+		}
+	}
+
+	PreparedStatement prepare(String sql, boolean call) throws SQLException {
+		String key = call ? "CALL " + sql : sql;
+		CachedStatement cached = statements.get(key);
+		if (cached != null && !cached.statement.isClosed())
+			return cached.proxy;
+
+		cached = new CachedStatement(call ? connection.prepareCall(sql) : connection.prepareStatement(sql), call);
+		statements.put(key, cached);
+
+		if (statements.size() > maxStatements) {
+			Iterator<CachedStatement> eldest = statements.values().iterator();
+			closeQuietly(eldest.next().statement);
+			eldest.remove();
+		}
+		return cached.proxy;
+	}
+
+	static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Connection whose close() does nothing and whose statements are cached
+	 */
+	class PinnedConnection implements InvocationHandler {
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("close"))
+				return null;
+			if (args != null && args.length == 1 && args[0] instanceof String) {
+				if (name.equals("prepareStatement"))
+					return prepare((String) args[0], false);
+				if (name.equals("prepareCall"))
+					return prepare((String) args[0], true);
+			}
+			return QueueSession.invoke(connection, method, args);
+		}
+	}
+
+	/**
+	 * Statement whose close() does nothing, it is closed with the session or when evicted
+	 */
+	static class CachedStatement implements InvocationHandler {
+		final PreparedStatement statement;
+		final PreparedStatement proxy;
+
+		CachedStatement(PreparedStatement statement, boolean call) {
+			this.statement = statement;
+			this.proxy = (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+					new Class<?>[] { call ? CallableStatement.class : PreparedStatement.class }, this);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getName().equals("close")) {
+				if (!statement.isClosed())
+					statement.clearParameters();
+				return null;
+			}
+			return QueueSession.invoke(statement, method, args);
+		}
+	}
+}
@@ -0,0 +1,427 @@
+package net.bramp.db_patterns.queues;
+
+import java.io.Closeable;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a handler over queue items on a fixed number of workers.
+ * <p>
+ * A claimer thread claims items in batches while workers have capacity,
+ * and completed items are written back with one UPDATE per status every
+ * flush interval, so DB round trips overlap with processing instead of
+ * adding to the latency of every item.
+ * <p>
+ * shutdown stops claiming, waits for running items, flushes completions
+ * and releases claimed items nobody started.
+ *
+ * @param <E>
+ * @author bramp
+ */
+public class QueueWorkerPool<E> implements Closeable {
+
+	final static Logger LOG = LoggerFactory.getLogger(QueueWorkerPool.class);
+
+	/**
+	 * Processes one item
+	 */
+	public interface Handler<E> {
+		/**
+		 * @return new status of the item, or null for the pool completed status
+		 * @throws Exception to mark the item with the pool failed status
+		 */
+		public String handle(ValueContainer<E> item) throws Exception;
+	}
+
+	final AbstractMySQLQueue<E> queue;
+	final Handler<E> handler;
+	final int concurrency;
+
+	/**
+	 * Items claimed and not finished, bounded to concurrency + prefetch
+	 */
+	final Semaphore capacity;
+	final int maxInFlight;
+
+	final ThreadPoolExecutor workers;
+
+	/**
+	 * Work handed to the workers and not started yet
+	 */
+	final Set<Work> notStarted = Collections.newSetFromMap(new ConcurrentHashMap<Work, Boolean>());
+
+	final ScheduledExecutorService flusher;
+	final Thread claimer;
+
+	final ConcurrentLinkedQueue<Completion> completions = new ConcurrentLinkedQueue<Completion>();
+	final AtomicInteger pendingCompletions = new AtomicInteger(0);
+
+	volatile boolean running = true;
+
+	private volatile String completedStatus = "DONE";
+	private volatile String failedStatus = "FAILED";
+	private volatile int claimBatchSize = 100;
+	private volatile int maxCompleteAttempts = 5;
+
+	/**
+	 * time in seconds
+	 */
+	private volatile int claimBlockingTime = 1;
+
+	/**
+	 * @param queue queue to consume
+	 * @param handler processes items
+	 * @param concurrency number of worker threads
+	 * @param prefetch number of items claimed ahead of free workers
+	 * @param flushInterval how often completions are written back, in milliseconds
+	 */
+	public QueueWorkerPool(final AbstractMySQLQueue<E> queue, Handler<E> handler,
+			int concurrency, int prefetch, long flushInterval) {
+		if (concurrency < 1)
+			throw new IllegalArgumentException("concurrency must be positive");
+		if (prefetch < 0)
+			throw new IllegalArgumentException("prefetch must not be negative");
+		if (flushInterval < 1)
+			throw new IllegalArgumentException("flushInterval must be positive");
+
+		this.queue = queue;
+		this.handler = handler;
+		this.concurrency = concurrency;
+		this.maxInFlight = concurrency + prefetch;
+		this.capacity = new Semaphore(maxInFlight);
+
+		this.workers = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), AsyncMySQLQueue.threadFactory("worker-" + queue.queueName));
+		this.flusher = Executors.newSingleThreadScheduledExecutor(
+				AsyncMySQLQueue.threadFactory("worker-flush-" + queue.queueName));
+		this.flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+
+		this.claimer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				claimLoop();
+			}
+		}, "worker-claim-" + queue.queueName);
+		this.claimer.setDaemon(true);
+		this.claimer.start();
+	}
+
+	/**
+	 * Uses as many prefetched items as workers, and flushes completions every 100ms
+	 */
+	public QueueWorkerPool(AbstractMySQLQueue<E> queue, Handler<E> handler, int concurrency) {
+		this(queue, handler, concurrency, concurrency, 100);
+	}
+
+	public String getCompletedStatus() {
+		return completedStatus;
+	}
+
+	/**
+	 * Sets status of items the handler returned null for. Default DONE.
+	 */
+	public void setCompletedStatus(String completedStatus) {
+		this.completedStatus = completedStatus;
+	}
+
+	public String getFailedStatus() {
+		return failedStatus;
+	}
+
+	/**
+	 * Sets status of items the handler threw for. Default FAILED.
+	 */
+	public void setFailedStatus(String failedStatus) {
+		this.failedStatus = failedStatus;
+	}
+
+	public int getClaimBatchSize() {
+		return claimBatchSize;
+	}
+
+	/**
+	 * Sets max number of items claimed by one query. Default 100.
+	 */
+	public void setClaimBatchSize(int claimBatchSize) {
+		if (claimBatchSize < 1)
+			throw new IllegalArgumentException("claimBatchSize must be positive");
+		this.claimBatchSize = claimBatchSize;
+	}
+
+	public int getMaxCompleteAttempts() {
+		return maxCompleteAttempts;
+	}
+
+	/**
+	 * Sets how many flushes try to write back a completion failing with an
+	 * SQLException before it is dropped. Other failures are not retried. Default 5.
+	 */
+	public void setMaxCompleteAttempts(int maxCompleteAttempts) {
+		if (maxCompleteAttempts < 1)
+			throw new IllegalArgumentException("maxCompleteAttempts must be positive");
+		this.maxCompleteAttempts = maxCompleteAttempts;
+	}
+
+	public int getClaimBlockingTime() {
+		return claimBlockingTime;
+	}
+
+	/**
+	 * Sets how long the claimer waits on an empty queue before checking for
+	 * shutdown. Unit - seconds. Default 1.
+	 */
+	public void setClaimBlockingTime(int claimBlockingTime) {
+		this.claimBlockingTime = claimBlockingTime;
+	}
+
+	static class Completion {
+		final long id;
+		final String status;
+
+		/**
+		 * Failed flushes so far
+		 */
+		final int attempts;
+
+		Completion(long id, String status, int attempts) {
+			this.id = id;
+			this.status = status;
+			this.attempts = attempts;
+		}
+	}
+
+	protected class Work implements Runnable {
+		final ValueContainer<E> item;
+
+		Work(ValueContainer<E> item) {
+			this.item = item;
+		}
+
+		@Override
+		public void run() {
+			// Released by shutdown
+			if (!notStarted.remove(this))
+				return;
+
+			String status = failedStatus;
+			try {
+				status = handler.handle(item);
+				if (status == null)
+					status = completedStatus;
+			} catch (Exception e) {
+				LOG.warn("Failed to process item " + item.getId() + " of '" + queue.queueName + "'", e);
+			} catch (Throwable t) {
+				// Still completed as failed below, so the claim is not leaked
+				LOG.error("Failed to process item " + item.getId() + " of '" + queue.queueName + "'", t);
+				throw t;
+			} finally {
+				completed(item.getId(), status);
+			}
+		}
+
+		private void completed(long id, String status) {
+			completions.add(new Completion(id, status, 0));
+			capacity.release();
+
+			if (pendingCompletions.incrementAndGet() >= claimBatchSize) {
+				try {
+					flusher.execute(new Runnable() {
+						@Override
+						public void run() {
+							flush();
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					// Shutting down, the final flush picks it up
+				}
+			}
+		}
+	}
+
+	protected void claimLoop() {
+		while (running) {
+			try {
+				capacity.acquire();
+				int n = 1 + capacity.drainPermits();
+				int batch = Math.min(n, claimBatchSize);
+				capacity.release(n - batch);
+
+				List<ValueContainer<E>> items = queue.pollBatchWithMetadata(batch);
+				if (items.isEmpty()) {
+					// Block on the queue condition for a single item
+					ValueContainer<E> item = running
+							? queue.pollWithMetadata(claimBlockingTime, TimeUnit.SECONDS)
+							: null;
+					items = new ArrayList<ValueContainer<E>>(1);
+					if (item != null)
+						items.add(item);
+				}
+				capacity.release(batch - items.size());
+
+				for (int i = 0; i < items.size(); i++) {
+					try {
+						if (running) {
+							Work work = new Work(items.get(i));
+							notStarted.add(work);
+							try {
+								workers.execute(work);
+								continue;
+							} catch (RejectedExecutionException e) {
+								notStarted.remove(work);
+								throw e;
+							}
+						}
+					} catch (RejectedExecutionException e) {
+						// Workers already shut down
+					}
+
+					// Claimed while shutting down
+					queue.release(items.subList(i, items.size()));
+					capacity.release(items.size() - i);
+					break;
+				}
+
+			} catch (InterruptedException e) {
+				// Shutting down
+				return;
+			} catch (RuntimeException e) {
+				LOG.warn("Failed to claim items of '" + queue.queueName + "'", e);
+				pause();
+			}
+		}
+	}
+
+	private void pause() {
+		try {
+			Thread.sleep(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Writes back completed items, one UPDATE per status. Completions failing
+	 * with an SQLException are retried by the next flush, up to
+	 * maxCompleteAttempts times, other failures (such as a status the queue
+	 * rejects) are dropped straight away. Dropped items stay acquired, or are
+	 * re-queued once their lease expires.
+	 */
+	protected void flush() {
+		Map<String, List<Completion>> byStatus = new LinkedHashMap<String, List<Completion>>();
+		Completion completion;
+		while ((completion = completions.poll()) != null) {
+			pendingCompletions.decrementAndGet();
+			List<Completion> batch = byStatus.get(completion.status);
+			if (batch == null) {
+				batch = new ArrayList<Completion>();
+				byStatus.put(completion.status, batch);
+			}
+			batch.add(completion);
+		}
+
+		final int maxAttempts = maxCompleteAttempts;
+		for (Map.Entry<String, List<Completion>> entry : byStatus.entrySet()) {
+			List<Completion> batch = entry.getValue();
+			List<Long> ids = new ArrayList<Long>(batch.size());
+			for (Completion c : batch) {
+				ids.add(c.id);
+			}
+
+			try {
+				queue.complete(entry.getKey(), ids);
+			} catch (RuntimeException e) {
+				boolean retry = e.getCause() instanceof SQLException;
+				int dropped = 0;
+				for (Completion c : batch) {
+					if (retry && c.attempts + 1 < maxAttempts) {
+						// Put it back for the next flush
+						completions.add(new Completion(c.id, c.status, c.attempts + 1));
+						pendingCompletions.incrementAndGet();
+					} else {
+						dropped++;
+					}
+				}
+
+				if (dropped > 0) {
+					LOG.error("Dropped " + dropped + " completions (" + entry.getKey() + ") of '"
+							+ queue.queueName + "' among ids " + ids, e);
+				} else {
+					LOG.warn("Failed to complete " + ids.size() + " items of '" + queue.queueName + "'", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Number of items claimed and not completed
+	 */
+	public int inFlight() {
+		return maxInFlight - capacity.availablePermits();
+	}
+
+	/**
+	 * Stops claiming, releases claimed items not started yet, waits for
+	 * running items and writes back their completions.
+	 * @return false if running items did not finish in time
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		running = false;
+		claimer.interrupt();
+		claimer.join(unit.toMillis(timeout));
+
+		// Running items are left to finish
+		workers.getQueue().clear();
+		workers.shutdown();
+
+		List<ValueContainer<E>> items = new ArrayList<ValueContainer<E>>(notStarted.size());
+		for (Work work : notStarted) {
+			// Whoever removes it first either runs or releases it
+			if (notStarted.remove(work))
+				items.add(work.item);
+		}
+		if (!items.isEmpty()) {
+			int released = queue.release(items);
+			LOG.debug("Released {} claimed items of '{}'", released, queue.queueName);
+		}
+
+		boolean finished = workers.awaitTermination(timeout, unit);
+
+		flusher.shutdown();
+		flusher.awaitTermination(timeout, unit);
+		flush();
+		return finished;
+	}
+
+	@Override
+	public void close() {
+		try {
+			if (!shutdown(queue.getTakeBlockingTime(), TimeUnit.SECONDS))
+				LOG.warn("Workers of '{}' did not finish in time", queue.queueName);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package net.bramp.db_patterns.queues;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How transactions rolled back by a deadlock or lock wait timeout are retried.
+ * <p>
+ * Attempts are bounded, and retries back off with decorrelated jitter: each
+ * delay is random between the base delay and three times the previous delay,
+ * capped at the max delay, so consumers which deadlocked together do not
+ * collide again. An optional budget limits retries per second across every
+ * queue using this policy, so a deadlock storm fails fast instead of feeding itself.
+ *
+ * @author bramp
+ */
+public class RetryPolicy {
+
+	/**
+	 * Up to 10 attempts, backing off from 5ms to 1s, without a budget
+	 */
+	public static final RetryPolicy DEFAULT = new RetryPolicy(10, 5, 1000, TimeUnit.MILLISECONDS);
+
+	/**
+	 * Fails on the first deadlock
+	 */
+	public static final RetryPolicy NEVER = new RetryPolicy(1, 0, 0, TimeUnit.MILLISECONDS);
+
+	final int maxAttempts;
+	final long baseDelayNanos;
+	final long maxDelayNanos;
+
+	/**
+	 * Retries per second allowed across all users of this policy, 0 for no limit
+	 */
+	private volatile int budget = 0;
+
+	/**
+	 * Token bucket of the budget
+	 */
+	private double tokens = 0;
+	private long refilledAt = System.nanoTime();
+
+	/**
+	 * @param maxAttempts max number of attempts, including the first one
+	 * @param baseDelay smallest delay before a retry
+	 * @param maxDelay largest delay before a retry
+	 * @param unit of the delays
+	 */
+	public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay, TimeUnit unit) {
+		if (maxAttempts < 1)
+			throw new IllegalArgumentException("maxAttempts must be positive");
+		if (baseDelay < 0 || maxDelay < baseDelay)
+			throw new IllegalArgumentException("Delays must satisfy 0 <= baseDelay <= maxDelay");
+
+		this.maxAttempts = maxAttempts;
+		this.baseDelayNanos = unit.toNanos(baseDelay);
+		this.maxDelayNanos = unit.toNanos(maxDelay);
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public long getBaseDelay(TimeUnit unit) {
+		return unit.convert(baseDelayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	public long getMaxDelay(TimeUnit unit) {
+		return unit.convert(maxDelayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Gets retries per second allowed across all users of this policy, 0 for no limit. Default 0.
+	 */
+	public int getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Sets retries per second allowed across all queues using this policy.
+	 * Once spent, operations fail on their next deadlock until it refills.
+	 * 0 removes the limit. Not allowed on the shared DEFAULT and NEVER policies.
+	 */
+	public synchronized void setBudget(int retriesPerSecond) {
+		if (this == DEFAULT || this == NEVER)
+			throw new IllegalStateException("Shared policies can't have a budget, create a new RetryPolicy");
+		if (retriesPerSecond < 0)
+			throw new IllegalArgumentException("retriesPerSecond must not be negative");
+
+		this.budget = retriesPerSecond;
+		this.tokens = retriesPerSecond;
+		this.refilledAt = System.nanoTime();
+	}
+
+	/**
+	 * Decides if a failed attempt is retried.
+	 * @param attempt number of attempts made so far, from 1
+	 * @param previousDelayNanos delay before the failed attempt, 0 for the first one
+	 * @return delay in nanoseconds before the next attempt, or -1 to give up
+	 */
+	public long nextDelay(int attempt, long previousDelayNanos) {
+		if (attempt >= maxAttempts)
+			return -1;
+		if (budget > 0 && !tryAcquire())
+			return -1;
+
+		long low = baseDelayNanos;
+		long high = Math.min(maxDelayNanos, Math.max(low, previousDelayNanos) * 3);
+		if (high <= low)
+			return low;
+		return ThreadLocalRandom.current().nextLong(low, high + 1);
+	}
+
+	/**
+	 * Takes a retry from the budget
+	 */
+	protected synchronized boolean tryAcquire() {
+		final int budget = this.budget;
+		if (budget == 0)
+			return true;
+
+		long now = System.nanoTime();
+		tokens = Math.min(budget, tokens + (now - refilledAt) * budget / 1e9);
+		refilledAt = now;
+
+		if (tokens < 1)
+			return false;
+		tokens--;
+		return true;
+	}
+}
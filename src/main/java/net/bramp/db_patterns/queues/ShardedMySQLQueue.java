@@ -0,0 +1,502 @@
+package net.bramp.db_patterns.queues;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import net.bramp.db_patterns.queues.interfaces.CleanableQueue;
+import net.bramp.db_patterns.queues.interfaces.PriorityQueue;
+import net.bramp.db_patterns.queues.interfaces.StatusableQueue;
+import net.bramp.serializator.Serializator;
+
+/**
+ * A queue spread over N tables, to spread InnoDB lock and index contention.
+ * Each shard is a regular queue with the same queue name in its own table.
+ * <p>
+ * Producers pick a shard by round robin, or by hash of a key. Consumers poll
+ * shards starting at a random one, so priority order is only approximately global.
+ * <p>
+ * Ids of returned items encode the shard: shardedId = id * shards + shard
+ *
+ * @param <E>
+ * @author bramp
+ */
+public class ShardedMySQLQueue<E> extends AbstractBlockingQueue<E> implements
+		StatusableQueue<E, ValueContainer<E>>, PriorityQueue<E>, CleanableQueue {
+
+	final List<AbstractMySQLQueue<E>> shards;
+	final AtomicInteger nextShard = new AtomicInteger(0);
+	final Random random = new Random();
+
+	/**
+	 * @param shards queues with the same queue name, each in a different table
+	 */
+	public ShardedMySQLQueue(List<? extends AbstractMySQLQueue<E>> shards) {
+		if (shards.isEmpty())
+			throw new IllegalArgumentException("At least one shard is needed");
+
+		String queueName = shards.get(0).queueName;
+		for (AbstractMySQLQueue<E> shard : shards) {
+			if (!shard.queueName.equals(queueName))
+				throw new IllegalArgumentException("All shards must have the same queue name");
+		}
+
+		this.shards = Collections.unmodifiableList(new ArrayList<AbstractMySQLQueue<E>>(shards));
+	}
+
+	/**
+	 * Creates MySQLBasedQueue shards storing values using statement setObject.
+	 *
+	 * @param ds datasource
+	 * @param queueTableNames one queue table per shard
+	 * @param queueName queue name in database
+	 * @param type value primitive type
+	 * @param me The name of this node, for storing in the database table
+	 */
+	public ShardedMySQLQueue(DataSource ds, List<String> queueTableNames, String queueName, Class<E> type, String me) {
+		this(createShards(ds, queueTableNames, queueName, type, null, me));
+	}
+
+	/**
+	 * Creates MySQLBasedQueue shards storing values using serializator.
+	 *
+	 * @param ds datasource
+	 * @param queueTableNames one queue table per shard
+	 * @param queueName queue name in database
+	 * @param serializator used to store values
+	 * @param me The name of this node, for storing in the database table
+	 */
+	public ShardedMySQLQueue(DataSource ds, List<String> queueTableNames, String queueName, Serializator<E> serializator, String me) {
+		this(createShards(ds, queueTableNames, queueName, null, serializator, me));
+	}
+
+	static <E> List<MySQLBasedQueue<E>> createShards(DataSource ds, List<String> queueTableNames, String queueName,
+			Class<E> type, Serializator<E> serializator, String me) {
+		List<MySQLBasedQueue<E>> shards = new ArrayList<MySQLBasedQueue<E>>(queueTableNames.size());
+		for (String queueTableName : queueTableNames) {
+			if (serializator == null) {
+				shards.add(new MySQLBasedQueue<E>(ds, queueTableName, queueName, type, me));
+			} else {
+				shards.add(new MySQLBasedQueue<E>(ds, queueTableName, queueName, serializator, me));
+			}
+		}
+		return shards;
+	}
+
+	public List<AbstractMySQLQueue<E>> getShards() {
+		return shards;
+	}
+
+	/**
+	 * Shard used by the next round robin add
+	 */
+	protected int nextShard() {
+		return (nextShard.getAndIncrement() & Integer.MAX_VALUE) % shards.size();
+	}
+
+	/**
+	 * Shard used by keyed adds
+	 */
+	protected int shardFor(Object key) {
+		return (key.hashCode() & Integer.MAX_VALUE) % shards.size();
+	}
+
+	protected int randomShard() {
+		return random.nextInt(shards.size());
+	}
+
+	protected long toShardedId(long id, int shard) {
+		return id * shards.size() + shard;
+	}
+
+	protected int shardOf(long shardedId) {
+		return (int) (shardedId % shards.size());
+	}
+
+	protected long idOf(long shardedId) {
+		return shardedId / shards.size();
+	}
+
+	protected ValueContainer<E> toSharded(ValueContainer<E> item, int shard) {
+		if (item == null)
+			return null;
+		return new ValueContainer<E>(toShardedId(item.id, shard), item.status, item.priority, item.value);
+	}
+
+	protected ValueContainer<E> fromSharded(ValueContainer<E> item) {
+		return new ValueContainer<E>(idOf(item.id), item.status, item.priority, item.value);
+	}
+
+	@Override
+	public boolean add(E value) {
+		return add(value, ValueContainer.DEFAULT_PRIORRITY);
+	}
+
+	@Override
+	public boolean add(E value, int priority) {
+		return shards.get(nextShard()).add(value, priority);
+	}
+
+	/**
+	 * Adds value to the shard picked by hash of the key. Values with equal keys land in the same shard.
+	 */
+	public boolean addByKey(Object key, E value, int priority) {
+		return shards.get(shardFor(key)).add(value, priority);
+	}
+
+	/**
+	 * Adds value to the shard picked by hash of the dedup key, so duplicates meet in the same table.
+	 */
+	@Override
+	public boolean add(E value, int priority, String dedupKey) {
+		if (dedupKey == null)
+			return add(value, priority);
+		return shards.get(shardFor(dedupKey)).add(value, priority, dedupKey);
+	}
+
+	/**
+	 * Splits values by hash of their dedup key, each part is inserted by the shard bulk insert.
+	 */
+	@Override
+	public int addAll(Map<String, ? extends E> values, int priority) {
+		final int n = shards.size();
+
+		List<Map<String, E>> parts = new ArrayList<Map<String, E>>(n);
+		for (int i = 0; i < n; i++) {
+			parts.add(new LinkedHashMap<String, E>());
+		}
+
+		int added = 0;
+		for (Map.Entry<String, ? extends E> entry : values.entrySet()) {
+			if (entry.getKey() == null) {
+				added += add(entry.getValue(), priority) ? 1 : 0;
+			} else {
+				parts.get(shardFor(entry.getKey())).put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		for (int i = 0; i < n; i++) {
+			if (!parts.get(i).isEmpty())
+				added += shards.get(i).addAll(parts.get(i), priority);
+		}
+		return added;
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends E> values) {
+		return addAll(values, ValueContainer.DEFAULT_PRIORRITY);
+	}
+
+	/**
+	 * Splits values evenly across shards, each part is inserted by the shard bulk insert.
+	 */
+	@Override
+	public boolean addAll(Collection<? extends E> values, int priority) {
+		if (values == this)
+			throw new IllegalArgumentException("Adding to self is not supported");
+		if (values.isEmpty())
+			return false;
+
+		final int n = shards.size();
+		final int first = nextShard();
+
+		List<List<E>> parts = new ArrayList<List<E>>(n);
+		for (int i = 0; i < n; i++) {
+			parts.add(new ArrayList<E>(values.size() / n + 1));
+		}
+
+		int i = 0;
+		for (E value : values) {
+			parts.get(i++ % n).add(value);
+		}
+
+		for (i = 0; i < n; i++) {
+			List<E> part = parts.get(i);
+			if (!part.isEmpty())
+				shards.get((first + i) % n).addAll(part, priority);
+		}
+		return true;
+	}
+
+	@Override
+	public ValueContainer<E> peekWithMetadata() {
+		final int n = shards.size();
+		final int first = randomShard();
+		for (int i = 0; i < n; i++) {
+			int shard = (first + i) % n;
+			ValueContainer<E> item = shards.get(shard).peekWithMetadata();
+			if (item != null)
+				return toSharded(item, shard);
+		}
+		return null;
+	}
+
+	@Override
+	public ValueContainer<E> pollWithMetadata() {
+		final int n = shards.size();
+		final int first = randomShard();
+		for (int i = 0; i < n; i++) {
+			int shard = (first + i) % n;
+			ValueContainer<E> item = shards.get(shard).pollWithMetadata();
+			if (item != null)
+				return toSharded(item, shard);
+		}
+		return null;
+	}
+
+	/**
+	 * Claims up to n items, starting at a random shard.
+	 */
+	@Override
+	public List<ValueContainer<E>> pollBatchWithMetadata(int n) {
+		if (n < 1)
+			throw new IllegalArgumentException("n must be positive");
+
+		final int count = shards.size();
+		final int first = randomShard();
+
+		List<ValueContainer<E>> items = new ArrayList<ValueContainer<E>>();
+		for (int i = 0; i < count && items.size() < n; i++) {
+			int shard = (first + i) % count;
+			for (ValueContainer<E> item : shards.get(shard).pollBatchWithMetadata(n - items.size())) {
+				items.add(toSharded(item, shard));
+			}
+		}
+		return items;
+	}
+
+	/**
+	 * All shards share the same condition, as they have the same queue name
+	 */
+	@Override
+	public ValueContainer<E> pollWithMetadata(long timeout, TimeUnit unit)
+			throws InterruptedException {
+
+		final Date deadline = new Date(AbstractMySQLQueue.deadlineMillis(timeout, unit));
+
+		ValueContainer<E> head = null;
+		boolean stillWaiting = true;
+
+		while (stillWaiting) {
+			head = pollWithMetadata();
+			if (head != null)
+				break;
+
+			stillWaiting = shards.get(0).awaitUntil(shards.get(0).condition, deadline);
+		}
+
+		return head;
+	}
+
+	@Override
+	public ValueContainer<E> takeWithMetadata() throws InterruptedException {
+		ValueContainer<E> head = null;
+		while (head == null) {
+			if (Thread.interrupted())
+				throw new InterruptedException();
+
+			head = pollWithMetadata(shards.get(0).getTakeBlockingTime(), TimeUnit.SECONDS);
+		}
+		return head;
+	}
+
+	@Override
+	public int release(List<ValueContainer<E>> items) {
+		final int n = shards.size();
+
+		List<List<ValueContainer<E>>> parts = new ArrayList<List<ValueContainer<E>>>(n);
+		for (int i = 0; i < n; i++) {
+			parts.add(new ArrayList<ValueContainer<E>>());
+		}
+		for (ValueContainer<E> item : items) {
+			parts.get(shardOf(item.id)).add(fromSharded(item));
+		}
+
+		int released = 0;
+		for (int i = 0; i < n; i++) {
+			if (!parts.get(i).isEmpty())
+				released += shards.get(i).release(parts.get(i));
+		}
+		return released;
+	}
+
+	@Override
+	public boolean ack(long id) {
+		return shards.get(shardOf(id)).ack(idOf(id));
+	}
+
+	@Override
+	public boolean nack(long id) {
+		return shards.get(shardOf(id)).nack(idOf(id));
+	}
+
+	@Override
+	public boolean extendLease(long id, long duration, TimeUnit unit) {
+		return shards.get(shardOf(id)).extendLease(idOf(id), duration, unit);
+	}
+
+	@Override
+	public void updateStatus(long id, String newStatus) {
+		shards.get(shardOf(id)).updateStatus(idOf(id), newStatus);
+	}
+
+	@Override
+	public int updateStatus(long[] ids, String newStatus) {
+		final int n = shards.size();
+
+		int[] counts = new int[n];
+		for (long id : ids) {
+			counts[shardOf(id)]++;
+		}
+
+		long[][] parts = new long[n][];
+		for (int i = 0; i < n; i++) {
+			parts[i] = new long[counts[i]];
+			counts[i] = 0;
+		}
+		for (long id : ids) {
+			int shard = shardOf(id);
+			parts[shard][counts[shard]++] = idOf(id);
+		}
+
+		int updated = 0;
+		for (int i = 0; i < n; i++) {
+			if (parts[i].length > 0)
+				updated += shards.get(i).updateStatus(parts[i], newStatus);
+		}
+		return updated;
+	}
+
+	@Override
+	public int updateStatuses(Map<Long, String> statuses) {
+		final int n = shards.size();
+
+		List<Map<Long, String>> parts = new ArrayList<Map<Long, String>>(n);
+		for (int i = 0; i < n; i++) {
+			parts.add(new LinkedHashMap<Long, String>());
+		}
+		for (Map.Entry<Long, String> entry : statuses.entrySet()) {
+			parts.get(shardOf(entry.getKey())).put(idOf(entry.getKey()), entry.getValue());
+		}
+
+		int updated = 0;
+		for (int i = 0; i < n; i++) {
+			if (!parts.get(i).isEmpty())
+				updated += shards.get(i).updateStatuses(parts.get(i));
+		}
+		return updated;
+	}
+
+	@Override
+	public String getStatus(long id) {
+		return shards.get(shardOf(id)).getStatus(idOf(id));
+	}
+
+	@Override
+	public E peek() {
+		ValueContainer<E> item = peekWithMetadata();
+		return item != null ? item.value : null;
+	}
+
+	@Override
+	public E poll() {
+		ValueContainer<E> item = pollWithMetadata();
+		return item != null ? item.value : null;
+	}
+
+	@Override
+	public E take() throws InterruptedException {
+		return takeWithMetadata().value;
+	}
+
+	@Override
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		ValueContainer<E> item = pollWithMetadata(timeout, unit);
+		return item != null ? item.value : null;
+	}
+
+	/**
+	 * Drains shard after shard, starting at a random shard.
+	 */
+	@Override
+	public int drainTo(Collection<? super E> c, int maxElements) {
+		if (c == this)
+			throw new IllegalArgumentException("Draining to self is not supported");
+
+		final int n = shards.size();
+		final int first = randomShard();
+		int count = 0;
+		for (int i = 0; i < n && count < maxElements; i++) {
+			count += shards.get((first + i) % n).drainTo(c, maxElements - count);
+		}
+		return count;
+	}
+
+	/**
+	 * Values of pending items, shard after shard, so not in global priority order
+	 */
+	@Override
+	public Iterator<E> iterator() {
+		return shards.stream()
+				.flatMap(AbstractMySQLQueue::streamWithMetadata)
+				.map(ValueContainer::getValue)
+				.iterator();
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (AbstractMySQLQueue<E> shard : shards) {
+			size += shard.size();
+		}
+		return size;
+	}
+
+	@Override
+	public void clear() {
+		for (AbstractMySQLQueue<E> shard : shards) {
+			shard.clear();
+		}
+	}
+
+	@Override
+	public long cleanup(int days) throws SQLException {
+		long deleted = 0;
+		for (AbstractMySQLQueue<E> shard : shards) {
+			deleted += shard.cleanup(days);
+		}
+		return deleted;
+	}
+
+	@Override
+	public long cleanupAll(int days) throws SQLException {
+		long deleted = 0;
+		for (AbstractMySQLQueue<E> shard : shards) {
+			deleted += shard.cleanupAll(days);
+		}
+		return deleted;
+	}
+
+	/**
+	 * Moves completed rows of every shard to its archive table
+	 * @return number of rows moved
+	 */
+	public int archiveCompleted() {
+		int moved = 0;
+		for (AbstractMySQLQueue<E> shard : shards) {
+			moved += shard.archiveCompleted();
+		}
+		return moved;
+	}
+}
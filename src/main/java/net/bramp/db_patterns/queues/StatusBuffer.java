@@ -0,0 +1,205 @@
+package net.bramp.db_patterns.queues;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.bramp.db_patterns.queues.interfaces.StatusableQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-behind buffer of status updates. Updates are collected in memory and
+ * written with updateStatuses, one UPDATE per distinct status, every flush
+ * interval or as soon as maxUpdates items are waiting. Only the last status
+ * of an item is written, so intermediate statuses of fast items never reach
+ * the database.
+ * <p>
+ * Buffered statuses are lost if the process dies before they are flushed.
+ * getStatus reads buffered statuses first.
+ *
+ * @author bramp
+ */
+public class StatusBuffer implements AutoCloseable {
+
+	final static Logger LOG = LoggerFactory.getLogger(StatusBuffer.class);
+
+	final StatusableQueue<?, ?> queue;
+	final int maxUpdates;
+
+	final ScheduledExecutorService scheduler;
+	final boolean ownsScheduler;
+	final ScheduledFuture<?> flusher;
+
+	/**
+	 * Guards pending and inFlight
+	 */
+	final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Serialises flushes, so an older status never overwrites a newer one
+	 */
+	final ReentrantLock flushLock = new ReentrantLock();
+
+	Map<Long, String> pending = new LinkedHashMap<Long, String>();
+	Map<Long, String> inFlight = Collections.emptyMap();
+
+	volatile boolean closed = false;
+
+	/**
+	 * @param queue queue to write statuses to
+	 * @param maxUpdates number of buffered items which triggers a flush by the updating thread
+	 * @param flushInterval max time a status stays buffered
+	 * @param scheduler runs periodic flushes
+	 */
+	public StatusBuffer(StatusableQueue<?, ?> queue, int maxUpdates, long flushInterval, TimeUnit unit,
+			ScheduledExecutorService scheduler) {
+		this(queue, maxUpdates, flushInterval, unit, scheduler, false);
+	}
+
+	/**
+	 * Flushes from its own daemon thread
+	 */
+	public StatusBuffer(StatusableQueue<?, ?> queue, int maxUpdates, long flushInterval, TimeUnit unit) {
+		this(queue, maxUpdates, flushInterval, unit,
+				Executors.newSingleThreadScheduledExecutor(AsyncMySQLQueue.threadFactory("status-buffer")), true);
+	}
+
+	StatusBuffer(StatusableQueue<?, ?> queue, int maxUpdates, long flushInterval, TimeUnit unit,
+			ScheduledExecutorService scheduler, boolean ownsScheduler) {
+		if (maxUpdates < 1)
+			throw new IllegalArgumentException("maxUpdates must be positive");
+		if (flushInterval <= 0)
+			throw new IllegalArgumentException("flushInterval must be positive");
+
+		this.queue = queue;
+		this.maxUpdates = maxUpdates;
+		this.scheduler = scheduler;
+		this.ownsScheduler = ownsScheduler;
+		this.flusher = scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (RuntimeException e) {
+					LOG.warn("Failed to flush statuses, retrying on next flush", e);
+				}
+			}
+		}, flushInterval, flushInterval, unit);
+	}
+
+	/**
+	 * Buffers a status update. Flushes on the calling thread if the buffer is full.
+	 */
+	public void updateStatus(long id, String newStatus) {
+		if (closed)
+			throw new IllegalStateException("StatusBuffer is closed");
+		// Rejected now, a bad status would otherwise fail every flush
+		if (queue instanceof AbstractMySQLQueue)
+			((AbstractMySQLQueue<?>) queue).checkStatus(newStatus);
+
+		boolean full;
+		lock.lock();
+		try {
+			pending.put(id, newStatus);
+			full = pending.size() >= maxUpdates;
+		} finally {
+			lock.unlock();
+		}
+
+		if (full)
+			flush();
+	}
+
+	/**
+	 * Buffered status if there is one, otherwise the status in the queue
+	 */
+	public String getStatus(long id) {
+		lock.lock();
+		try {
+			String status = pending.get(id);
+			if (status == null)
+				status = inFlight.get(id);
+			if (status != null)
+				return status;
+		} finally {
+			lock.unlock();
+		}
+		return queue.getStatus(id);
+	}
+
+	/**
+	 * Number of buffered updates not yet written
+	 */
+	public int pending() {
+		lock.lock();
+		try {
+			return pending.size() + inFlight.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes buffered statuses. If writing fails they are kept, unless updated meanwhile.
+	 * @return number of items updated
+	 */
+	public int flush() {
+		flushLock.lock();
+		try {
+			Map<Long, String> batch;
+			lock.lock();
+			try {
+				if (pending.isEmpty())
+					return 0;
+				batch = pending;
+				inFlight = batch;
+				pending = new LinkedHashMap<Long, String>();
+			} finally {
+				lock.unlock();
+			}
+
+			boolean written = false;
+			try {
+				int updated = queue.updateStatuses(batch);
+				written = true;
+				return updated;
+			} finally {
+				lock.lock();
+				try {
+					if (!written) {
+						for (Map.Entry<Long, String> entry : batch.entrySet()) {
+							pending.putIfAbsent(entry.getKey(), entry.getValue());
+						}
+					}
+					inFlight = Collections.emptyMap();
+				} finally {
+					lock.unlock();
+				}
+			}
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Stops periodic flushes and writes what is buffered
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+
+		closed = true;
+		flusher.cancel(false);
+		if (ownsScheduler)
+			scheduler.shutdown();
+		flush();
+	}
+}
@@ -7,15 +7,17 @@ public interface CleanableQueue {
 	/**
 	 * Remove all acquired entries from current queue older than specified number of days
 	 * @param days
+	 * @return number of rows deleted
 	 * @throws SQLException
 	 */
-	public void cleanup(int days) throws SQLException;
+	public long cleanup(int days) throws SQLException;
 
 	/**
 	 * Remove all acquired entries from all queues older than specified number of days
 	 * @param days
+	 * @return number of rows deleted
 	 * @throws SQLException
 	 */
-	public void cleanupAll(int days) throws SQLException;
+	public long cleanupAll(int days) throws SQLException;
 	
 }
@@ -1,5 +1,21 @@
 package net.bramp.db_patterns.queues.interfaces;
 
+import java.util.Collection;
+import java.util.Map;
+
 public interface PriorityQueue<E> {
 	public boolean add(E value, int priority);
+	public boolean addAll(Collection<? extends E> values, int priority);
+
+	/**
+	 * Adds value unless an item with the same deduplication key is queued
+	 * @return false if the value was a duplicate
+	 */
+	public boolean add(E value, int priority, String dedupKey);
+
+	/**
+	 * Adds values keyed by deduplication key, skipping duplicates
+	 * @return number of values added
+	 */
+	public int addAll(Map<String, ? extends E> values, int priority);
 }
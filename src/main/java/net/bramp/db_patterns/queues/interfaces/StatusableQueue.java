@@ -1,12 +1,21 @@
 package net.bramp.db_patterns.queues.interfaces;
 
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 public interface StatusableQueue<E, V extends ValueWithMetadata<E>> {
 	public V pollWithMetadata();
 	public V pollWithMetadata(long timeout, TimeUnit unit) throws InterruptedException;
+	public List<V> pollBatchWithMetadata(int n);
 	public V peekWithMetadata();
 	public V takeWithMetadata() throws InterruptedException;
+	public int release(List<V> items);
+	public boolean ack(long id);
+	public boolean nack(long id);
+	public boolean extendLease(long id, long duration, TimeUnit unit);
 	public void updateStatus(long id, String newStatus);
+	public int updateStatus(long[] ids, String newStatus);
+	public int updateStatuses(Map<Long, String> statuses);
 	public String getStatus(long id);
 }
@@ -0,0 +1,286 @@
+package net.bramp.db_patterns.queues.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Keeps queue metrics in lock free counters and histograms, and exposes them
+ * as an MBean named net.bramp.db_patterns:type=QueueMetrics,name=&lt;queue name&gt;
+ * <p>
+ * queue.setMetrics(new JmxQueueMetrics(queueName).register());
+ *
+ * @author bramp
+ */
+public class JmxQueueMetrics implements QueueMetrics, JmxQueueMetricsMBean {
+
+	final static double NANOS_PER_MILLI = 1000000.0;
+
+	final ObjectName objectName;
+
+	volatile Log2Histogram addLatency = new Log2Histogram();
+	volatile Log2Histogram addBatch = new Log2Histogram();
+	volatile Log2Histogram pollLatency = new Log2Histogram();
+	volatile Log2Histogram pollBatch = new Log2Histogram();
+	volatile Log2Histogram peekLatency = new Log2Histogram();
+	volatile Log2Histogram waitTime = new Log2Histogram();
+	volatile Log2Histogram retryBackoff = new Log2Histogram();
+	volatile Log2Histogram cleanupTime = new Log2Histogram();
+
+	final AtomicLong emptyPolls = new AtomicLong();
+	final AtomicLong emptyPeeks = new AtomicLong();
+	final AtomicLong retriesExhausted = new AtomicLong();
+	final AtomicLong signalledWaits = new AtomicLong();
+	final AtomicLong signals = new AtomicLong();
+	final AtomicLong kills = new AtomicLong();
+	final AtomicLong cleanedRows = new AtomicLong();
+
+	/**
+	 * @param name name of the MBean, usually the queue name
+	 */
+	public JmxQueueMetrics(String name) {
+		try {
+			this.objectName = new ObjectName("net.bramp.db_patterns:type=QueueMetrics,name=" + ObjectName.quote(name));
+		} catch (JMException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	public ObjectName getObjectName() {
+		return objectName;
+	}
+
+	/**
+	 * Registers this MBean with the platform MBean server
+	 * @return this
+	 */
+	public JmxQueueMetrics register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		} catch (JMException e) {
+			throw new RuntimeException(e);
+		}
+		return this;
+	}
+
+	public void unregister() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+		} catch (JMException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void recordAdd(long nanos, int rows) {
+		addLatency.record(nanos);
+		addBatch.record(rows);
+	}
+
+	@Override
+	public void recordPoll(long nanos, int items) {
+		pollLatency.record(nanos);
+		if (items == 0) {
+			emptyPolls.incrementAndGet();
+		} else {
+			pollBatch.record(items);
+		}
+	}
+
+	@Override
+	public void recordPeek(long nanos, boolean empty) {
+		peekLatency.record(nanos);
+		if (empty)
+			emptyPeeks.incrementAndGet();
+	}
+
+	@Override
+	public void recordRetry(long backoffNanos) {
+		retryBackoff.record(backoffNanos);
+	}
+
+	@Override
+	public void recordRetryExhausted() {
+		retriesExhausted.incrementAndGet();
+	}
+
+	@Override
+	public void recordWait(long nanos, boolean signalled) {
+		waitTime.record(nanos);
+		if (signalled)
+			signalledWaits.incrementAndGet();
+	}
+
+	@Override
+	public void recordSignal(int killed) {
+		signals.incrementAndGet();
+		kills.addAndGet(killed);
+	}
+
+	@Override
+	public void recordCleanup(long nanos, long rows) {
+		cleanupTime.record(nanos);
+		cleanedRows.addAndGet(rows);
+	}
+
+	@Override
+	public long getAddCount() {
+		return addLatency.getCount();
+	}
+
+	@Override
+	public long getAddedRows() {
+		return addBatch.getSum();
+	}
+
+	@Override
+	public double getAddMeanMillis() {
+		return addLatency.getMean() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getAdd99thPercentileMillis() {
+		return addLatency.getPercentile(99) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getAddBatchMean() {
+		return addBatch.getMean();
+	}
+
+	@Override
+	public long getPollCount() {
+		return pollLatency.getCount();
+	}
+
+	@Override
+	public long getEmptyPollCount() {
+		return emptyPolls.get();
+	}
+
+	@Override
+	public long getPolledItems() {
+		return pollBatch.getSum();
+	}
+
+	@Override
+	public double getPollMeanMillis() {
+		return pollLatency.getMean() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getPoll99thPercentileMillis() {
+		return pollLatency.getPercentile(99) / NANOS_PER_MILLI;
+	}
+
+	/**
+	 * Mean number of items of non empty polls
+	 */
+	@Override
+	public double getPollBatchMean() {
+		return pollBatch.getMean();
+	}
+
+	@Override
+	public long getPeekCount() {
+		return peekLatency.getCount();
+	}
+
+	@Override
+	public long getEmptyPeekCount() {
+		return emptyPeeks.get();
+	}
+
+	@Override
+	public double getPeekMeanMillis() {
+		return peekLatency.getMean() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getPeek99thPercentileMillis() {
+		return peekLatency.getPercentile(99) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public long getRetryCount() {
+		return retryBackoff.getCount();
+	}
+
+	@Override
+	public double getRetryBackoffMeanMillis() {
+		return retryBackoff.getMean() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public long getRetryExhaustedCount() {
+		return retriesExhausted.get();
+	}
+
+	@Override
+	public long getWaitCount() {
+		return waitTime.getCount();
+	}
+
+	@Override
+	public long getSignalledWaitCount() {
+		return signalledWaits.get();
+	}
+
+	@Override
+	public double getWaitMeanMillis() {
+		return waitTime.getMean() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public long getSignalCount() {
+		return signals.get();
+	}
+
+	@Override
+	public long getKillCount() {
+		return kills.get();
+	}
+
+	@Override
+	public long getCleanupCount() {
+		return cleanupTime.getCount();
+	}
+
+	@Override
+	public long getCleanedRows() {
+		return cleanedRows.get();
+	}
+
+	@Override
+	public double getCleanupMeanMillis() {
+		return cleanupTime.getMean() / NANOS_PER_MILLI;
+	}
+
+	/**
+	 * Histograms are replaced, so measurements racing with the reset may be lost
+	 */
+	@Override
+	public void reset() {
+		addLatency = new Log2Histogram();
+		addBatch = new Log2Histogram();
+		pollLatency = new Log2Histogram();
+		pollBatch = new Log2Histogram();
+		peekLatency = new Log2Histogram();
+		waitTime = new Log2Histogram();
+		retryBackoff = new Log2Histogram();
+		cleanupTime = new Log2Histogram();
+
+		emptyPolls.set(0);
+		emptyPeeks.set(0);
+		retriesExhausted.set(0);
+		signalledWaits.set(0);
+		signals.set(0);
+		kills.set(0);
+		cleanedRows.set(0);
+	}
+}
@@ -0,0 +1,47 @@
+package net.bramp.db_patterns.queues.metrics;
+
+/**
+ * Attributes exposed by JmxQueueMetrics. Times are in milliseconds.
+ *
+ * @author bramp
+ */
+public interface JmxQueueMetricsMBean {
+
+	public long getAddCount();
+	public long getAddedRows();
+	public double getAddMeanMillis();
+	public double getAdd99thPercentileMillis();
+	public double getAddBatchMean();
+
+	public long getPollCount();
+	public long getEmptyPollCount();
+	public long getPolledItems();
+	public double getPollMeanMillis();
+	public double getPoll99thPercentileMillis();
+	public double getPollBatchMean();
+
+	public long getPeekCount();
+	public long getEmptyPeekCount();
+	public double getPeekMeanMillis();
+	public double getPeek99thPercentileMillis();
+
+	public long getRetryCount();
+	public double getRetryBackoffMeanMillis();
+	public long getRetryExhaustedCount();
+
+	public long getWaitCount();
+	public long getSignalledWaitCount();
+	public double getWaitMeanMillis();
+
+	public long getSignalCount();
+	public long getKillCount();
+
+	public long getCleanupCount();
+	public long getCleanedRows();
+	public double getCleanupMeanMillis();
+
+	/**
+	 * Starts counting from zero again
+	 */
+	public void reset();
+}
@@ -0,0 +1,66 @@
+package net.bramp.db_patterns.queues.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of non negative longs with power of two buckets.
+ * Recording is a couple of atomic increments and never allocates.
+ * Percentiles are the upper bound of their bucket, so within a factor of two.
+ *
+ * @author bramp
+ */
+public class Log2Histogram {
+
+	/**
+	 * Bucket i holds values in [2^(i-1), 2^i), bucket 0 holds 0. Long.MAX_VALUE is in bucket 63.
+	 */
+	final AtomicLongArray buckets = new AtomicLongArray(64);
+	final AtomicLongArray totals = new AtomicLongArray(2); // count, sum
+
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+
+		buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+		totals.incrementAndGet(0);
+		totals.addAndGet(1, value);
+	}
+
+	public long getCount() {
+		return totals.get(0);
+	}
+
+	public long getSum() {
+		return totals.get(1);
+	}
+
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) getSum() / count;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return upper bound of the bucket holding the percentile, 0 if empty
+	 */
+	public long getPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("percentile must be between 0 and 100");
+
+		long count = 0;
+		for (int i = 0; i < 64; i++) {
+			count += buckets.get(i);
+		}
+		if (count == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < 64; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank && seen > 0)
+				return i == 0 ? 0 : i == 63 ? Long.MAX_VALUE : (1L << i) - 1;
+		}
+		return Long.MAX_VALUE;
+	}
+}
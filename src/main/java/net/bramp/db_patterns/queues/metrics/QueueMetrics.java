@@ -0,0 +1,72 @@
+package net.bramp.db_patterns.queues.metrics;
+
+/**
+ * Receives measurements of queue operations. Called on every operation, so
+ * implementations must be thread safe and should not allocate or block.
+ * Durations are in nanoseconds. All methods do nothing by default.
+ *
+ * @author bramp
+ */
+public interface QueueMetrics {
+
+	/**
+	 * Records nothing, used by queues without metrics
+	 */
+	public static final QueueMetrics NOOP = new QueueMetrics() {};
+
+	/**
+	 * An add or addAll finished
+	 * @param rows number of rows inserted, 0 if all were duplicates
+	 */
+	public default void recordAdd(long nanos, int rows) {
+	}
+
+	/**
+	 * A poll or batch poll finished
+	 * @param items number of items claimed, 0 for an empty poll
+	 */
+	public default void recordPoll(long nanos, int items) {
+	}
+
+	/**
+	 * A peek finished
+	 * @param empty if the queue was empty
+	 */
+	public default void recordPeek(long nanos, boolean empty) {
+	}
+
+	/**
+	 * A transaction was rolled back by a deadlock or lock wait timeout and is retried
+	 * @param backoffNanos delay before the retry
+	 */
+	public default void recordRetry(long backoffNanos) {
+	}
+
+	/**
+	 * An operation failed on a deadlock or lock wait timeout as its RetryPolicy
+	 * ran out of attempts or budget
+	 */
+	public default void recordRetryExhausted() {
+	}
+
+	/**
+	 * A consumer or producer slept on a queue condition
+	 * @param signalled if it was woken up before its timeout
+	 */
+	public default void recordWait(long nanos, boolean signalled) {
+	}
+
+	/**
+	 * A queue condition was signalled
+	 * @param killed number of sleeping connections woken up with KILL QUERY
+	 */
+	public default void recordSignal(int killed) {
+	}
+
+	/**
+	 * A cleanup or cleanupArchive finished, or was interrupted
+	 * @param rows number of rows deleted
+	 */
+	public default void recordCleanup(long nanos, long rows) {
+	}
+}
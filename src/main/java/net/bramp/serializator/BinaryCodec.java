@@ -0,0 +1,17 @@
+package net.bramp.serializator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes values of a user type field by field, see BinarySerializator.
+ * Implementations must be thread safe, they usually hold no state.
+ *
+ * @param <E>
+ * @author bramp
+ */
+public interface BinaryCodec<E> {
+	public void write(E value, DataOutput out) throws IOException;
+	public E read(DataInput in) throws IOException;
+}
@@ -0,0 +1,78 @@
+package net.bramp.serializator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Serializes values with a BinaryCodec. Unlike DefaultSerializator no class
+ * descriptors are written, only the fields the codec writes. Values are
+ * written into a buffer reused per thread.
+ *
+ * @param <E>
+ * @author bramp
+ */
+public class BinarySerializator<E> implements Serializator<E> {
+
+	/**
+	 * Buffers grown past this are not kept for the next value
+	 */
+	final static int MAX_RETAINED_BYTES = 64 * 1024;
+
+	/**
+	 * A DataOutputStream writing into a resettable byte array
+	 */
+	static final class Buffer extends ByteArrayOutputStream {
+		final DataOutputStream data = new DataOutputStream(this);
+
+		Buffer() {
+			super(256);
+		}
+
+		int capacity() {
+			return buf.length;
+		}
+	}
+
+	static final ThreadLocal<Buffer> buffer = new ThreadLocal<Buffer>() {
+		@Override
+		protected Buffer initialValue() {
+			return new Buffer();
+		}
+	};
+
+	final BinaryCodec<E> codec;
+
+	public BinarySerializator(BinaryCodec<E> codec) {
+		if (codec == null)
+			throw new IllegalArgumentException("codec must not be null");
+		this.codec = codec;
+	}
+
+	@Override
+	public byte[] serialize(E obj) {
+		Buffer b = buffer.get();
+		b.reset();
+		try {
+			codec.write(obj, b.data);
+			b.data.flush();
+			return b.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			if (b.capacity() > MAX_RETAINED_BYTES)
+				buffer.remove();
+		}
+	}
+
+	@Override
+	public E deserialize(byte[] bytes) {
+		try {
+			return codec.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,249 @@
+package net.bramp.serializator;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses values of another serializator which are at least threshold bytes long.
+ * <p>
+ * Compressed values start with a header byte naming the codec. Values below
+ * the threshold are stored unchanged, unless they start with a header byte
+ * (0xF5 - 0xF7), then they are prefixed with the RAW header.
+ * <p>
+ * Header bytes never start UTF-8 text or a java serialization stream, so
+ * values written by DefaultSerializator or PrimitiveSerializators.STRING before
+ * compression was enabled are read as is. Binary inner serializators
+ * (PrimitiveSerializators INTEGER, LONG, DOUBLE and BYTES, BinarySerializator)
+ * can start with a header byte, so only wrap them on a queue which holds
+ * no values written without this wrapper.
+ * <p>
+ * Deflaters and buffers are reused per thread.
+ *
+ * @param <E>
+ * @author bramp
+ */
+public class CompressingSerializator<E> implements Serializator<E> {
+
+	final static byte RAW = (byte) 0xF5;
+
+	/**
+	 * DEFLATE expands at most 1032 times, a longer declared length means a corrupt value
+	 */
+	final static int MAX_DEFLATE_RATIO = 1032;
+
+	public enum Codec {
+		/**
+		 * java.util.zip, no dependencies
+		 */
+		DEFLATE((byte) 0xF6),
+
+		/**
+		 * Faster, weaker compression. Needs org.iq80.snappy:snappy on the classpath.
+		 */
+		SNAPPY((byte) 0xF7);
+
+		final byte header;
+
+		Codec(byte header) {
+			this.header = header;
+		}
+	}
+
+	final Serializator<E> serializator;
+	final Codec codec;
+
+	/**
+	 * Values shorter than this are not compressed
+	 */
+	private volatile int threshold = 1024;
+
+	private volatile int deflateLevel = Deflater.BEST_SPEED;
+
+	private final ThreadLocal<Deflater> deflater = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater();
+		}
+	};
+
+	private final ThreadLocal<Inflater> inflater = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	/**
+	 * Compressed output is built here, then copied out at its exact length
+	 */
+	private final ThreadLocal<byte[]> buffer = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[8192];
+		}
+	};
+
+	/**
+	 * Compresses with DEFLATE
+	 */
+	public CompressingSerializator(Serializator<E> serializator) {
+		this(serializator, Codec.DEFLATE);
+	}
+
+	public CompressingSerializator(Serializator<E> serializator, Codec codec) {
+		if (serializator == null || codec == null)
+			throw new IllegalArgumentException("serializator and codec must not be null");
+
+		this.serializator = serializator;
+		this.codec = codec;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Sets the size in bytes from which values are compressed. Default 1024.
+	 */
+	public void setThreshold(int threshold) {
+		if (threshold < 0)
+			throw new IllegalArgumentException("threshold must not be negative");
+		this.threshold = threshold;
+	}
+
+	public int getDeflateLevel() {
+		return deflateLevel;
+	}
+
+	/**
+	 * Sets the DEFLATE compression level, 1 (fastest) to 9. Default 1.
+	 */
+	public void setDeflateLevel(int deflateLevel) {
+		if (deflateLevel < Deflater.BEST_SPEED || deflateLevel > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("deflateLevel must be between 1 and 9");
+		this.deflateLevel = deflateLevel;
+	}
+
+	@Override
+	public byte[] serialize(E obj) {
+		byte[] bytes = serializator.serialize(obj);
+		if (bytes == null)
+			return null;
+
+		if (bytes.length >= threshold) {
+			byte[] compressed = codec == Codec.SNAPPY ? snappy(bytes) : deflate(bytes);
+			// Incompressible values are kept as they are
+			if (compressed != null)
+				return compressed;
+		}
+
+		if (bytes.length > 0 && isHeader(bytes[0])) {
+			byte[] raw = new byte[bytes.length + 1];
+			raw[0] = RAW;
+			System.arraycopy(bytes, 0, raw, 1, bytes.length);
+			return raw;
+		}
+		return bytes;
+	}
+
+	@Override
+	public E deserialize(byte[] bytes) {
+		if (bytes == null || bytes.length == 0 || !isHeader(bytes[0]))
+			return serializator.deserialize(bytes);
+
+		if (bytes[0] == Codec.DEFLATE.header)
+			return serializator.deserialize(inflate(bytes));
+		if (bytes[0] == Codec.SNAPPY.header)
+			return serializator.deserialize(SnappyCodec.uncompress(bytes, 1));
+		return serializator.deserialize(Arrays.copyOfRange(bytes, 1, bytes.length));
+	}
+
+	static boolean isHeader(byte b) {
+		return b == RAW || b == Codec.DEFLATE.header || b == Codec.SNAPPY.header;
+	}
+
+	/**
+	 * Header, uncompressed length (4 bytes), deflated bytes
+	 * @return compressed value, or null if it is not smaller
+	 */
+	protected byte[] deflate(byte[] bytes) {
+		final int limit = bytes.length;
+		byte[] out = buffer(limit);
+
+		Deflater d = deflater.get();
+		d.reset();
+		d.setLevel(deflateLevel);
+		d.setInput(bytes);
+		d.finish();
+
+		int length = 5;
+		while (!d.finished() && length < limit) {
+			length += d.deflate(out, length, limit - length);
+		}
+		if (!d.finished())
+			return null;
+
+		out[0] = Codec.DEFLATE.header;
+		out[1] = (byte) (bytes.length >>> 24);
+		out[2] = (byte) (bytes.length >>> 16);
+		out[3] = (byte) (bytes.length >>> 8);
+		out[4] = (byte) bytes.length;
+		return Arrays.copyOf(out, length);
+	}
+
+	protected byte[] inflate(byte[] bytes) {
+		if (bytes.length < 5)
+			throw new RuntimeException("Truncated compressed value");
+
+		final int length = ((bytes[1] & 0xFF) << 24) | ((bytes[2] & 0xFF) << 16)
+				| ((bytes[3] & 0xFF) << 8) | (bytes[4] & 0xFF);
+		if (length < 0 || length > (long) (bytes.length - 5) * MAX_DEFLATE_RATIO)
+			throw new RuntimeException("Corrupt compressed value, length " + length);
+		byte[] out = new byte[length];
+
+		Inflater i = inflater.get();
+		i.reset();
+		i.setInput(bytes, 5, bytes.length - 5);
+		try {
+			int read = 0;
+			while (read < length && !i.finished()) {
+				int n = i.inflate(out, read, length - read);
+				if (n == 0 && (i.needsInput() || i.needsDictionary()))
+					break;
+				read += n;
+			}
+			if (read != length)
+				throw new RuntimeException("Truncated compressed value");
+		} catch (DataFormatException e) {
+			throw new RuntimeException(e);
+		}
+		return out;
+	}
+
+	/**
+	 * @return compressed value, or null if it is not smaller
+	 */
+	protected byte[] snappy(byte[] bytes) {
+		byte[] out = buffer(1 + SnappyCodec.maxCompressedLength(bytes.length));
+		int length = 1 + SnappyCodec.compress(bytes, out, 1);
+		if (length >= bytes.length)
+			return null;
+
+		out[0] = Codec.SNAPPY.header;
+		return Arrays.copyOf(out, length);
+	}
+
+	/**
+	 * @return this thread's buffer, grown to at least size bytes
+	 */
+	private byte[] buffer(int size) {
+		byte[] b = buffer.get();
+		if (b.length < size) {
+			b = new byte[Math.max(size, b.length * 2)];
+			buffer.set(b);
+		}
+		return b;
+	}
+}
@@ -43,6 +43,7 @@ public class DefaultSerializator<E> implements Serializator<E> {
 					obj = (E) objectIn.readObject();
 				} catch (IOException e) {
 					objectIn.close();
+					throw e;
 				} catch (ClassNotFoundException e) {
 					throw new RuntimeException(e);
 				}
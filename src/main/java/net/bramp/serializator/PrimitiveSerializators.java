@@ -0,0 +1,106 @@
+package net.bramp.serializator;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serializators of single values, stored as their raw big endian or UTF-8
+ * bytes. An Integer takes 4 bytes instead of the 81 written by
+ * DefaultSerializator. Null values are not supported.
+ *
+ * @author bramp
+ */
+public final class PrimitiveSerializators {
+
+	private PrimitiveSerializators() {}
+
+	public final static Serializator<Integer> INTEGER = new Serializator<Integer>() {
+		@Override
+		public byte[] serialize(Integer obj) {
+			int v = obj;
+			return new byte[] {(byte) (v >>> 24), (byte) (v >>> 16), (byte) (v >>> 8), (byte) v};
+		}
+
+		@Override
+		public Integer deserialize(byte[] bytes) {
+			checkLength(bytes, 4);
+			return (int) readLong(bytes, 4);
+		}
+	};
+
+	public final static Serializator<Long> LONG = new Serializator<Long>() {
+		@Override
+		public byte[] serialize(Long obj) {
+			return writeLong(obj);
+		}
+
+		@Override
+		public Long deserialize(byte[] bytes) {
+			checkLength(bytes, 8);
+			return readLong(bytes, 8);
+		}
+	};
+
+	public final static Serializator<Double> DOUBLE = new Serializator<Double>() {
+		@Override
+		public byte[] serialize(Double obj) {
+			return writeLong(Double.doubleToRawLongBits(obj));
+		}
+
+		@Override
+		public Double deserialize(byte[] bytes) {
+			checkLength(bytes, 8);
+			return Double.longBitsToDouble(readLong(bytes, 8));
+		}
+	};
+
+	public final static Serializator<String> STRING = new Serializator<String>() {
+		@Override
+		public byte[] serialize(String obj) {
+			return obj.getBytes(StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public String deserialize(byte[] bytes) {
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	};
+
+	/**
+	 * Stores the array itself, without copying
+	 */
+	public final static Serializator<byte[]> BYTES = new Serializator<byte[]>() {
+		@Override
+		public byte[] serialize(byte[] obj) {
+			if (obj == null)
+				throw new NullPointerException();
+			return obj;
+		}
+
+		@Override
+		public byte[] deserialize(byte[] bytes) {
+			return bytes;
+		}
+	};
+
+	static byte[] writeLong(long v) {
+		byte[] bytes = new byte[8];
+		for (int i = 7; i >= 0; i--) {
+			bytes[i] = (byte) v;
+			v >>>= 8;
+		}
+		return bytes;
+	}
+
+	static long readLong(byte[] bytes, int length) {
+		long v = 0;
+		for (int i = 0; i < length; i++) {
+			v = (v << 8) | (bytes[i] & 0xFF);
+		}
+		return v;
+	}
+
+	static void checkLength(byte[] bytes, int length) {
+		if (bytes.length != length)
+			throw new IllegalArgumentException("Expected " + length + " bytes, got " + bytes.length);
+	}
+}
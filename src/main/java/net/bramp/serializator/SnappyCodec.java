@@ -0,0 +1,43 @@
+package net.bramp.serializator;
+
+import org.iq80.snappy.CorruptionException;
+import org.iq80.snappy.Snappy;
+
+/**
+ * Snappy calls of CompressingSerializator, in their own class so the optional
+ * snappy jar is only loaded when the SNAPPY codec is used.
+ *
+ * @author bramp
+ */
+final class SnappyCodec {
+
+	/**
+	 * A snappy copy element expands at most 64 / 3 times, a longer declared
+	 * length means a corrupt value
+	 */
+	final static int MAX_RATIO = 32;
+
+	private SnappyCodec() {}
+
+	static int maxCompressedLength(int length) {
+		return Snappy.maxCompressedLength(length);
+	}
+
+	/**
+	 * @return number of bytes written to out
+	 */
+	static int compress(byte[] in, byte[] out, int outOffset) {
+		return Snappy.compress(in, 0, in.length, out, outOffset);
+	}
+
+	static byte[] uncompress(byte[] in, int offset) {
+		try {
+			int length = Snappy.getUncompressedLength(in, offset);
+			if (length < 0 || length > (long) (in.length - offset) * MAX_RATIO)
+				throw new CorruptionException("Corrupt compressed value, length " + length);
+			return Snappy.uncompress(in, offset, in.length - offset);
+		} catch (CorruptionException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package net.bramp.sql;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.sql.DataSource;
+
+/**
+ * Version of a MySQL (or MariaDB) server, used to detect supported features
+ *
+ * @author bramp
+ */
+public final class MySQLVersion implements Comparable<MySQLVersion> {
+
+	final static Pattern versionPattern = Pattern.compile("^(\\d+)\\.(\\d+)(?:\\.(\\d+))?");
+	final static String mariaDBReplicationPrefix = "5.5.5-";
+
+	final int major;
+	final int minor;
+	final int patch;
+	final boolean mariaDB;
+
+	public MySQLVersion(int major, int minor, int patch, boolean mariaDB) {
+		this.major = major;
+		this.minor = minor;
+		this.patch = patch;
+		this.mariaDB = mariaDB;
+	}
+
+	/**
+	 * Parses a version string as returned by SELECT VERSION(), eg "8.0.33", "10.6.12-MariaDB-log"
+	 * or "5.5.5-10.6.12-MariaDB"
+	 * @param version
+	 * @return
+	 */
+	public static MySQLVersion parse(@Nonnull String version) {
+		String v = version.trim();
+		// MariaDB 10+ prefixes its version with 5.5.5- for old replication clients
+		if (v.startsWith(mariaDBReplicationPrefix) && v.contains("MariaDB"))
+			v = v.substring(mariaDBReplicationPrefix.length());
+
+		Matcher m = versionPattern.matcher(v);
+		if (!m.find())
+			throw new IllegalArgumentException("Unknown server version '" + version + "'");
+
+		int patch = m.group(3) != null ? Integer.parseInt(m.group(3)) : 0;
+		return new MySQLVersion(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)), patch,
+				version.contains("MariaDB"));
+	}
+
+	/**
+	 * Reads the version of the server behind the DataSource
+	 * @param ds
+	 * @return
+	 * @throws SQLException
+	 */
+	public static MySQLVersion detect(@Nonnull DataSource ds) throws SQLException {
+		Connection c = ds.getConnection();
+		try {
+			return parse(c.getMetaData().getDatabaseProductVersion());
+		} finally {
+			c.close();
+		}
+	}
+
+	public boolean isMariaDB() {
+		return mariaDB;
+	}
+
+	public boolean isAtLeast(int major, int minor, int patch) {
+		return compareTo(new MySQLVersion(major, minor, patch, mariaDB)) >= 0;
+	}
+
+	/**
+	 * SELECT ... FOR UPDATE SKIP LOCKED is supported since MySQL 8.0.1 and MariaDB 10.6
+	 * @return
+	 */
+	public boolean supportsSkipLocked() {
+		return mariaDB ? isAtLeast(10, 6, 0) : isAtLeast(8, 0, 1);
+	}
+
+	@Override
+	public int compareTo(MySQLVersion o) {
+		if (major != o.major)
+			return major < o.major ? -1 : 1;
+		if (minor != o.minor)
+			return minor < o.minor ? -1 : 1;
+		if (patch != o.patch)
+			return patch < o.patch ? -1 : 1;
+		return 0;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o instanceof MySQLVersion) {
+			MySQLVersion v = (MySQLVersion) o;
+			return compareTo(v) == 0 && mariaDB == v.mariaDB;
+		}
+		return false;
+	}
+
+	@Override
+	public int hashCode() {
+		return ((major * 31 + minor) * 31 + patch) * 2 + (mariaDB ? 1 : 0);
+	}
+
+	@Override
+	public String toString() {
+		return major + "." + minor + "." + patch + (mariaDB ? "-MariaDB" : "");
+	}
+}
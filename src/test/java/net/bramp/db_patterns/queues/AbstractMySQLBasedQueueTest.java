@@ -1,6 +1,7 @@
 package net.bramp.db_patterns.queues;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
@@ -8,9 +9,12 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.Callable;
@@ -127,6 +131,53 @@ public class AbstractMySQLBasedQueueTest {
 		assertEquals(queue.getStatus(v.id), "Test2");
 	}
 
+	@Test
+	public void batchStatusTest() {
+		assertEmpty();
+
+		for (int i = 0; i < 4; i++) {
+			queue.add(valueFactory.apply(String.valueOf(i)));
+		}
+		List<ValueContainer<Object>> items = queue.pollBatchWithMetadata(4);
+		long[] ids = new long[items.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = items.get(i).getId();
+		}
+
+		assertEquals(4, queue.updateStatus(ids, "BATCH"));
+		for (long id : ids) {
+			assertEquals("BATCH", queue.getStatus(id));
+		}
+
+		Map<Long, String> statuses = new LinkedHashMap<Long, String>();
+		statuses.put(ids[0], "DONE");
+		statuses.put(ids[1], "FAILED");
+		statuses.put(ids[2], "DONE");
+		assertEquals(3, queue.updateStatuses(statuses));
+		assertEquals("DONE", queue.getStatus(ids[0]));
+		assertEquals("FAILED", queue.getStatus(ids[1]));
+		assertEquals("DONE", queue.getStatus(ids[2]));
+		assertEquals("BATCH", queue.getStatus(ids[3]));
+
+		StatusBuffer buffer = new StatusBuffer(queue, 100, 1, TimeUnit.HOURS);
+		try {
+			buffer.updateStatus(ids[3], "STEP1");
+			buffer.updateStatus(ids[3], "STEP2");
+			assertEquals("Buffered status should be read first", "STEP2", buffer.getStatus(ids[3]));
+			assertEquals("BATCH", queue.getStatus(ids[3]));
+			assertEquals(1, buffer.pending());
+
+			assertEquals(1, buffer.flush());
+			assertEquals("STEP2", queue.getStatus(ids[3]));
+			assertEquals(0, buffer.pending());
+
+			buffer.updateStatus(ids[3], "STEP3");
+		} finally {
+			buffer.close();
+		}
+		assertEquals("close should flush", "STEP3", queue.getStatus(ids[3]));
+	}
+
 	/*
 	 * TODO We should change this to measure if take actually blocked forever
 	 * 
@@ -198,6 +249,409 @@ public class AbstractMySQLBasedQueueTest {
 		}
 	}
 
+	@Test
+	public void addAllTest() {
+		assertEmpty();
+
+		List<Object> values = new ArrayList<Object>();
+		for (int i = 0; i < 10; i++) {
+			values.add(valueFactory.apply(String.valueOf(i)));
+		}
+
+		// Small chunks, so a few statements are needed
+		int bulkInsertRows = queue.getBulkInsertRows();
+		queue.setBulkInsertRows(3);
+		try {
+			assertTrue(queue.addAll(values));
+		} finally {
+			queue.setBulkInsertRows(bulkInsertRows);
+		}
+		assertEquals("Queue should contain all items", values.size(), queue.size());
+
+		for (Object value : values) {
+			assertEquals("Items should keep insertion order", value, queue.poll());
+		}
+
+		assertTrue(queue.addAll(values.subList(0, 2), 5));
+		assertEquals(5, queue.pollWithMetadata().getPriority());
+
+		assertEquals(1, queue.size());
+		queue.clear();
+		assertEmpty();
+	}
+
+	@Test
+	public void drainToTest() {
+		assertEmpty();
+
+		List<Object> values = new ArrayList<Object>();
+		for (int i = 0; i < 10; i++) {
+			values.add(valueFactory.apply(String.valueOf(i)));
+		}
+		assertTrue(queue.addAll(values));
+
+		int drainBatchSize = queue.getDrainBatchSize();
+		queue.setDrainBatchSize(3);
+		try {
+			List<Object> drained = new ArrayList<Object>();
+			assertEquals(4, queue.drainTo(drained, 4));
+			assertEquals(values.subList(0, 4), drained);
+
+			assertEquals(6, queue.drainTo(drained));
+			assertEquals(values, drained);
+			assertEquals(0, queue.drainTo(drained));
+		} finally {
+			queue.setDrainBatchSize(drainBatchSize);
+		}
+
+		assertEmpty();
+	}
+
+	@Test
+	public void pollBatchTest() {
+		assertEmpty();
+
+		queue.add(valueFactory.apply("a"), 1);
+		queue.add(valueFactory.apply("b"), 3);
+		queue.add(valueFactory.apply("c"), 2);
+
+		List<ValueContainer<Object>> batch = queue.pollBatchWithMetadata(2);
+		assertEquals(2, batch.size());
+		assertEquals(3, batch.get(0).getPriority());
+		assertEquals(2, batch.get(1).getPriority());
+
+		batch = queue.pollBatchWithMetadata(2);
+		assertEquals(1, batch.size());
+		assertEquals(valueFactory.apply("a"), batch.get(0).getValue());
+
+		assertTrue(queue.pollBatchWithMetadata(2).isEmpty());
+		assertEmpty();
+	}
+
+	@Test(timeout = 10000)
+	public void leaseTest() throws InterruptedException {
+		assertEmpty();
+
+		queue.setLeaseTime(1, TimeUnit.SECONDS);
+		try {
+			Object a = valueFactory.apply("A");
+			Object b = valueFactory.apply("B");
+			queue.add(a);
+			queue.add(b);
+
+			ValueContainer<Object> v = queue.pollWithMetadata();
+			assertEquals(a, v.getValue());
+			assertEquals(0, queue.reapExpiredLeases());
+
+			// Lease expires, so the item is redelivered
+			Thread.sleep(2100);
+			assertEquals(1, queue.reapExpiredLeases());
+			assertFalse("Lease is gone", queue.ack(v.getId()));
+
+			v = queue.pollWithMetadata();
+			assertEquals(a, v.getValue());
+			assertTrue(queue.extendLease(v.getId(), 10, TimeUnit.SECONDS));
+			assertTrue(queue.ack(v.getId()));
+			assertFalse("Acked twice", queue.extendLease(v.getId(), 10, TimeUnit.SECONDS));
+			assertFalse("Acked items are not re-queued", queue.nack(v.getId()));
+
+			// Nacked item is available straight away
+			v = queue.pollWithMetadata();
+			assertEquals(b, v.getValue());
+			assertTrue(queue.nack(v.getId()));
+			assertFalse("Nacked twice", queue.nack(v.getId()));
+			assertEquals(b, queue.poll());
+
+			Thread.sleep(2100);
+			assertEquals(1, queue.reapExpiredLeases());
+			assertEquals(b, queue.poll());
+			queue.clear();
+
+		} finally {
+			queue.setLeaseTime(0, TimeUnit.SECONDS);
+		}
+		assertEmpty();
+	}
+
+	/**
+	 * Another consumer of the same queue, on node "other"
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	protected AbstractMySQLQueue<Object> otherConsumer() {
+		DataSource ds = DatabaseUtils.createDataSource();
+		if (queue instanceof MySQLBasedDelayQueue)
+			return (AbstractMySQLQueue) new MySQLBasedDelayQueue<DelayedString>(ds, "queue", queue.queueName,
+					new DefaultSerializator<DelayedString>(), "other");
+		return new MySQLBasedQueue<Object>(ds, "queue", queue.queueName, (Class) String.class, "other");
+	}
+
+	@Test(timeout = 10000)
+	public void staleAckTest() throws InterruptedException {
+		assertEmpty();
+
+		AbstractMySQLQueue<Object> other = otherConsumer();
+		queue.setLeaseTime(1, TimeUnit.SECONDS);
+		other.setLeaseTime(1, TimeUnit.SECONDS);
+		try {
+			queue.add(valueFactory.apply("A"));
+			ValueContainer<Object> stale = queue.pollWithMetadata();
+
+			Thread.sleep(2100);
+			assertFalse("Expired lease is not held", queue.extendLease(stale.getId(), 10, TimeUnit.SECONDS));
+
+			// Redelivered to the other consumer
+			assertEquals(1, queue.reapExpiredLeases());
+			ValueContainer<Object> v = other.pollWithMetadata();
+			assertEquals(stale.getId(), v.getId());
+
+			assertFalse("Stale ack", queue.ack(stale.getId()));
+			assertFalse("Stale nack", queue.nack(stale.getId()));
+			assertEquals("Stale complete", 0, queue.complete("DONE", Collections.singletonList(stale.getId())));
+			assertTrue(other.extendLease(v.getId(), 10, TimeUnit.SECONDS));
+			assertTrue(other.ack(v.getId()));
+
+		} finally {
+			queue.setLeaseTime(0, TimeUnit.SECONDS);
+		}
+		assertEmpty();
+	}
+
+	@Test(timeout = 10000)
+	public void cleanupTest() throws InterruptedException, SQLException {
+		assertEmpty();
+
+		List<Long> ids = new ArrayList<Long>();
+		for (int i = 0; i < 5; i++) {
+			queue.add(valueFactory.apply(String.valueOf(i)));
+			ids.add(queue.pollWithMetadata().getId());
+		}
+		queue.add(valueFactory.apply("pending"));
+
+		// Acquired rows older than 0 days, so just make them older than now
+		Thread.sleep(1100);
+
+		// Interrupted before the first chunk, without throttling
+		Thread.currentThread().interrupt();
+		assertEquals(0, queue.cleanup(0));
+		assertTrue("Interrupt status is kept", Thread.interrupted());
+
+		int cleanupBatchSize = queue.getCleanupBatchSize();
+		queue.setCleanupBatchSize(2);
+		queue.setCleanupRowsPerSecond(10);
+		try {
+			// Acquired rows left by other tests are deleted too
+			assertTrue("Cleanup should count deleted rows", queue.cleanup(0) >= ids.size());
+		} finally {
+			queue.setCleanupBatchSize(cleanupBatchSize);
+			queue.setCleanupRowsPerSecond(0);
+		}
+
+		for (Long id : ids) {
+			assertNull("Acquired row should be deleted", queue.getStatus(id));
+		}
+		assertEquals("Pending row should be kept", 1, queue.size());
+		queue.clear();
+	}
+
+	@Test
+	public void iteratorTest() {
+		assertEmpty();
+
+		List<Object> values = new ArrayList<Object>();
+		for (int i = 0; i < 10; i++) {
+			values.add(valueFactory.apply(String.valueOf(i)));
+		}
+		queue.addAll(values);
+		Object head = valueFactory.apply("head");
+		queue.add(head, 5);
+		Object polled = queue.poll();
+
+		int browsePageSize = queue.getBrowsePageSize();
+		queue.setBrowsePageSize(3);
+		try {
+			List<Object> browsed = new ArrayList<Object>();
+			for (Object value : queue) {
+				browsed.add(value);
+			}
+			assertEquals("Polled item should not be seen", head, polled);
+			assertEquals("Items should be seen in poll order", values, browsed);
+			assertEquals(10, queue.streamWithMetadata().count());
+
+			assertTrue(queue.contains(values.get(7)));
+			assertFalse(queue.contains(head));
+			assertEquals(10, queue.toArray().length);
+		} finally {
+			queue.setBrowsePageSize(browsePageSize);
+		}
+
+		assertEquals("Browsing should not acquire anything", 10, queue.size());
+		queue.clear();
+	}
+
+	/**
+	 * Needs the counter table, see MySQLBasedQueue javadoc
+	 */
+	@Test
+	public void countedSizeTest() {
+		assertEmpty();
+
+		queue.setCountedSize(true);
+		try {
+			assertEquals(0, queue.rebuildSizeCounter());
+
+			queue.add(valueFactory.apply("a"));
+			queue.addAll(Arrays.asList(valueFactory.apply("b"), valueFactory.apply("c")));
+			assertEquals(3, queue.size());
+
+			ValueContainer<Object> item = queue.pollWithMetadata();
+			assertEquals(2, queue.size());
+
+			queue.nack(item.getId());
+			assertEquals(3, queue.size());
+
+			assertEquals(3, queue.pollBatchWithMetadata(5).size());
+			assertTrue(queue.isEmpty());
+
+			queue.add(valueFactory.apply("d"));
+			queue.clear();
+			assertEquals(0, queue.size());
+		} finally {
+			queue.setCountedSize(false);
+		}
+	}
+
+	/**
+	 * Needs the counter table, see MySQLBasedQueue
+	 */
+	@Test(timeout=10000)
+	public void capacityTest() throws InterruptedException {
+		assertEmpty();
+
+		queue.setCountedSize(true);
+		queue.setCapacity(2);
+		try {
+			assertEquals(2, queue.remainingCapacity());
+			queue.put(valueFactory.apply("a"));
+			assertTrue(queue.offer(valueFactory.apply("b")));
+			assertEquals(0, queue.remainingCapacity());
+
+			assertFalse("Full queue should reject", queue.offer(valueFactory.apply("c")));
+			long start = System.currentTimeMillis();
+			assertFalse(queue.offer(valueFactory.apply("c"), WAIT_FOR_TIMING_TEST, TimeUnit.MILLISECONDS));
+			assertTrue("offer should wait", System.currentTimeMillis() - start >= WAIT_FOR_TIMING_TEST);
+
+			ExecutorService executor = Executors.newSingleThreadExecutor();
+			try {
+				Future<Boolean> offered = executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						// Must not overflow the deadline and give up straight away
+						return queue.offer(valueFactory.apply("c"), Long.MAX_VALUE, TimeUnit.DAYS);
+					}
+				});
+				Thread.sleep(WAIT_FOR_TIMING_TEST);
+				assertEquals(valueFactory.apply("a"), queue.poll());
+				assertTrue("Claim should free a slot", offered.get());
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e);
+			} finally {
+				executor.shutdown();
+			}
+			assertEquals(2, queue.size());
+		} finally {
+			queue.setCapacity(Integer.MAX_VALUE);
+			queue.setCountedSize(false);
+		}
+	}
+
+	/**
+	 * Needs the dedup_key column, see MySQLBasedQueue
+	 */
+	@Test
+	public void dedupTest() {
+		assertEmpty();
+
+		assertTrue(queue.add(valueFactory.apply("a"), 0, "key-a"));
+		assertFalse("Duplicate key should be skipped", queue.add(valueFactory.apply("a2"), 0, "key-a"));
+		assertTrue("Null key is never a duplicate", queue.add(valueFactory.apply("b"), 0, null));
+		assertEquals(2, queue.size());
+
+		Map<String, Object> values = new LinkedHashMap<String, Object>();
+		values.put("key-a", valueFactory.apply("a3"));
+		values.put("key-c", valueFactory.apply("c"));
+		values.put("key-d", valueFactory.apply("d"));
+		assertEquals(2, queue.addAll(values, 0));
+		assertEquals(4, queue.size());
+		assertEquals("All keys are taken", 0, queue.addAll(values, 0));
+		assertEquals(4, queue.size());
+
+		// Completed key is held without a window
+		assertEquals(valueFactory.apply("a"), queue.poll());
+		assertFalse(queue.add(valueFactory.apply("a4"), 0, "key-a"));
+
+		queue.setDedupWindow(0, TimeUnit.SECONDS);
+		try {
+			assertTrue("Key of completed item should be reused", queue.add(valueFactory.apply("a5"), 0, "key-a"));
+			assertFalse("Key of pending item is still held", queue.add(valueFactory.apply("c2"), 0, "key-c"));
+			assertEquals(4, queue.size());
+		} finally {
+			queue.setDedupWindow(-1, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Needs the archive table: CREATE TABLE queue_archive LIKE queue;
+	 */
+	@Test
+	public void archiveTest() throws InterruptedException {
+		assertEmpty();
+
+		List<Long> ids = new ArrayList<Long>();
+		for (int i = 0; i < 5; i++) {
+			queue.add(valueFactory.apply(String.valueOf(i)));
+			ids.add(queue.pollWithMetadata().getId());
+		}
+		queue.add(valueFactory.apply("pending"));
+
+		int archiveBatchSize = queue.getArchiveBatchSize();
+		queue.setArchiveBatchSize(2);
+		try {
+			assertEquals(5, queue.archiveCompleted());
+			assertEquals(0, queue.archiveCompleted());
+		} finally {
+			queue.setArchiveBatchSize(archiveBatchSize);
+		}
+
+		for (Long id : ids) {
+			assertNull("Acquired row should be archived", queue.getStatus(id));
+		}
+		assertEquals("Pending row should be kept", 1, queue.size());
+
+		queue.setArchiveOnAck(true);
+		try {
+			long id = queue.pollWithMetadata().getId();
+			assertTrue(queue.ack(id));
+			assertNull("Acked row should be archived", queue.getStatus(id));
+			assertFalse("Archived row can not be acked twice", queue.ack(id));
+
+			queue.add(valueFactory.apply("pending"));
+			queue.add(valueFactory.apply("pending"));
+			ValueContainer<Object> pending = queue.peekWithMetadata();
+			assertFalse("Pending row is not archived", queue.ack(pending.getId()));
+			assertEquals(2, queue.size());
+
+			List<Long> completed = new ArrayList<Long>();
+			completed.add(queue.pollWithMetadata().getId());
+			completed.add(queue.pollWithMetadata().getId());
+			assertEquals(2, queue.complete("DONE", completed));
+			for (Long completedId : completed) {
+				assertNull("Completed row should be archived", queue.getStatus(completedId));
+			}
+		} finally {
+			queue.setArchiveOnAck(false);
+		}
+	}
+
 	@Test
 	public void getPriorityTest() {
 		assertEmpty();
@@ -257,4 +711,36 @@ public class AbstractMySQLBasedQueueTest {
 		assertEquals(uniqSet.size(), allDoneList.size());
 		assertEmpty();
 	}
+
+	@Test
+	public void skipLockedMulthreadUniqResultsTest() throws InterruptedException,
+			ExecutionException {
+		// Falls back to FOR_UPDATE on servers without SKIP LOCKED
+		queue.setPollStrategy(PollStrategy.SKIP_LOCKED);
+		try {
+			multhreadUniqResultsTest();
+		} finally {
+			queue.setPollStrategy(PollStrategy.FOR_UPDATE);
+		}
+	}
+
+	@Test
+	public void claimTokenMulthreadUniqResultsTest() throws InterruptedException,
+			ExecutionException {
+		queue.setPollStrategy(PollStrategy.CLAIM_TOKEN);
+		try {
+			multhreadUniqResultsTest();
+
+			queue.add(valueFactory.apply("a"), 1);
+			queue.add(valueFactory.apply("b"), 2);
+			queue.add(valueFactory.apply("c"), 3);
+			List<ValueContainer<Object>> batch = queue.pollBatchWithMetadata(2);
+			assertEquals(2, batch.size());
+			assertEquals(3, batch.get(0).getPriority());
+			assertEquals(2, batch.get(1).getPriority());
+			assertEquals(1, queue.pollWithMetadata().getPriority());
+		} finally {
+			queue.setPollStrategy(PollStrategy.FOR_UPDATE);
+		}
+	}
 }
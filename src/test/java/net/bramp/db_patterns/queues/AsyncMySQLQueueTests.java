@@ -0,0 +1,118 @@
+package net.bramp.db_patterns.queues;
+
+import static org.junit.Assert.*;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import net.bramp.db_patterns.DatabaseUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncMySQLQueueTests {
+
+	private final String TABLE_NAME = "queue";
+
+	private String queueName;
+	private DataSource ds;
+	private MySQLBasedQueue<String> queue;
+	private AsyncMySQLQueue<String> async;
+
+	@Before
+	public void setup() {
+		// Different queue name for each test (to avoid test clashes)
+		queueName = java.util.UUID.randomUUID().toString();
+		ds = DatabaseUtils.createDataSource();
+
+		queue = new MySQLBasedQueue<String>(ds, TABLE_NAME, queueName, String.class, "test");
+		queue.setTakeBlockingTime(1);
+		async = new AsyncMySQLQueue<String>(queue, 2, 1000);
+	}
+
+	@After
+	public void cleanupDatabase() throws SQLException {
+		async.close();
+		queue.clear();
+		queue.cleanupAll(10);
+		assertEmpty();
+	}
+
+	protected void assertEmpty() {
+		assertTrue("Queue should be empty", queue.isEmpty());
+		assertEquals("Queue should be empty", 0, queue.size());
+		assertNull("Queue head should be null", queue.peek());
+	}
+
+	@Test(timeout=10000)
+	public void addAndPollTest() throws Exception {
+		List<CompletableFuture<Boolean>> adds = new ArrayList<CompletableFuture<Boolean>>();
+		for (int i = 0; i < 20; i++) {
+			adds.add(async.addAsync(String.valueOf(i)));
+		}
+		for (CompletableFuture<Boolean> add : adds) {
+			assertTrue(add.get());
+		}
+		assertEquals(20, (int) async.sizeAsync().get());
+
+		List<CompletableFuture<ValueContainer<String>>> polls = new ArrayList<CompletableFuture<ValueContainer<String>>>();
+		for (int i = 0; i < 25; i++) {
+			polls.add(async.pollAsync());
+		}
+
+		Set<String> polled = new HashSet<String>();
+		int empty = 0;
+		for (CompletableFuture<ValueContainer<String>> poll : polls) {
+			ValueContainer<String> item = poll.get();
+			if (item == null)
+				empty++;
+			else
+				assertTrue("Items should be unique", polled.add(item.getValue()));
+		}
+		assertEquals(20, polled.size());
+		assertEquals(5, empty);
+	}
+
+	@Test(timeout=10000)
+	public void takeTest() throws Exception {
+		List<CompletableFuture<ValueContainer<String>>> takes = new ArrayList<CompletableFuture<ValueContainer<String>>>();
+		for (int i = 0; i < 100; i++) {
+			takes.add(async.takeAsync());
+		}
+		Thread.sleep(200);
+		assertEquals(100, async.waiting());
+
+		for (int i = 0; i < 100; i++) {
+			queue.add(String.valueOf(i));
+		}
+
+		Set<String> taken = new HashSet<String>();
+		for (CompletableFuture<ValueContainer<String>> take : takes) {
+			assertTrue("Items should be unique", taken.add(take.get().getValue()));
+		}
+		assertEquals(0, async.waiting());
+	}
+
+	@Test(timeout=10000)
+	public void pollTimeoutTest() throws Exception {
+		long now = System.currentTimeMillis();
+		assertNull(async.pollAsync(300, TimeUnit.MILLISECONDS).get());
+		assertTrue(System.currentTimeMillis() - now >= 300);
+	}
+
+	@Test(timeout=10000)
+	public void statusTest() throws Exception {
+		queue.add("A");
+		ValueContainer<String> item = async.peekAsync().get();
+		async.updateStatusAsync(item.getId(), "Test").get();
+		assertEquals("Test", async.getStatusAsync(item.getId()).get());
+	}
+}
@@ -0,0 +1,123 @@
+package net.bramp.db_patterns.queues;
+
+import static org.junit.Assert.*;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import net.bramp.db_patterns.DatabaseUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MySQLQueuePublisherTests {
+
+	private final String TABLE_NAME = "queue";
+
+	private String queueName;
+	private DataSource ds;
+	private MySQLBasedQueue<String> queue;
+	private MySQLQueuePublisher<String> publisher;
+
+	@Before
+	public void setup() {
+		// Different queue name for each test (to avoid test clashes)
+		queueName = java.util.UUID.randomUUID().toString();
+		ds = DatabaseUtils.createDataSource();
+
+		queue = new MySQLBasedQueue<String>(ds, TABLE_NAME, queueName, String.class, "test");
+		publisher = new MySQLQueuePublisher<String>(queue);
+	}
+
+	@After
+	public void cleanupDatabase() throws SQLException {
+		queue.clear();
+		queue.cleanupAll(10);
+		assertEmpty();
+	}
+
+	protected void assertEmpty() {
+		assertTrue("Queue should be empty", queue.isEmpty());
+		assertEquals("Queue should be empty", 0, queue.size());
+		assertNull("Queue head should be null", queue.peek());
+	}
+
+	static class TestSubscriber implements Flow.Subscriber<ValueContainer<String>> {
+		final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+		volatile Flow.Subscription subscription;
+		volatile Throwable error;
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+		}
+
+		@Override
+		public void onNext(ValueContainer<String> item) {
+			received.add(item.getValue());
+		}
+
+		@Override
+		public void onError(Throwable e) {
+			error = e;
+		}
+
+		@Override
+		public void onComplete() {
+		}
+	}
+
+	@Test(timeout=10000)
+	public void demandTest() throws Exception {
+		List<String> values = new ArrayList<String>();
+		for (int i = 0; i < 10; i++) {
+			values.add(String.valueOf(i));
+		}
+		queue.addAll(values);
+
+		TestSubscriber subscriber = new TestSubscriber();
+		publisher.subscribe(subscriber);
+		assertNotNull(subscriber.subscription);
+
+		subscriber.subscription.request(3);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(values.get(i), subscriber.received.take());
+		}
+
+		Thread.sleep(200);
+		assertTrue("Nothing is delivered without demand", subscriber.received.isEmpty());
+		assertEquals("Only requested items are claimed", 7, queue.size());
+
+		subscriber.subscription.request(Long.MAX_VALUE);
+		for (int i = 3; i < 10; i++) {
+			assertEquals(values.get(i), subscriber.received.take());
+		}
+
+		// Waits for new items
+		queue.add("late");
+		assertEquals("late", subscriber.received.poll(5, TimeUnit.SECONDS));
+
+		subscriber.subscription.cancel();
+		assertNull(subscriber.error);
+	}
+
+	@Test(timeout=10000)
+	public void invalidRequestTest() throws Exception {
+		TestSubscriber subscriber = new TestSubscriber();
+		publisher.subscribe(subscriber);
+		subscriber.subscription.request(0);
+
+		while (subscriber.error == null) {
+			Thread.sleep(10);
+		}
+		assertTrue(subscriber.error instanceof IllegalArgumentException);
+	}
+}
@@ -0,0 +1,183 @@
+package net.bramp.db_patterns.queues;
+
+import static org.junit.Assert.*;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.DataSource;
+
+import net.bramp.db_patterns.DatabaseUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PrefetchingQueueTests {
+
+	private final String TABLE_NAME = "queue";
+
+	private String queueName;
+	private DataSource ds;
+	private MySQLBasedQueue<String> queue;
+	private PrefetchingQueue<String> prefetching;
+
+	@Before
+	public void setup() {
+		// Different queue name for each test (to avoid test clashes)
+		queueName = java.util.UUID.randomUUID().toString();
+		ds = DatabaseUtils.createDataSource();
+
+		queue = new MySQLBasedQueue<String>(ds, TABLE_NAME, queueName, String.class, "test");
+		prefetching = new PrefetchingQueue<String>(queue, 5, 2);
+		prefetching.setRefillBlockingTime(1);
+	}
+
+	@After
+	public void cleanupDatabase() throws SQLException {
+		prefetching.close();
+		queue.clear();
+		queue.cleanupAll(10);
+		assertEmpty();
+	}
+
+	protected void assertEmpty() {
+		assertTrue("Queue should be empty", queue.isEmpty());
+		assertEquals("Queue should be empty", 0, queue.size());
+		assertNull("Queue head should be null", queue.peek());
+	}
+
+	@Test(timeout=10000)
+	public void takeTest() throws InterruptedException {
+		List<String> values = new ArrayList<String>();
+		for (int i = 0; i < 12; i++) {
+			values.add(String.valueOf(i));
+		}
+		queue.addAll(values);
+
+		for (String value : values) {
+			assertEquals(value, prefetching.take());
+		}
+		assertNull(prefetching.poll(100, TimeUnit.MILLISECONDS));
+		assertEquals(0, prefetching.buffered());
+	}
+
+	@Test(timeout=10000)
+	public void closeReleasesBufferedTest() throws InterruptedException {
+		List<String> values = new ArrayList<String>();
+		for (int i = 0; i < 10; i++) {
+			values.add(String.valueOf(i));
+		}
+		queue.addAll(values);
+
+		assertEquals("0", prefetching.take());
+
+		// Wait for the refill to finish
+		while (prefetching.buffered() < 4) {
+			Thread.sleep(10);
+		}
+
+		prefetching.close();
+		assertEquals(0, prefetching.buffered());
+		assertEquals("Unconsumed items should be back in the queue", 9, queue.size());
+		assertEquals("1", queue.poll());
+
+		queue.clear();
+	}
+
+	@Test(timeout=10000)
+	public void expiredLeaseTest() throws InterruptedException {
+		queue.setLeaseTime(1, TimeUnit.SECONDS);
+		try {
+			List<String> values = new ArrayList<String>();
+			for (int i = 0; i < 3; i++) {
+				values.add(String.valueOf(i));
+			}
+			queue.addAll(values);
+
+			ValueContainer<String> first = prefetching.pollWithMetadata();
+			assertEquals("0", first.getValue());
+			while (prefetching.buffered() < 2) {
+				Thread.sleep(10);
+			}
+
+			// Leases of the buffered items end, the reaper re-queues all three
+			Thread.sleep(2100);
+			assertEquals(3, queue.reapExpiredLeases());
+
+			// Expired buffered items are dropped, the poll claims them again from the queue
+			List<String> polled = new ArrayList<String>();
+			for (int i = 0; i < values.size(); i++) {
+				ValueContainer<String> item = prefetching.pollWithMetadata(5, TimeUnit.SECONDS);
+				polled.add(item.getValue());
+				assertTrue(queue.ack(item.getId()));
+			}
+			assertEquals(values, polled);
+			assertNull(prefetching.pollWithMetadata());
+		} finally {
+			queue.setLeaseTime(0, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test(timeout=10000)
+	public void takeBlockingTest() throws Exception {
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+				}
+				queue.add("A");
+			}
+		};
+		producer.start();
+
+		assertEquals("A", prefetching.take());
+		producer.join();
+	}
+
+	@Test(timeout=10000)
+	public void closeWakesConsumersTest() throws Exception {
+		final AtomicReference<Object> taken = new AtomicReference<Object>();
+		final AtomicReference<Object> polled = new AtomicReference<Object>("not returned");
+
+		Thread taker = new Thread() {
+			@Override
+			public void run() {
+				try {
+					taken.set(prefetching.take());
+				} catch (Exception e) {
+					taken.set(e);
+				}
+			}
+		};
+		Thread poller = new Thread() {
+			@Override
+			public void run() {
+				try {
+					polled.set(prefetching.poll(1, TimeUnit.MINUTES));
+				} catch (InterruptedException e) {
+					polled.set(e);
+				}
+			}
+		};
+		taker.start();
+		poller.start();
+
+		while (prefetching.waiting.get() < 2) {
+			Thread.sleep(10);
+		}
+		prefetching.close();
+
+		taker.join(5000);
+		poller.join(5000);
+		assertFalse("take should return on close", taker.isAlive());
+		assertFalse("poll should return on close", poller.isAlive());
+		assertTrue(taken.get() instanceof IllegalStateException);
+		assertNull(polled.get());
+	}
+}
@@ -0,0 +1,99 @@
+package net.bramp.db_patterns.queues;
+
+import java.util.concurrent.TimeUnit;
+
+import net.bramp.db_patterns.DatabaseUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares SQL resolution of the add/peek/poll path against the previous
+ * regex substitution on every call. Does not need a database.
+ * <p>
+ * Run with the gc profiler to see bytes/op:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/classes:target/test-classes:$(cat target/cp.txt) net.bramp.db_patterns.queues.QueryPlanBenchmark
+ * </pre>
+ *
+ * @author bramp
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryPlanBenchmark {
+
+	MySQLBasedQueue<String> queue;
+
+	@Setup
+	public void setup() {
+		queue = new MySQLBasedQueue<String>(DatabaseUtils.createDataSource(), "queue", "benchmark", String.class, "benchmark");
+	}
+
+	/**
+	 * What every add/peek/poll did before the query plan
+	 */
+	static String legacySetTable(AbstractMySQLQueue<?> queue, String query) {
+		return query.replaceAll(AbstractMySQLQueue.tableNamePlaceholder, queue.tableName)
+				.replace(AbstractMySQLQueue.lockingPlaceholder, PollStrategy.FOR_UPDATE.getLockingClause());
+	}
+
+	@Benchmark
+	public String addQueryLegacy() {
+		return legacySetTable(queue, queue.addQuery);
+	}
+
+	@Benchmark
+	public String addQuery() {
+		return queue.getAddQuery();
+	}
+
+	@Benchmark
+	public String peekQueryLegacy() {
+		return legacySetTable(queue, queue.peekQuery);
+	}
+
+	@Benchmark
+	public String peekQuery() {
+		return queue.getPeekQuery();
+	}
+
+	@Benchmark
+	public String[] pollQueryLegacy() {
+		String[] queries = new String[queue.pollQuery.length];
+		for (int i = 0; i < queries.length; i++) {
+			queries[i] = legacySetTable(queue, queue.pollQuery[i]);
+		}
+		return queries;
+	}
+
+	@Benchmark
+	public String[] pollQuery() {
+		return queue.getPollQuery();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options opt = new OptionsBuilder()
+				.include(QueryPlanBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(opt).run();
+	}
+}
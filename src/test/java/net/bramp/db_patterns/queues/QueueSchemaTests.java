@@ -0,0 +1,123 @@
+package net.bramp.db_patterns.queues;
+
+import static org.junit.Assert.*;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
+import javax.sql.DataSource;
+
+import net.bramp.db_patterns.DatabaseUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Installs queue_compact tables next to the queue table
+ */
+public class QueueSchemaTests {
+
+	private final String TABLE_NAME = "queue";
+	private final String COMPACT_TABLE_NAME = "queue_compact";
+
+	private String queueName;
+	private DataSource ds;
+	private QueueSchema schema;
+	private MySQLBasedQueue<String> queue;
+
+	@Before
+	public void setup() throws SQLException {
+		// Different queue name for each test (to avoid test clashes)
+		queueName = java.util.UUID.randomUUID().toString();
+		ds = DatabaseUtils.createDataSource();
+
+		schema = new QueueSchema(ds, COMPACT_TABLE_NAME);
+		schema.setStatuses("DONE", "FAILED", "TEST");
+		schema.install(QueueSchema.Layout.COMPACT);
+
+		queue = new MySQLBasedQueue<String>(ds, COMPACT_TABLE_NAME, queueName, String.class, "test");
+		queue.setLayout(QueueSchema.Layout.COMPACT);
+	}
+
+	@After
+	public void cleanupDatabase() throws SQLException {
+		queue.clear();
+		queue.cleanupAll(10);
+		assertEmpty();
+	}
+
+	protected void assertEmpty() {
+		assertTrue("Queue should be empty", queue.isEmpty());
+		assertEquals("Queue should be empty", 0, queue.size());
+		assertNull("Queue head should be null", queue.peek());
+	}
+
+	@Test
+	public void detectLayoutTest() throws SQLException {
+		assertEquals(QueueSchema.Layout.COMPACT, schema.detectLayout());
+		assertEquals(QueueSchema.Layout.NAMED, new QueueSchema(ds, TABLE_NAME).detectLayout());
+
+		assertEquals(schema.queueId(queueName), schema.queueId(queueName));
+		assertNotEquals(schema.queueId(queueName), schema.queueId(queueName + "-other"));
+	}
+
+	@Test
+	public void parseEnumTest() {
+		assertEquals(new LinkedHashSet<String>(Arrays.asList("NEW", "DONE", "IN PROGRESS")),
+				QueueSchema.parseEnum("enum('NEW','DONE','IN PROGRESS')"));
+		assertNull(QueueSchema.parseEnum("varchar(255)"));
+	}
+
+	@Test
+	public void compactQueueTest() {
+		queue.add("low", 1);
+		queue.add("high", 5);
+		queue.addAll(Arrays.asList("a", "b"));
+		assertEquals(4, queue.size());
+		assertEquals("high", queue.peek());
+
+		ValueContainer<String> item = queue.pollWithMetadata();
+		assertEquals("high", item.getValue());
+		assertEquals("NEW", item.getStatus());
+
+		queue.updateStatus(item.getId(), "TEST");
+		assertEquals("TEST", queue.getStatus(item.getId()));
+		try {
+			queue.updateStatus(item.getId(), "UNKNOWN");
+			fail("Statuses outside the ENUM should be rejected");
+		} catch (IllegalArgumentException e) {
+			assertEquals("TEST", queue.getStatus(item.getId()));
+		}
+
+		assertEquals("low", queue.poll());
+		assertEquals(2, queue.drainTo(new ArrayList<String>()));
+	}
+
+	@Test
+	public void migratePendingTest() throws SQLException {
+		MySQLBasedQueue<String> named = new MySQLBasedQueue<String>(ds, TABLE_NAME, queueName, String.class, "test");
+		try {
+			named.addAll(Arrays.asList("1", "2", "3"));
+			named.add("0", 1);
+
+			// Re-added by a producer already switched to the compact table
+			named.add("4", 0, "key-4");
+			queue.add("4b", 0, "key-4");
+
+			assertEquals(4, schema.migratePending(TABLE_NAME, queueName, 3));
+			assertTrue(named.isEmpty());
+
+			assertEquals(5, queue.size());
+			assertEquals("0", queue.poll());
+			assertEquals("4b", queue.poll());
+			assertEquals("1", queue.poll());
+			assertEquals("2", queue.poll());
+			assertEquals("3", queue.poll());
+		} finally {
+			named.clear();
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package net.bramp.db_patterns.queues;
+
+import static org.junit.Assert.*;
+
+import java.sql.SQLException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import net.bramp.db_patterns.DatabaseUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QueueSessionTests {
+
+	private final String TABLE_NAME = "queue";
+
+	private String queueName;
+	private DataSource ds;
+	private MySQLBasedQueue<String> queue;
+
+	@Before
+	public void setup() {
+		// Different queue name for each test (to avoid test clashes)
+		queueName = java.util.UUID.randomUUID().toString();
+		ds = DatabaseUtils.createDataSource();
+
+		queue = new MySQLBasedQueue<String>(ds, TABLE_NAME, queueName, String.class, "test");
+	}
+
+	@After
+	public void cleanupDatabase() throws SQLException {
+		queue.clear();
+		queue.cleanupAll(10);
+		assertEmpty();
+	}
+
+	protected void assertEmpty() {
+		assertTrue("Queue should be empty", queue.isEmpty());
+		assertEquals("Queue should be empty", 0, queue.size());
+		assertNull("Queue head should be null", queue.peek());
+	}
+
+	@Test
+	public void reuseTest() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			queue.add(String.valueOf(i));
+		}
+
+		QueueSession<String> session = queue.openSession();
+		try {
+			assertEquals(10, session.size());
+			assertEquals("0", session.peekWithMetadata().getValue());
+
+			int statements = -1;
+			for (int i = 0; i < 10; i++) {
+				ValueContainer<String> item = session.pollWithMetadata();
+				assertEquals(String.valueOf(i), item.getValue());
+				session.updateStatus(item.getId(), "DONE");
+				assertEquals("DONE", session.getStatus(item.getId()));
+
+				if (statements == -1)
+					statements = session.openStatements();
+				assertEquals("Statements should be reused", statements, session.openStatements());
+			}
+			assertNull(session.pollWithMetadata());
+		} finally {
+			session.close();
+		}
+	}
+
+	@Test
+	public void revalidateTest() throws Exception {
+		queue.add("a");
+
+		QueueSession<String> session = queue.openSession();
+		try {
+			try {
+				session.run(q -> {
+					throw new RuntimeException("Broken");
+				});
+				fail();
+			} catch (RuntimeException e) {
+				assertEquals("Broken", e.getMessage());
+			}
+			assertEquals("Statements are dropped after errors", 0, session.openStatements());
+			assertEquals("a", session.pollWithMetadata().getValue());
+		} finally {
+			session.close();
+		}
+	}
+
+	@Test(timeout=10000)
+	public void blockingPollTest() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<ValueContainer<String>> polled = executor.submit(() -> {
+				try (QueueSession<String> session = queue.openSession()) {
+					return session.pollWithMetadata(5, TimeUnit.SECONDS);
+				}
+			});
+
+			Thread.sleep(300);
+			queue.add("late");
+			assertEquals("late", polled.get().getValue());
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package net.bramp.db_patterns.queues;
+
+import static org.junit.Assert.*;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import net.bramp.db_patterns.DatabaseUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QueueWorkerPoolTests {
+
+	private final String TABLE_NAME = "queue";
+
+	private String queueName;
+	private DataSource ds;
+	private MySQLBasedQueue<String> queue;
+
+	@Before
+	public void setup() {
+		// Different queue name for each test (to avoid test clashes)
+		queueName = java.util.UUID.randomUUID().toString();
+		ds = DatabaseUtils.createDataSource();
+
+		queue = new MySQLBasedQueue<String>(ds, TABLE_NAME, queueName, String.class, "test");
+	}
+
+	@After
+	public void cleanupDatabase() throws SQLException {
+		queue.clear();
+		queue.cleanupAll(10);
+		assertEmpty();
+	}
+
+	protected void assertEmpty() {
+		assertTrue("Queue should be empty", queue.isEmpty());
+		assertEquals("Queue should be empty", 0, queue.size());
+		assertNull("Queue head should be null", queue.peek());
+	}
+
+	@Test(timeout=20000)
+	public void processTest() throws Exception {
+		List<String> values = new ArrayList<String>();
+		for (int i = 0; i < 50; i++) {
+			values.add(String.valueOf(i));
+		}
+		queue.addAll(values);
+
+		final CountDownLatch done = new CountDownLatch(values.size());
+		final Set<String> processed = Collections.synchronizedSet(new HashSet<String>());
+		final List<Long> ids = Collections.synchronizedList(new ArrayList<Long>());
+
+		QueueWorkerPool<String> pool = new QueueWorkerPool<String>(queue, new QueueWorkerPool.Handler<String>() {
+			@Override
+			public String handle(ValueContainer<String> item) throws Exception {
+				assertTrue("Items should be unique", processed.add(item.getValue()));
+				ids.add(item.getId());
+				done.countDown();
+				if (item.getValue().equals("13"))
+					throw new Exception("Unlucky");
+				return null;
+			}
+		}, 4);
+
+		done.await();
+		assertTrue(pool.shutdown(5, TimeUnit.SECONDS));
+
+		assertEquals(values.size(), processed.size());
+		for (Long id : ids) {
+			String status = queue.getStatus(id);
+			assertTrue(status, status.equals("DONE") || status.equals("FAILED"));
+		}
+		assertEmpty();
+	}
+
+	@Test(timeout=20000)
+	public void shutdownReleasesClaimedTest() throws Exception {
+		List<String> values = new ArrayList<String>();
+		for (int i = 0; i < 20; i++) {
+			values.add(String.valueOf(i));
+		}
+		queue.addAll(values);
+
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch proceed = new CountDownLatch(1);
+
+		QueueWorkerPool<String> pool = new QueueWorkerPool<String>(queue, new QueueWorkerPool.Handler<String>() {
+			@Override
+			public String handle(ValueContainer<String> item) throws Exception {
+				started.countDown();
+				proceed.await();
+				return "OK";
+			}
+		}, 1, 5, 100);
+
+		started.await();
+		while (pool.inFlight() < 6) {
+			Thread.sleep(10);
+		}
+
+		proceed.countDown();
+		assertTrue(pool.shutdown(5, TimeUnit.SECONDS));
+
+		int processed = 0;
+		for (ValueContainer<String> item = queue.pollWithMetadata(); item != null; item = queue.pollWithMetadata()) {
+			processed++;
+		}
+		assertTrue("Prefetched items should be released", processed >= 14);
+	}
+
+	@Test(timeout=20000)
+	public void handlerErrorTest() throws Exception {
+		queue.add("A");
+		final CountDownLatch done = new CountDownLatch(1);
+		final List<Long> ids = Collections.synchronizedList(new ArrayList<Long>());
+
+		QueueWorkerPool<String> pool = new QueueWorkerPool<String>(queue, new QueueWorkerPool.Handler<String>() {
+			@Override
+			public String handle(ValueContainer<String> item) throws Exception {
+				ids.add(item.getId());
+				done.countDown();
+				throw new AssertionError("Broken handler");
+			}
+		}, 1);
+
+		done.await();
+		assertTrue(pool.shutdown(5, TimeUnit.SECONDS));
+
+		assertEquals("Errors should still complete the item", 0, pool.inFlight());
+		assertEquals("FAILED", queue.getStatus(ids.get(0)));
+		assertEquals(0, pool.pendingCompletions.get());
+	}
+}
@@ -0,0 +1,59 @@
+package net.bramp.db_patterns.queues;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+	@Test
+	public void testAttempts() {
+		RetryPolicy policy = new RetryPolicy(3, 0, 0, TimeUnit.MILLISECONDS);
+		assertEquals(0, policy.nextDelay(1, 0));
+		assertEquals(0, policy.nextDelay(2, 0));
+		assertEquals(-1, policy.nextDelay(3, 0));
+
+		assertEquals(-1, RetryPolicy.NEVER.nextDelay(1, 0));
+	}
+
+	@Test
+	public void testDecorrelatedJitter() {
+		final long base = TimeUnit.MILLISECONDS.toNanos(5);
+		final long max = TimeUnit.MILLISECONDS.toNanos(1000);
+		RetryPolicy policy = new RetryPolicy(Integer.MAX_VALUE, 5, 1000, TimeUnit.MILLISECONDS);
+
+		long delay = 0;
+		for (int attempt = 1; attempt < 1000; attempt++) {
+			long next = policy.nextDelay(attempt, delay);
+			assertTrue("Delay " + next + " below base", next >= base);
+			assertTrue("Delay " + next + " above max", next <= max);
+			assertTrue("Delay " + next + " grew too fast", next <= Math.max(base, delay) * 3);
+			delay = next;
+		}
+	}
+
+	@Test
+	public void testBudget() {
+		RetryPolicy policy = new RetryPolicy(10, 0, 0, TimeUnit.MILLISECONDS);
+		policy.setBudget(2);
+
+		assertEquals(0, policy.nextDelay(1, 0));
+		assertEquals(0, policy.nextDelay(1, 0));
+		assertEquals("Budget should be spent", -1, policy.nextDelay(1, 0));
+
+		policy.setBudget(0);
+		assertEquals(0, policy.nextDelay(1, 0));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testSharedBudget() {
+		RetryPolicy.DEFAULT.setBudget(1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidDelays() {
+		new RetryPolicy(1, 10, 5, TimeUnit.MILLISECONDS);
+	}
+}
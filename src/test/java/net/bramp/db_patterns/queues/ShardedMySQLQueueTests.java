@@ -0,0 +1,112 @@
+package net.bramp.db_patterns.queues;
+
+import static org.junit.Assert.*;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import net.bramp.db_patterns.DatabaseUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Needs a second queue table: CREATE TABLE queue_shard_1 LIKE queue;
+ */
+public class ShardedMySQLQueueTests {
+
+	private final List<String> TABLE_NAMES = Arrays.asList("queue", "queue_shard_1");
+
+	private String queueName;
+	private DataSource ds;
+	private ShardedMySQLQueue<String> queue;
+
+	@Before
+	public void setup() {
+		// Different queue name for each test (to avoid test clashes)
+		queueName = java.util.UUID.randomUUID().toString();
+		ds = DatabaseUtils.createDataSource();
+
+		queue = new ShardedMySQLQueue<String>(ds, TABLE_NAMES, queueName, String.class, "test");
+	}
+
+	@After
+	public void cleanupDatabase() throws SQLException {
+		queue.clear();
+		queue.cleanupAll(10);
+		assertEmpty();
+	}
+
+	protected void assertEmpty() {
+		assertTrue("Queue should be empty", queue.isEmpty());
+		assertEquals("Queue should be empty", 0, queue.size());
+		assertNull("Queue head should be null", queue.peek());
+	}
+
+	@Test
+	public void roundRobinTest() {
+		assertEmpty();
+
+		for (int i = 0; i < 10; i++) {
+			assertTrue(queue.add(String.valueOf(i)));
+		}
+		assertEquals(10, queue.size());
+		for (AbstractMySQLQueue<String> shard : queue.getShards()) {
+			assertEquals("Items should be spread evenly", 5, shard.size());
+		}
+
+		Set<String> polled = new HashSet<String>();
+		String value;
+		while ((value = queue.poll()) != null) {
+			polled.add(value);
+		}
+		assertEquals(10, polled.size());
+	}
+
+	@Test
+	public void addAllAndBatchTest() {
+		assertEmpty();
+
+		List<String> values = new ArrayList<String>();
+		for (int i = 0; i < 9; i++) {
+			values.add(String.valueOf(i));
+		}
+		assertTrue(queue.addAll(values));
+		assertEquals(9, queue.size());
+
+		List<ValueContainer<String>> batch = queue.pollBatchWithMetadata(6);
+		assertEquals(6, batch.size());
+
+		Set<String> polled = new HashSet<String>();
+		for (ValueContainer<String> item : batch) {
+			polled.add(item.getValue());
+		}
+		List<String> drained = new ArrayList<String>();
+		assertEquals(3, queue.drainTo(drained));
+		polled.addAll(drained);
+		assertEquals(new HashSet<String>(values), polled);
+	}
+
+	@Test
+	public void shardedIdTest() throws InterruptedException {
+		assertEmpty();
+
+		queue.addByKey("key", "A", 0);
+		ValueContainer<String> item = queue.pollWithMetadata(1, TimeUnit.SECONDS);
+		assertEquals("A", item.getValue());
+
+		queue.updateStatus(item.getId(), "Test1");
+		assertEquals("Test1", queue.getStatus(item.getId()));
+
+		assertTrue(queue.nack(item.getId()));
+		assertEquals("A", queue.poll());
+	}
+}
@@ -0,0 +1,109 @@
+package net.bramp.db_patterns.queues.jdk21;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import net.bramp.db_patterns.DatabaseUtils;
+import net.bramp.db_patterns.queues.AsyncMySQLQueue;
+import net.bramp.db_patterns.queues.MySQLBasedQueue;
+
+/**
+ * Parks thousands of virtual threads waiting for queue items, reports heap
+ * and platform thread usage while they are blocked, then feeds them.
+ * <p>
+ * Takers wait on AsyncMySQLQueue futures, sharing one dispatcher connection.
+ * Direct takers call take(), each holding a SLEEP() connection, so keep them
+ * below max_connections. Needs Java 21 and a database:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -Xmx64m -cp target/classes:target/test-classes:$(cat target/cp.txt) \
+ *   net.bramp.db_patterns.queues.jdk21.VirtualThreadTakersBenchmark [takers] [direct takers]
+ * </pre>
+ *
+ * @author bramp
+ */
+public class VirtualThreadTakersBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		final int takers = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		final int directTakers = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		final int total = takers + directTakers;
+
+		DataSource ds = DatabaseUtils.createDataSource();
+		MySQLBasedQueue<String> queue = new MySQLBasedQueue<>(ds, "queue",
+				UUID.randomUUID().toString(), String.class, "benchmark");
+		queue.setTakeBlockingTime(5);
+		AsyncMySQLQueue<String> async = new AsyncMySQLQueue<>(queue);
+
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		System.gc();
+		long heapBefore = memory.getHeapMemoryUsage().getUsed();
+		int threadsBefore = threads.getThreadCount();
+
+		CountDownLatch done = new CountDownLatch(total);
+		AtomicInteger failed = new AtomicInteger();
+
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (int i = 0; i < takers; i++) {
+				executor.submit(() -> {
+					try {
+						async.takeAsync().get();
+					} catch (Exception e) {
+						failed.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				});
+			}
+			for (int i = 0; i < directTakers; i++) {
+				executor.submit(() -> {
+					try {
+						queue.take();
+					} catch (Exception e) {
+						failed.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				});
+			}
+
+			// Let everyone block
+			Thread.sleep(3000);
+			System.gc();
+
+			System.out.printf("%d blocked takers (%d direct)%n", total, directTakers);
+			System.out.printf("  heap: +%d KB%n", (memory.getHeapMemoryUsage().getUsed() - heapBefore) / 1024);
+			System.out.printf("  platform threads: +%d%n", threads.getThreadCount() - threadsBefore);
+			System.out.printf("  async waiters: %d%n", async.waiting());
+
+			long start = System.nanoTime();
+			List<String> values = new ArrayList<>(total);
+			for (int i = 0; i < total; i++) {
+				values.add(String.valueOf(i));
+			}
+			queue.addAll(values);
+
+			if (!done.await(60, TimeUnit.SECONDS))
+				System.out.printf("  %d takers still waiting%n", done.getCount());
+
+			System.out.printf("  all fed in %d ms, %d failed%n",
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), failed.get());
+		} finally {
+			async.close();
+			queue.clear();
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package net.bramp.db_patterns.queues.metrics;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+
+import org.junit.Test;
+
+public class JmxQueueMetricsTest {
+
+	@Test
+	public void testHistogram() {
+		Log2Histogram histogram = new Log2Histogram();
+		assertEquals(0, histogram.getPercentile(99));
+
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i);
+		}
+		assertEquals(100, histogram.getCount());
+		assertEquals(5050, histogram.getSum());
+		assertEquals(50.5, histogram.getMean(), 0.001);
+
+		// Upper bounds of power of two buckets
+		assertEquals(1, histogram.getPercentile(1));
+		assertEquals(63, histogram.getPercentile(50));
+		assertEquals(127, histogram.getPercentile(99));
+
+		histogram.record(0);
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(0, histogram.getPercentile(0));
+		assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+	}
+
+	@Test
+	public void testRecord() {
+		JmxQueueMetrics metrics = new JmxQueueMetrics("test");
+		metrics.recordAdd(2000000, 10);
+		metrics.recordAdd(4000000, 0);
+		metrics.recordPoll(1000000, 0);
+		metrics.recordPoll(1000000, 5);
+		metrics.recordPeek(1000000, true);
+		metrics.recordRetry(2000000);
+		metrics.recordRetryExhausted();
+		metrics.recordWait(1000000, true);
+		metrics.recordWait(1000000, false);
+		metrics.recordSignal(1);
+		metrics.recordSignal(0);
+		metrics.recordCleanup(3000000, 1000);
+		metrics.recordCleanup(1000000, 0);
+
+		assertEquals(2, metrics.getAddCount());
+		assertEquals(10, metrics.getAddedRows());
+		assertEquals(3.0, metrics.getAddMeanMillis(), 0.001);
+		assertEquals(2, metrics.getPollCount());
+		assertEquals(1, metrics.getEmptyPollCount());
+		assertEquals(5, metrics.getPolledItems());
+		assertEquals(1, metrics.getEmptyPeekCount());
+		assertEquals(1, metrics.getRetryCount());
+		assertEquals(2.0, metrics.getRetryBackoffMeanMillis(), 0.001);
+		assertEquals(1, metrics.getRetryExhaustedCount());
+		assertEquals(2, metrics.getWaitCount());
+		assertEquals(1, metrics.getSignalledWaitCount());
+		assertEquals(2, metrics.getSignalCount());
+		assertEquals(1, metrics.getKillCount());
+		assertEquals(2, metrics.getCleanupCount());
+		assertEquals(1000, metrics.getCleanedRows());
+		assertEquals(2.0, metrics.getCleanupMeanMillis(), 0.001);
+
+		metrics.reset();
+		assertEquals(0, metrics.getAddCount());
+		assertEquals(0, metrics.getKillCount());
+	}
+
+	@Test
+	public void testRegister() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		JmxQueueMetrics metrics = new JmxQueueMetrics("queue:with,odd=chars").register();
+		try {
+			metrics.recordRetry(0);
+			assertEquals(1L, server.getAttribute(metrics.getObjectName(), "RetryCount"));
+		} finally {
+			metrics.unregister();
+		}
+		assertFalse(server.isRegistered(metrics.getObjectName()));
+	}
+}
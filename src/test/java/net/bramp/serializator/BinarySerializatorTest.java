@@ -0,0 +1,94 @@
+package net.bramp.serializator;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Serializable;
+
+import org.junit.Test;
+
+public class BinarySerializatorTest {
+
+	static class Job implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		final long id;
+		final String name;
+		final int attempts;
+
+		Job(long id, String name, int attempts) {
+			this.id = id;
+			this.name = name;
+			this.attempts = attempts;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Job))
+				return false;
+			Job other = (Job) o;
+			return id == other.id && name.equals(other.name) && attempts == other.attempts;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) id;
+		}
+	}
+
+	static final BinaryCodec<Job> JOB_CODEC = new BinaryCodec<Job>() {
+		@Override
+		public void write(Job value, DataOutput out) throws IOException {
+			out.writeLong(value.id);
+			out.writeUTF(value.name);
+			out.writeInt(value.attempts);
+		}
+
+		@Override
+		public Job read(DataInput in) throws IOException {
+			return new Job(in.readLong(), in.readUTF(), in.readInt());
+		}
+	};
+
+	@Test
+	public void roundTripTest() {
+		BinarySerializator<Job> s = new BinarySerializator<Job>(JOB_CODEC);
+		Job job = new Job(42, "resize", 3);
+
+		byte[] bytes = s.serialize(job);
+		assertEquals(8 + 2 + 6 + 4, bytes.length);
+		assertEquals(job, s.deserialize(bytes));
+
+		// Buffer is reused, earlier results must not change
+		byte[] other = s.serialize(new Job(7, "x", 0));
+		assertEquals(job, s.deserialize(bytes));
+		assertEquals(new Job(7, "x", 0), s.deserialize(other));
+
+		assertTrue(bytes.length < new DefaultSerializator<Job>().serialize(job).length / 5);
+	}
+
+	@Test
+	public void largeValueTest() {
+		BinarySerializator<Job> s = new BinarySerializator<Job>(JOB_CODEC);
+		StringBuilder name = new StringBuilder();
+		for (int i = 0; i < BinarySerializator.MAX_RETAINED_BYTES / 10; i++) {
+			name.append("0123456789");
+		}
+		Job job = new Job(1, name.toString().substring(0, 60000), 1);
+		assertEquals(job, s.deserialize(s.serialize(job)));
+	}
+
+	@Test
+	public void truncatedTest() {
+		BinarySerializator<Job> s = new BinarySerializator<Job>(JOB_CODEC);
+		try {
+			s.deserialize(new byte[4]);
+			fail("Truncated value should throw");
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof EOFException);
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package net.bramp.serializator;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares codecs of CompressingSerializator on JSON like payloads. The
+ * compression ratio of each codec is printed at the end of each trial.
+ * <p>
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/classes:target/test-classes:$(cat target/cp.txt) net.bramp.serializator.CompressingSerializatorBenchmark
+ * </pre>
+ *
+ * @author bramp
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressingSerializatorBenchmark {
+
+	@Param({"NONE", "DEFLATE", "SNAPPY"})
+	String codec;
+
+	@Param({"4096", "40960"})
+	int size;
+
+	Serializator<String> serializator;
+	String value;
+	byte[] bytes;
+
+	/**
+	 * Builds a JSON array of records about size characters long, with the
+	 * repeated keys and small vocabulary of typical job payloads
+	 */
+	static String payload(int size) {
+		final String[] states = {"pending", "running", "done", "failed"};
+		Random random = new Random(size);
+
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; sb.length() < size; i++) {
+			sb.append("{\"id\":").append(100000 + random.nextInt(900000))
+					.append(",\"user\":\"user-").append(random.nextInt(1000))
+					.append("\",\"state\":\"").append(states[random.nextInt(states.length)])
+					.append("\",\"created\":\"2024-03-").append(10 + random.nextInt(20))
+					.append("T12:").append(10 + random.nextInt(50)).append(":00Z\"")
+					.append(",\"tags\":[\"batch\",\"retry-").append(random.nextInt(3))
+					.append("\"],\"score\":").append(random.nextInt(10000) / 100.0).append("},");
+		}
+		sb.setLength(size);
+		return sb.toString();
+	}
+
+	@Setup
+	public void setup() {
+		Serializator<String> inner = new DefaultSerializator<String>();
+		serializator = codec.equals("NONE") ? inner
+				: new CompressingSerializator<String>(inner, CompressingSerializator.Codec.valueOf(codec));
+		value = payload(size);
+		bytes = serializator.serialize(value);
+	}
+
+	@TearDown
+	public void ratio() {
+		System.out.println(codec + " " + size + ": " + bytes.length + " bytes");
+	}
+
+	@Benchmark
+	public byte[] serialize() {
+		return serializator.serialize(value);
+	}
+
+	@Benchmark
+	public String deserialize() {
+		return serializator.deserialize(bytes);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options opt = new OptionsBuilder()
+				.include(CompressingSerializatorBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(opt).run();
+	}
+}
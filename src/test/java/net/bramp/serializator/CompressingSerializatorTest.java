@@ -0,0 +1,107 @@
+package net.bramp.serializator;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CompressingSerializatorTest {
+
+	final Serializator<String> inner = new DefaultSerializator<String>();
+
+	/**
+	 * Passes bytes through, to control the first byte
+	 */
+	static class BytesSerializator implements Serializator<byte[]> {
+		@Override
+		public byte[] serialize(byte[] obj) {
+			return obj;
+		}
+
+		@Override
+		public byte[] deserialize(byte[] bytes) {
+			return bytes;
+		}
+	}
+
+	@Test
+	public void roundTripTest() {
+		for (CompressingSerializator.Codec codec : CompressingSerializator.Codec.values()) {
+			CompressingSerializator<String> s = new CompressingSerializator<String>(inner, codec);
+			for (int size : new int[] {0, 10, 1023, 4096, 40960}) {
+				String value = CompressingSerializatorBenchmark.payload(size);
+				byte[] bytes = s.serialize(value);
+				assertEquals(codec + " " + size, value, s.deserialize(bytes));
+			}
+		}
+	}
+
+	@Test
+	public void compressesAboveThresholdTest() {
+		String value = CompressingSerializatorBenchmark.payload(4096);
+		byte[] plain = inner.serialize(value);
+
+		for (CompressingSerializator.Codec codec : CompressingSerializator.Codec.values()) {
+			CompressingSerializator<String> s = new CompressingSerializator<String>(inner, codec);
+			byte[] bytes = s.serialize(value);
+			assertEquals(codec.header, bytes[0]);
+			assertTrue(codec + " should compress", bytes.length < plain.length / 2);
+
+			s.setThreshold(plain.length + 1);
+			assertArrayEquals("Below threshold values are unchanged", plain, s.serialize(value));
+		}
+	}
+
+	@Test
+	public void readsUncompressedValuesTest() {
+		String value = CompressingSerializatorBenchmark.payload(4096);
+		CompressingSerializator<String> s = new CompressingSerializator<String>(inner);
+		assertEquals(value, s.deserialize(inner.serialize(value)));
+	}
+
+	@Test
+	public void headerCollisionTest() {
+		CompressingSerializator<byte[]> s = new CompressingSerializator<byte[]>(new BytesSerializator());
+
+		byte[] value = new byte[] {CompressingSerializator.Codec.DEFLATE.header, 1, 2, 3};
+		byte[] bytes = s.serialize(value);
+		assertEquals(CompressingSerializator.RAW, bytes[0]);
+		assertArrayEquals(value, s.deserialize(bytes));
+	}
+
+	@Test
+	public void incompressibleTest() {
+		byte[] value = new byte[4096];
+		new Random(42).nextBytes(value);
+		value[0] = 0;
+
+		CompressingSerializator<byte[]> s = new CompressingSerializator<byte[]>(new BytesSerializator());
+		assertArrayEquals(value, s.serialize(value));
+	}
+
+	@Test
+	public void corruptLengthTest() {
+		CompressingSerializator<byte[]> s = new CompressingSerializator<byte[]>(new BytesSerializator());
+		byte deflate = CompressingSerializator.Codec.DEFLATE.header;
+		byte snappy = CompressingSerializator.Codec.SNAPPY.header;
+		byte[][] corrupt = {
+				{deflate, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0},
+				{deflate, 0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0},
+				{snappy, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 0},
+		};
+		for (byte[] bytes : corrupt) {
+			try {
+				s.deserialize(bytes);
+				fail("Corrupt length should be rejected");
+			} catch (RuntimeException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("Corrupt"));
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidLevelTest() {
+		new CompressingSerializator<String>(inner).setDeflateLevel(0);
+	}
+}
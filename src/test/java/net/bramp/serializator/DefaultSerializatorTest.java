@@ -0,0 +1,23 @@
+package net.bramp.serializator;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class DefaultSerializatorTest {
+
+	@Test
+	public void roundTripTest() {
+		DefaultSerializator<Integer> s = new DefaultSerializator<Integer>();
+		assertEquals(Integer.valueOf(42), s.deserialize(s.serialize(42)));
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void corruptValueTest() {
+		DefaultSerializator<Integer> s = new DefaultSerializator<Integer>();
+		byte[] bytes = s.serialize(42);
+		s.deserialize(Arrays.copyOf(bytes, bytes.length - 2));
+	}
+}
@@ -0,0 +1,45 @@
+package net.bramp.serializator;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class PrimitiveSerializatorsTest {
+
+	static <E> E roundTrip(Serializator<E> s, E value) {
+		return s.deserialize(s.serialize(value));
+	}
+
+	@Test
+	public void integerTest() {
+		for (int v : new int[] {0, 1, -1, 255, Integer.MIN_VALUE, Integer.MAX_VALUE}) {
+			assertEquals(Integer.valueOf(v), roundTrip(PrimitiveSerializators.INTEGER, v));
+		}
+		assertEquals(4, PrimitiveSerializators.INTEGER.serialize(42).length);
+	}
+
+	@Test
+	public void longTest() {
+		for (long v : new long[] {0, 1, -1, 1L << 40, Long.MIN_VALUE, Long.MAX_VALUE}) {
+			assertEquals(Long.valueOf(v), roundTrip(PrimitiveSerializators.LONG, v));
+		}
+	}
+
+	@Test
+	public void doubleTest() {
+		for (double v : new double[] {0.0, -0.0, 1.5, Double.NaN, Double.MIN_VALUE, Double.NEGATIVE_INFINITY}) {
+			assertEquals(Double.valueOf(v), roundTrip(PrimitiveSerializators.DOUBLE, v));
+		}
+	}
+
+	@Test
+	public void stringTest() {
+		assertEquals("", roundTrip(PrimitiveSerializators.STRING, ""));
+		assertEquals("zażółć 😀", roundTrip(PrimitiveSerializators.STRING, "zażółć 😀"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void wrongLengthTest() {
+		PrimitiveSerializators.LONG.deserialize(new byte[4]);
+	}
+}
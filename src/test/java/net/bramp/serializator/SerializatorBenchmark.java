@@ -0,0 +1,135 @@
+package net.bramp.serializator;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares DefaultSerializator against PrimitiveSerializators and a
+ * BinarySerializator on small values.
+ * <p>
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/classes:target/test-classes:$(cat target/cp.txt) net.bramp.serializator.SerializatorBenchmark
+ * </pre>
+ *
+ * @author bramp
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializatorBenchmark {
+
+	final Integer integer = 123456;
+	final String string = "resize image 42 to 640x480";
+	final BinarySerializatorTest.Job job = new BinarySerializatorTest.Job(42, "resize", 3);
+
+	final Serializator<Integer> defaultInteger = new DefaultSerializator<Integer>();
+	final Serializator<String> defaultString = new DefaultSerializator<String>();
+	final Serializator<BinarySerializatorTest.Job> defaultJob = new DefaultSerializator<BinarySerializatorTest.Job>();
+	final Serializator<BinarySerializatorTest.Job> binaryJob =
+			new BinarySerializator<BinarySerializatorTest.Job>(BinarySerializatorTest.JOB_CODEC);
+
+	byte[] defaultIntegerBytes, integerBytes;
+	byte[] defaultStringBytes, stringBytes;
+	byte[] defaultJobBytes, binaryJobBytes;
+
+	@Setup
+	public void setup() {
+		defaultIntegerBytes = defaultInteger.serialize(integer);
+		integerBytes = PrimitiveSerializators.INTEGER.serialize(integer);
+		defaultStringBytes = defaultString.serialize(string);
+		stringBytes = PrimitiveSerializators.STRING.serialize(string);
+		defaultJobBytes = defaultJob.serialize(job);
+		binaryJobBytes = binaryJob.serialize(job);
+
+		System.out.println("Integer " + defaultIntegerBytes.length + " / " + integerBytes.length + " bytes, "
+				+ "String " + defaultStringBytes.length + " / " + stringBytes.length + " bytes, "
+				+ "Job " + defaultJobBytes.length + " / " + binaryJobBytes.length + " bytes");
+	}
+
+	@Benchmark
+	public byte[] integerDefault() {
+		return defaultInteger.serialize(integer);
+	}
+
+	@Benchmark
+	public byte[] integerPrimitive() {
+		return PrimitiveSerializators.INTEGER.serialize(integer);
+	}
+
+	@Benchmark
+	public Integer integerDefaultRead() {
+		return defaultInteger.deserialize(defaultIntegerBytes);
+	}
+
+	@Benchmark
+	public Integer integerPrimitiveRead() {
+		return PrimitiveSerializators.INTEGER.deserialize(integerBytes);
+	}
+
+	@Benchmark
+	public byte[] stringDefault() {
+		return defaultString.serialize(string);
+	}
+
+	@Benchmark
+	public byte[] stringPrimitive() {
+		return PrimitiveSerializators.STRING.serialize(string);
+	}
+
+	@Benchmark
+	public String stringDefaultRead() {
+		return defaultString.deserialize(defaultStringBytes);
+	}
+
+	@Benchmark
+	public String stringPrimitiveRead() {
+		return PrimitiveSerializators.STRING.deserialize(stringBytes);
+	}
+
+	@Benchmark
+	public byte[] jobDefault() {
+		return defaultJob.serialize(job);
+	}
+
+	@Benchmark
+	public byte[] jobBinary() {
+		return binaryJob.serialize(job);
+	}
+
+	@Benchmark
+	public BinarySerializatorTest.Job jobDefaultRead() {
+		return defaultJob.deserialize(defaultJobBytes);
+	}
+
+	@Benchmark
+	public BinarySerializatorTest.Job jobBinaryRead() {
+		return binaryJob.deserialize(binaryJobBytes);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options opt = new OptionsBuilder()
+				.include(SerializatorBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(opt).run();
+	}
+}
@@ -0,0 +1,34 @@
+package net.bramp.sql;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class MySQLVersionTest {
+
+	@Test
+	public void testParse() {
+		assertEquals(new MySQLVersion(8, 0, 33, false), MySQLVersion.parse("8.0.33"));
+		assertEquals(new MySQLVersion(5, 7, 0, false), MySQLVersion.parse("5.7"));
+		assertEquals(new MySQLVersion(5, 6, 51, false), MySQLVersion.parse("5.6.51-log"));
+		assertEquals(new MySQLVersion(10, 6, 12, true), MySQLVersion.parse("10.6.12-MariaDB-1:10.6.12+maria~ubu2004"));
+		assertEquals(new MySQLVersion(10, 6, 12, true), MySQLVersion.parse("5.5.5-10.6.12-MariaDB"));
+		assertEquals(new MySQLVersion(5, 5, 5, false), MySQLVersion.parse("5.5.5-log"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseInvalid() {
+		MySQLVersion.parse("unknown");
+	}
+
+	@Test
+	public void testSupportsSkipLocked() {
+		assertFalse(MySQLVersion.parse("5.7.44").supportsSkipLocked());
+		assertFalse(MySQLVersion.parse("8.0.0").supportsSkipLocked());
+		assertTrue(MySQLVersion.parse("8.0.1").supportsSkipLocked());
+		assertTrue(MySQLVersion.parse("8.4.0").supportsSkipLocked());
+		assertFalse(MySQLVersion.parse("10.5.9-MariaDB").supportsSkipLocked());
+		assertTrue(MySQLVersion.parse("10.6.0-MariaDB").supportsSkipLocked());
+		assertTrue(MySQLVersion.parse("5.5.5-10.6.12-MariaDB-log").supportsSkipLocked());
+	}
+}